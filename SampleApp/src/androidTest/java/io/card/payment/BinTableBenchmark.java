@@ -0,0 +1,100 @@
+package io.card.payment;
+
+/* BinTableBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Random;
+
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times opening a {@link BinTable} of a few hundred thousand ranges and looking card numbers up
+ * in it, and how much of the Java heap that takes.
+ */
+public class BinTableBenchmark {
+
+    private static final String TAG = BinTableBenchmark.class.getSimpleName();
+
+    private static final int RANGES = 300000;
+    private static final int WARMUP_LOOKUPS = 10000;
+    private static final int MEASURED_LOOKUPS = 200000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        // one 6 digit BIN in every 3, with a few issuers and countries
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < RANGES; i++) {
+            csv.append(100000 + i * 3).append(",,Visa,debit,")
+                    .append(i % 2 == 0 ? "US" : "GB").append(",Issuer ").append(i % 500)
+                    .append(",16,16\n");
+        }
+
+        mFile = new File(getTargetContext().getCacheDir(), "benchmark_bins.bin");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mFile));
+        try {
+            assertEquals(RANGES, BinTableWriter.write(new StringReader(csv.toString()), out));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void openAndLookUp() throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        BinTable table = BinTable.open(mFile);
+        long openNanos = System.nanoTime() - start;
+
+        String[] numbers = new String[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = String.format("%06d%010d", 100000 + random.nextInt(RANGES * 3),
+                    random.nextInt(Integer.MAX_VALUE));
+        }
+
+        BinInfo info = new BinInfo();
+        int found = 0;
+        for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+            table.lookup(numbers[i % numbers.length], info);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_LOOKUPS; i++) {
+            if (table.lookup(numbers[i % numbers.length], info)) {
+                found++;
+            }
+        }
+        long lookupNanos = System.nanoTime() - start;
+
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        Log.i(TAG, String.format("BIN table of %d ranges (%d KB): open %.2f ms, lookup %d ns, "
+                        + "%d%% found, heap grew %d KB", table.size(), mFile.length() / 1024,
+                openNanos / 1e6, lookupNanos / MEASURED_LOOKUPS, found * 100 / MEASURED_LOOKUPS,
+                (heapAfter - heapBefore) / 1024));
+    }
+}
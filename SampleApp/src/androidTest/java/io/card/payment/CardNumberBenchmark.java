@@ -0,0 +1,166 @@
+package io.card.payment;
+
+/* CardNumberBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.text.CharacterIterator;
+import java.text.StringCharacterIterator;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times checking and formatting card numbers into reused buffers against the String based way it
+ * used to be done, which is kept here to compare with: for a number as typed, and for a scan
+ * result as the digit values the scanner leaves in {@link DetectionInfo#prediction}.
+ */
+public class CardNumberBenchmark {
+
+    private static final String TAG = CardNumberBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_RUNS = 20000;
+    private static final int MEASURED_RUNS = 200000;
+
+    private static final String TYPED = "4111 1111 1111 1111";
+
+    @Test
+    public void typedNumber() {
+        StringBuilder digits = new StringBuilder();
+        StringBuilder formatted = new StringBuilder();
+        checkAndFormat(TYPED, digits, formatted);
+        assertEquals(legacyCheckAndFormat(TYPED), formatted.toString());
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            checkAndFormat(TYPED, digits, formatted);
+            legacyCheckAndFormat(TYPED);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            checkAndFormat(TYPED, digits, formatted);
+        }
+        long bufferNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            legacyCheckAndFormat(TYPED);
+        }
+        long stringNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("typed number, buffers: %d ns, strings: %d ns",
+                bufferNanos / MEASURED_RUNS, stringNanos / MEASURED_RUNS));
+    }
+
+    @Test
+    public void scannedNumber() {
+        DetectionInfo dInfo = new DetectionInfo();
+        for (int i = 0; i < 16; i++) {
+            dInfo.prediction[i] = i < 12 ? 5 : 4;
+        }
+        StringBuilder formatted = new StringBuilder();
+        checkAndFormat(dInfo, formatted);
+        assertEquals(legacyCheckAndFormat(dInfo), formatted.toString());
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            checkAndFormat(dInfo, formatted);
+            legacyCheckAndFormat(dInfo);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            checkAndFormat(dInfo, formatted);
+        }
+        long bufferNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            legacyCheckAndFormat(dInfo);
+        }
+        long stringNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("scanned number, digit values: %d ns, strings: %d ns",
+                bufferNanos / MEASURED_RUNS, stringNanos / MEASURED_RUNS));
+    }
+
+    private static boolean checkAndFormat(String typed, StringBuilder digits,
+                                          StringBuilder formatted) {
+        int numDigits = StringHelper.getDigitsOnly(typed, digits);
+        CardType type = CardType.fromCardNumber(digits);
+        if (numDigits != type.numberLength() || !CreditCardNumber.passesLuhnChecksum(digits)) {
+            return false;
+        }
+        CreditCardNumber.formatString(digits, false, type, formatted);
+        return true;
+    }
+
+    private static boolean checkAndFormat(DetectionInfo dInfo, StringBuilder formatted) {
+        int numDigits = dInfo.numDigits();
+        CardType type = CardType.fromCardNumber(dInfo.prediction, numDigits);
+        if (numDigits != type.numberLength()
+                || !CreditCardNumber.passesLuhnChecksum(dInfo.prediction, numDigits)) {
+            return false;
+        }
+        CreditCardNumber.formatString(dInfo.prediction, numDigits, type, formatted);
+        return true;
+    }
+
+    private static String legacyCheckAndFormat(String typed) {
+        String digits = legacyDigitsOnly(typed);
+        CardType type = CardType.fromCardNumber(digits);
+        if (digits.length() != type.numberLength() || !legacyPassesLuhnChecksum(digits)) {
+            return null;
+        }
+        return legacyFormatSixteen(digits);
+    }
+
+    private static String legacyCheckAndFormat(DetectionInfo dInfo) {
+        String number = dInfo.creditCard().cardNumber;
+        CardType type = CardType.fromCardNumber(number);
+        if (number.length() != type.numberLength() || !legacyPassesLuhnChecksum(number)) {
+            return null;
+        }
+        return legacyFormatSixteen(legacyDigitsOnly(number));
+    }
+
+    private static String legacyDigitsOnly(String numString) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : numString.toCharArray()) {
+            if (Character.isDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean legacyPassesLuhnChecksum(String number) {
+        int even = 0;
+        int sum = 0;
+
+        final int[][] sums = { { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 } };
+
+        CharacterIterator iter = new StringCharacterIterator(number);
+        for (char c = iter.last(); c != CharacterIterator.DONE; c = iter.previous()) {
+            if (!Character.isDigit(c)) {
+                return false;
+            }
+            int cInt = c - '0';
+            sum += sums[even++ & 0x1][cInt];
+        }
+        return sum % 10 == 0;
+    }
+
+    private static String legacyFormatSixteen(String digits) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            if (i != 0 && i % 4 == 0) {
+                sb.append(' ');
+            }
+            sb.append(digits.charAt(i));
+        }
+        return sb.toString();
+    }
+}
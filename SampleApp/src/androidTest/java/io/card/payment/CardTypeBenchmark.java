@@ -0,0 +1,164 @@
+package io.card.payment;
+
+/* CardTypeBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times {@link CardType#fromCardNumber(String)} against the scan over every range it used to do,
+ * which is kept here to compare with, on numbers as they grow one keystroke at a time. Also checks
+ * that both agree on every prefix of up to 5 digits.
+ */
+public class CardTypeBenchmark {
+
+    private static final String TAG = CardTypeBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 2000;
+
+    private static final String[] NUMBERS = {
+            "4111111111111111", "5555555555554444", "2221000000000009", "378282246310005",
+            "30569309025904", "3530111333300000", "6011111111111117", "6200000000000005",
+            "9999999999999999",
+    };
+
+    private static final Map<String[], CardType> LEGACY_RANGES = new LinkedHashMap<>();
+
+    static {
+        legacyRange("2221", "2720", CardType.MASTERCARD);
+        legacyRange("300", "305", CardType.DINERSCLUB);
+        legacyRange("309", null, CardType.DINERSCLUB);
+        legacyRange("34", null, CardType.AMEX);
+        legacyRange("3528", "3589", CardType.JCB);
+        legacyRange("36", null, CardType.DINERSCLUB);
+        legacyRange("37", null, CardType.AMEX);
+        legacyRange("38", "39", CardType.DINERSCLUB);
+        legacyRange("4", null, CardType.VISA);
+        legacyRange("50", null, CardType.MAESTRO);
+        legacyRange("51", "55", CardType.MASTERCARD);
+        legacyRange("56", "59", CardType.MAESTRO);
+        legacyRange("6011", null, CardType.DISCOVER);
+        legacyRange("61", null, CardType.MAESTRO);
+        legacyRange("62", null, CardType.DISCOVER);
+        legacyRange("63", null, CardType.MAESTRO);
+        legacyRange("644", "649", CardType.DISCOVER);
+        legacyRange("65", null, CardType.DISCOVER);
+        legacyRange("66", "69", CardType.MAESTRO);
+        legacyRange("88", null, CardType.DISCOVER);
+    }
+
+    @Test
+    public void agreesWithRangeScan() {
+        for (int length = 1; length <= 5; length++) {
+            int end = (int) Math.pow(10, length);
+            for (int i = 0; i < end; i++) {
+                String number = String.format("%0" + length + "d", i);
+                assertEquals(number, legacyFromCardNumber(number), CardType.fromCardNumber(number));
+            }
+        }
+    }
+
+    @Test
+    public void trieVersusRangeScan() {
+        String[] keystrokes = keystrokes();
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            lookUpWithTrie(keystrokes);
+            lookUpWithRangeScan(keystrokes);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            lookUpWithTrie(keystrokes);
+        }
+        long trieNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            lookUpWithRangeScan(keystrokes);
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        long lookups = (long) MEASURED_ROUNDS * keystrokes.length;
+        Log.i(TAG, String.format("card type lookup, trie: %d ns, range scan: %d ns",
+                trieNanos / lookups, scanNanos / lookups));
+    }
+
+    // every prefix of every number, as DataEntryActivity sees them being typed
+    private static String[] keystrokes() {
+        int count = 0;
+        for (String number : NUMBERS) {
+            count += number.length();
+        }
+        String[] keystrokes = new String[count];
+        int i = 0;
+        for (String number : NUMBERS) {
+            for (int length = 1; length <= number.length(); length++) {
+                keystrokes[i++] = number.substring(0, length);
+            }
+        }
+        return keystrokes;
+    }
+
+    private static int lookUpWithTrie(String[] keystrokes) {
+        int result = 0;
+        for (String keystroke : keystrokes) {
+            result += CardType.fromCardNumber(keystroke).ordinal();
+        }
+        return result;
+    }
+
+    private static int lookUpWithRangeScan(String[] keystrokes) {
+        int result = 0;
+        for (String keystroke : keystrokes) {
+            result += legacyFromCardNumber(keystroke).ordinal();
+        }
+        return result;
+    }
+
+    private static void legacyRange(String start, String end, CardType type) {
+        LEGACY_RANGES.put(new String[] { start, end == null ? start : end }, type);
+    }
+
+    private static CardType legacyFromCardNumber(String numStr) {
+        HashSet<CardType> possibleCardTypes = new HashSet<>();
+        for (Map.Entry<String[], CardType> entry : LEGACY_RANGES.entrySet()) {
+            if (legacyIsNumberInInterval(numStr, entry.getKey()[0], entry.getKey()[1])) {
+                possibleCardTypes.add(entry.getValue());
+            }
+        }
+
+        if (possibleCardTypes.size() > 1) {
+            return CardType.INSUFFICIENT_DIGITS;
+        } else if (possibleCardTypes.size() == 1) {
+            return possibleCardTypes.iterator().next();
+        } else {
+            return CardType.UNKNOWN;
+        }
+    }
+
+    private static boolean legacyIsNumberInInterval(String number, String intervalStart,
+                                                    String intervalEnd) {
+        int numCompareStart = Math.min(number.length(), intervalStart.length());
+        int numCompareEnd = Math.min(number.length(), intervalEnd.length());
+
+        if (Integer.parseInt(number.substring(0, numCompareStart)) < Integer.parseInt(intervalStart
+                .substring(0, numCompareStart))) {
+            return false;
+        } else if (Integer.parseInt(number.substring(0, numCompareEnd)) > Integer
+                .parseInt(intervalEnd.substring(0, numCompareEnd))) {
+            return false;
+        }
+        return true;
+    }
+}
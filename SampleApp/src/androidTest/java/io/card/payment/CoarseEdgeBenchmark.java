@@ -0,0 +1,87 @@
+package io.card.payment;
+
+/* CoarseEdgeBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static io.card.payment.ScanBenchmarks.HEIGHT;
+import static io.card.payment.ScanBenchmarks.MEASURED_FRAMES;
+import static io.card.payment.ScanBenchmarks.WARMUP_FRAMES;
+import static io.card.payment.ScanBenchmarks.WIDTH;
+import static io.card.payment.ScanBenchmarks.averageMicros;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times edge detection with and without the coarse pass of
+ * {@link CardIOActivity#EXTRA_COARSE_EDGE_DETECTION}, on a frame without a card, and checks that
+ * the coarse pass still lets a frame with a card through.
+ */
+public class CoarseEdgeBenchmark {
+
+    private static final String TAG = CoarseEdgeBenchmark.class.getSimpleName();
+
+    // the compared context has the coarse pass
+    private ScanBenchmarks.ContextPair mContexts;
+    private byte[] mCardFrame;
+    private byte[] mNoCardFrame;
+
+    @Before
+    public void setUp() throws IOException {
+        mCardFrame = ScanBenchmarks.loadCardFrame();
+
+        // fine grained noise is sharp enough to get past the focus check, but has no edges
+        mNoCardFrame = new byte[WIDTH * HEIGHT * 3 / 2];
+        Random random = new Random(42);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            mNoCardFrame[i] = (byte) random.nextInt(256);
+        }
+        for (int i = WIDTH * HEIGHT; i < mNoCardFrame.length; i++) {
+            mNoCardFrame[i] = (byte) 128;
+        }
+
+        // detect only, so every frame with a card stops after the transform
+        mContexts = new ScanBenchmarks.ContextPair(true);
+        CardScanner.nSetCoarseEdges(mContexts.compared, true);
+    }
+
+    @After
+    public void tearDown() {
+        mContexts.cleanup();
+    }
+
+    @Test
+    public void cardIsStillFound() {
+        DetectionInfo full = new DetectionInfo();
+        ScanBenchmarks.scan(mContexts.baseline, mCardFrame, full, false);
+        DetectionInfo coarse = new DetectionInfo();
+        ScanBenchmarks.scan(mContexts.compared, mCardFrame, coarse, false);
+
+        assertEquals(full.detected(), coarse.detected());
+        assertEquals(0, CardScanner.nGetCoarseRejectCount(mContexts.compared));
+    }
+
+    @Test
+    public void noCardFrameTimes() {
+        long[] fullTotals = new long[ScanMetrics.STAGE_COUNT];
+        long[] coarseTotals = new long[ScanMetrics.STAGE_COUNT];
+        mContexts.timeStages(mNoCardFrame, fullTotals, coarseTotals, null);
+
+        Log.i(TAG, String.format("no card, deinterleave + detect edges: full %.1f us, coarse %.1f us"
+                        + " (%d of %d frames rejected by the coarse pass)",
+                averageMicros(fullTotals[ScanMetrics.STAGE_DEINTERLEAVE]
+                        + fullTotals[ScanMetrics.STAGE_DETECT_EDGES]),
+                averageMicros(coarseTotals[ScanMetrics.STAGE_DEINTERLEAVE]
+                        + coarseTotals[ScanMetrics.STAGE_DETECT_EDGES]),
+                CardScanner.nGetCoarseRejectCount(mContexts.compared),
+                WARMUP_FRAMES + MEASURED_FRAMES));
+    }
+}
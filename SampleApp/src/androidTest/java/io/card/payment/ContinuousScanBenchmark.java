@@ -0,0 +1,87 @@
+package io.card.payment;
+
+/* ContinuousScanBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.Assert.fail;
+
+/**
+ * Times reading card after card with a scanner set up for each card, and with one kept warm and
+ * only reset between cards, as in {@link CardIOActivity#EXTRA_CONTINUOUS_SCAN}.
+ */
+public class ContinuousScanBenchmark {
+
+    private static final String TAG = ContinuousScanBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_CARDS = 2;
+    private static final int MEASURED_CARDS = 20;
+    private static final int MAX_FRAMES_PER_CARD = 100;
+
+    private byte[] mFrame;
+
+    @Before
+    public void setUp() throws IOException {
+        mFrame = ScanBenchmarks.loadCardFrame();
+    }
+
+    @Test
+    public void coldVersusWarm() {
+        DetectionInfo dInfo = new DetectionInfo();
+        long coldTotal = 0;
+        long warmTotal = 0;
+        int coldFrames = 0;
+        int warmFrames = 0;
+
+        long warmContext = ScanBenchmarks.setUpContext(false);
+        try {
+            for (int i = 0; i < WARMUP_CARDS + MEASURED_CARDS; i++) {
+                boolean measured = i >= WARMUP_CARDS;
+
+                // interleaved, so thermal throttling affects both alike
+                long start = System.nanoTime();
+                long coldContext = ScanBenchmarks.setUpContext(false);
+                int frames = readCard(coldContext, dInfo);
+                CardScanner.nCleanup(coldContext);
+                if (measured) {
+                    coldTotal += System.nanoTime() - start;
+                    coldFrames += frames;
+                }
+
+                start = System.nanoTime();
+                CardScanner.nResetCard(warmContext);
+                frames = readCard(warmContext, dInfo);
+                if (measured) {
+                    warmTotal += System.nanoTime() - start;
+                    warmFrames += frames;
+                }
+            }
+        } finally {
+            CardScanner.nCleanup(warmContext);
+        }
+
+        Log.i(TAG, String.format("per card, set up each time: %.1f ms over %.1f frames, "
+                        + "kept warm: %.1f ms over %.1f frames",
+                coldTotal / 1e6 / MEASURED_CARDS, coldFrames / (double) MEASURED_CARDS,
+                warmTotal / 1e6 / MEASURED_CARDS, warmFrames / (double) MEASURED_CARDS));
+    }
+
+    // scans the frame until the card is read, and returns how many frames that took
+    private int readCard(long context, DetectionInfo dInfo) {
+        for (int frames = 1; frames <= MAX_FRAMES_PER_CARD; frames++) {
+            ScanBenchmarks.scan(context, mFrame, dInfo, true);
+            if (dInfo.predicted()) {
+                return frames;
+            }
+        }
+        fail("the card was never read");
+        return MAX_FRAMES_PER_CARD;
+    }
+}
@@ -0,0 +1,71 @@
+package io.card.payment;
+
+/* CornerTrackingBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static io.card.payment.ScanBenchmarks.MEASURED_FRAMES;
+import static io.card.payment.ScanBenchmarks.WARMUP_FRAMES;
+import static io.card.payment.ScanBenchmarks.averageMicros;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Times edge detection on a card held perfectly still, searched for in every frame and tracked
+ * with {@link CardIOActivity#EXTRA_CORNER_TRACKING}.
+ */
+public class CornerTrackingBenchmark {
+
+    private static final String TAG = CornerTrackingBenchmark.class.getSimpleName();
+
+    // the baseline searches every frame, the compared context tracks
+    private ScanBenchmarks.ContextPair mContexts;
+    private byte[] mFrame;
+
+    @Before
+    public void setUp() throws IOException {
+        mFrame = ScanBenchmarks.loadCardFrame();
+
+        // detect only, so every frame with a card stops after the transform
+        mContexts = new ScanBenchmarks.ContextPair(true);
+        CardScanner.nSetCornerTracking(mContexts.compared, true);
+    }
+
+    @After
+    public void tearDown() {
+        mContexts.cleanup();
+    }
+
+    @Test
+    public void searchedVersusTracked() {
+        long[] searchTotals = new long[ScanMetrics.STAGE_COUNT];
+        long[] trackingTotals = new long[ScanMetrics.STAGE_COUNT];
+        mContexts.timeStages(mFrame, searchTotals, trackingTotals,
+                new ScanBenchmarks.FrameCheck() {
+                    @Override
+                    public void check(long context, DetectionInfo dInfo) {
+                        if (context == mContexts.compared) {
+                            assertTrue("a tracked card must stay found", dInfo.detected());
+                        }
+                    }
+                });
+
+        int[] counts = new int[2];
+        CardScanner.nGetTrackingCounts(mContexts.compared, counts);
+        // a still card is never lost, so only the periodic searches aren't tracked
+        assertEquals(0, counts[1]);
+        assertTrue(counts[0] > (WARMUP_FRAMES + MEASURED_FRAMES) / 2);
+
+        Log.i(TAG, String.format("detect edges: searched %.1f us, tracked %.1f us (%d frames tracked)",
+                averageMicros(searchTotals[ScanMetrics.STAGE_DETECT_EDGES]),
+                averageMicros(trackingTotals[ScanMetrics.STAGE_DETECT_EDGES]), counts[0]));
+    }
+}
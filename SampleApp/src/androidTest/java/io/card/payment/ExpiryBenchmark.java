@@ -0,0 +1,137 @@
+package io.card.payment;
+
+/* ExpiryBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times checking expiry dates as they are typed against the <code>SimpleDateFormat</code> and
+ * <code>Calendar</code> based way it used to be done, which is kept here to compare with, on one
+ * thread and on several at once.
+ */
+public class ExpiryBenchmark {
+
+    private static final String TAG = ExpiryBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_RUNS = 2000;
+    private static final int MEASURED_RUNS = 20000;
+    private static final int THREADS = 4;
+
+    private static final String[] TYPED = { "1", "12", "12/", "12/3", "12/30", "01/2030", "13/30",
+            "12/99", };
+
+    @Test
+    public void typedDates() {
+        for (String text : TYPED) {
+            assertEquals(text, legacyIsDateValid(text), CreditCardNumber.isDateValid(text));
+        }
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            check(1, false);
+            check(1, true);
+        }
+
+        long start = System.nanoTime();
+        check(MEASURED_RUNS, false);
+        long parserNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        check(MEASURED_RUNS, true);
+        long legacyNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("typed dates, parser: %d ns, SimpleDateFormat: %d ns",
+                parserNanos / (MEASURED_RUNS * TYPED.length),
+                legacyNanos / (MEASURED_RUNS * TYPED.length)));
+    }
+
+    @Test
+    public void typedDatesOnSeveralThreads() throws InterruptedException {
+        long parserNanos = onThreads(false);
+        long legacyNanos = onThreads(true);
+
+        Log.i(TAG, String.format("typed dates on %d threads, parser: %d ns, "
+                        + "SimpleDateFormat: %d ns", THREADS,
+                parserNanos / (MEASURED_RUNS * TYPED.length),
+                legacyNanos / (MEASURED_RUNS * TYPED.length)));
+    }
+
+    private static long onThreads(final boolean legacy) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    check(WARMUP_RUNS, legacy);
+                    check(MEASURED_RUNS, legacy);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static int check(int runs, boolean legacy) {
+        int valid = 0;
+        for (int run = 0; run < runs; run++) {
+            for (String text : TYPED) {
+                if (legacy ? legacyIsDateValid(text) : CreditCardNumber.isDateValid(text)) {
+                    valid++;
+                }
+            }
+        }
+        return valid;
+    }
+
+    private static boolean legacyIsDateValid(String dateString) {
+        String digitsOnly = StringHelper.getDigitsOnlyString(dateString);
+        SimpleDateFormat validDate;
+        if (digitsOnly.length() == 4) {
+            validDate = new SimpleDateFormat("MMyy");
+        } else if (digitsOnly.length() == 6) {
+            validDate = new SimpleDateFormat("MMyyyy");
+        } else {
+            return false;
+        }
+        try {
+            validDate.setLenient(false);
+            Date enteredDate = validDate.parse(digitsOnly);
+            return legacyIsDateValid(enteredDate.getMonth() + 1, enteredDate.getYear() + 1900);
+        } catch (ParseException pe) {
+            return false;
+        }
+    }
+
+    private static boolean legacyIsDateValid(int expiryMonth, int expiryYear) {
+        if (expiryMonth < 1 || 12 < expiryMonth) {
+            return false;
+        }
+
+        Calendar now = Calendar.getInstance();
+        int thisYear = now.get(Calendar.YEAR);
+        int thisMonth = now.get(Calendar.MONTH) + 1;
+
+        if (expiryYear < thisYear) {
+            return false;
+        }
+        if (expiryYear == thisYear && expiryMonth < thisMonth) {
+            return false;
+        }
+        return expiryYear <= thisYear + CreditCard.EXPIRY_MAX_FUTURE_YEARS;
+    }
+}
@@ -0,0 +1,96 @@
+package io.card.payment;
+
+/* FrameAccessBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Compares the per-frame cost of handing a frame to the native scanner as a byte[] and as a direct
+ * {@link ByteBuffer}. The frame is blank, so the scanner stops after the focus score and the
+ * difference between the two timings is the JNI overhead.
+ */
+public class FrameAccessBenchmark {
+
+    private static final String TAG = FrameAccessBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_FRAMES = 50;
+    private static final int MEASURED_FRAMES = 500;
+
+    private CardScanner mScanner;
+
+    @Before
+    public void setUp() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mScanner = new CardScanner(new CardIOActivity(), CardScanner.ORIENTATION_PORTRAIT);
+                mScanner.useCamera = false;
+                mScanner.prepareScanner();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mScanner.endScanning();
+            }
+        });
+    }
+
+    @Test
+    public void byteArrayVersusDirectBuffer() {
+        int frameSize = mScanner.mPreviewWidth * mScanner.mPreviewHeight * 3 / 2;
+        byte[] arrayFrame = new byte[frameSize];
+        for (int i = 0; i < frameSize; i++) {
+            arrayFrame[i] = (byte) 128;
+        }
+
+        ByteBuffer directFrame = mScanner.obtainDirectFrameBuffer();
+        assertNotNull(directFrame);
+        directFrame.put(arrayFrame);
+        directFrame.rewind();
+
+        DetectionInfo arrayInfo = new DetectionInfo();
+        DetectionInfo directInfo = new DetectionInfo();
+
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            mScanner.scanFrame(arrayFrame, arrayInfo);
+            mScanner.scanFrame(directFrame, directInfo);
+        }
+
+        long arrayNanos = 0;
+        long directNanos = 0;
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            // interleaved, so thermal throttling affects both paths alike
+            long start = SystemClock.elapsedRealtimeNanos();
+            mScanner.scanFrame(arrayFrame, arrayInfo);
+            long middle = SystemClock.elapsedRealtimeNanos();
+            mScanner.scanFrame(directFrame, directInfo);
+            long end = SystemClock.elapsedRealtimeNanos();
+
+            arrayNanos += middle - start;
+            directNanos += end - middle;
+        }
+
+        assertEquals(arrayInfo.focusScore, directInfo.focusScore, 0.001f);
+
+        Log.i(TAG, String.format("byte[]: %.1f us/frame, direct ByteBuffer: %.1f us/frame",
+                arrayNanos / 1000.0 / MEASURED_FRAMES, directNanos / 1000.0 / MEASURED_FRAMES));
+    }
+}
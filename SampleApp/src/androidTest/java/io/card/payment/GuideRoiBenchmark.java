@@ -0,0 +1,59 @@
+package io.card.payment;
+
+/* GuideRoiBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static io.card.payment.ScanBenchmarks.averageMicros;
+
+/**
+ * Times each stage of the native scanner on a test card, with focus scored over the whole frame
+ * and over the guide frame region only.
+ */
+public class GuideRoiBenchmark {
+
+    private static final String TAG = GuideRoiBenchmark.class.getSimpleName();
+
+    private static final String[] STAGE_NAMES = {
+            "focus score", "deinterleave", "detect edges", "transform", "recognize", "render"
+    };
+
+    // the baseline scores focus over the whole frame, the compared context over the guide frame
+    private ScanBenchmarks.ContextPair mContexts;
+    private byte[] mFrame;
+
+    @Before
+    public void setUp() throws IOException {
+        mFrame = ScanBenchmarks.loadCardFrame();
+
+        // detect only, so every frame runs every stage up to the transform
+        mContexts = new ScanBenchmarks.ContextPair(true);
+        CardScanner.nSetGuideRoi(mContexts.compared, true);
+    }
+
+    @After
+    public void tearDown() {
+        mContexts.cleanup();
+    }
+
+    @Test
+    public void stageTimesWithAndWithoutGuideRoi() {
+        long[] fullFrameTotals = new long[ScanMetrics.STAGE_COUNT];
+        long[] guideRoiTotals = new long[ScanMetrics.STAGE_COUNT];
+        mContexts.timeStages(mFrame, fullFrameTotals, guideRoiTotals, null);
+
+        for (int stage = 0; stage < ScanMetrics.STAGE_COUNT; stage++) {
+            Log.i(TAG, String.format("%-12s full frame: %7.1f us, guide ROI: %7.1f us",
+                    STAGE_NAMES[stage], averageMicros(fullFrameTotals[stage]),
+                    averageMicros(guideRoiTotals[stage])));
+        }
+    }
+}
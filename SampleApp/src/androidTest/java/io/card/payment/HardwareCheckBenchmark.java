@@ -0,0 +1,74 @@
+package io.card.payment;
+
+/* HardwareCheckBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Times the hardware check at startup when it has to open the camera, and when
+ * {@link HardwareCapabilityCache} already has the answer from an earlier process.
+ */
+public class HardwareCheckBenchmark {
+
+    private static final String TAG = HardwareCheckBenchmark.class.getSimpleName();
+
+    private static final int RUNS = 10;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = getTargetContext();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // otherwise the camera can't be opened, and nothing is cached
+            ParcelFileDescriptor output = getInstrumentation().getUiAutomation().executeShellCommand(
+                    "pm grant " + mContext.getPackageName() + " android.permission.CAMERA");
+            output.close();
+        }
+        // the native libraries load once per process either way, so not as part of the check
+        CardScanner.processorSupported();
+    }
+
+    @After
+    public void tearDown() {
+        CardIOActivity.clearHardwareCapabilityCache(mContext);
+    }
+
+    @Test
+    public void probedVersusCached() {
+        long probedTotal = 0;
+        long cachedTotal = 0;
+        for (int i = 0; i < RUNS; i++) {
+            CardIOActivity.clearHardwareCapabilityCache(mContext);
+            long start = System.nanoTime();
+            boolean probed = Util.hardwareSupported(mContext, null);
+            probedTotal += System.nanoTime() - start;
+
+            // as in a new process
+            Util.forgetHardwareSupport();
+            start = System.nanoTime();
+            boolean cached = Util.hardwareSupported(mContext, null);
+            cachedTotal += System.nanoTime() - start;
+
+            assertEquals(probed, cached);
+        }
+
+        Log.i(TAG, String.format("hardware check, opening the camera: %.2f ms, cached: %.3f ms",
+                probedTotal / 1e6 / RUNS, cachedTotal / 1e6 / RUNS));
+    }
+}
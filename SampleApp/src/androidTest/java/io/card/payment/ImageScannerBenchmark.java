@@ -0,0 +1,71 @@
+package io.card.payment;
+
+/* ImageScannerBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Scans a batch of still images with {@link CardIOImageScanner}, on one thread and on all cores,
+ * and logs the throughput of both.
+ */
+public class ImageScannerBenchmark {
+
+    private static final String TAG = ImageScannerBenchmark.class.getSimpleName();
+
+    private static final int IMAGE_COUNT = 100;
+    private static final String AMEX_NUMBER = "374326005574998";
+
+    private Bitmap mCard;
+
+    @Before
+    public void setUp() throws IOException {
+        mCard = BitmapFactory.decodeStream(getInstrumentation().getContext().getAssets()
+                .open("test_card_images/amex.png"));
+    }
+
+    @Test
+    public void singleThread() throws Exception {
+        Log.i(TAG, String.format("1 thread: %.1f images/s", scanBatch(1)));
+    }
+
+    @Test
+    public void allCores() throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Log.i(TAG, String.format("%d threads: %.1f images/s", threads, scanBatch(threads)));
+    }
+
+    private double scanBatch(int threads) throws Exception {
+        CardIOImageScanner scanner = new CardIOImageScanner(threads, false);
+        try {
+            List<Future<CreditCard>> results = new ArrayList<>(IMAGE_COUNT);
+            for (int i = 0; i < IMAGE_COUNT; i++) {
+                results.add(scanner.scan(mCard));
+            }
+            for (Future<CreditCard> result : results) {
+                CreditCard card = result.get();
+                assertNotNull(card);
+                assertEquals(AMEX_NUMBER, card.cardNumber);
+            }
+            assertEquals(IMAGE_COUNT, scanner.getImagesScanned());
+            return scanner.getImagesPerSecond();
+        } finally {
+            scanner.shutdown();
+        }
+    }
+}
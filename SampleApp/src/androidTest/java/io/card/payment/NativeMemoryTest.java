@@ -0,0 +1,122 @@
+package io.card.payment;
+
+/* NativeMemoryTest.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Scans the same card image for a long session. Checks that the frame sized scratch images are
+ * allocated once rather than for every frame, and that the native heap doesn't leak.
+ */
+public class NativeMemoryTest {
+
+    private static final String TAG = NativeMemoryTest.class.getSimpleName();
+
+    private static final int WARMUP_FRAMES = 50;
+    private static final int MEASURED_FRAMES = 1000;
+
+    /** Leaves room for allocator noise, but not for a leaked 640x480 plane every few frames. */
+    private static final long MAX_NATIVE_HEAP_GROWTH = 2 * 1024 * 1024;
+
+    private CardScanner mScanner;
+
+    @Before
+    public void setUp() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mScanner = new CardScanner(new CardIOActivity(), CardScanner.ORIENTATION_PORTRAIT);
+                mScanner.useCamera = false;
+                mScanner.prepareScanner();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mScanner.endScanning();
+            }
+        });
+    }
+
+    private static Bitmap cardImage() throws IOException {
+        return BitmapFactory.decodeStream(getInstrumentation().getContext().getAssets()
+                .open("test_card_images/amex.png"));
+    }
+
+    @Test
+    public void scratchImagesAreAllocatedOnce() throws IOException {
+        Bitmap bitmap = cardImage();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] frame = CardScannerTester.getNV21FormattedImage(width, height, bitmap);
+
+        long context = CardScanner.nSetup(false, CardScanner.MIN_FOCUS_SCORE,
+                CardScanner.DEFAULT_UNBLUR_DIGITS, width, height);
+        try {
+            // sized for the frame geometry up front
+            assertEquals(1, CardScanner.nGetScratchAllocations(context));
+
+            DetectionInfo dInfo = new DetectionInfo();
+            for (int i = 0; i < MEASURED_FRAMES; i++) {
+                dInfo.reset();
+                CardScanner.nScanFrame(context, frame, width, height,
+                        CardScanner.ORIENTATION_PORTRAIT, dInfo, null, true,
+                        CardScanner.RENDER_NEVER);
+            }
+            assertEquals(1, CardScanner.nGetScratchAllocations(context));
+        } finally {
+            CardScanner.nCleanup(context);
+        }
+    }
+
+    /**
+     * A leak check: the native heap must not keep growing over a long session. Freeing every
+     * per-frame allocation would pass this too, {@link #scratchImagesAreAllocatedOnce} is what
+     * checks that they aren't made.
+     */
+    @Test
+    public void nativeHeapDoesNotLeakOverLongSession() throws IOException {
+        Bitmap bitmap = cardImage();
+        byte[] frame = CardScannerTester.getNV21FormattedImage(bitmap.getWidth(),
+                bitmap.getHeight(), bitmap);
+
+        DetectionInfo dInfo = new DetectionInfo();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            dInfo.reset();
+            mScanner.scanFrame(frame, dInfo);
+        }
+
+        Log.i(TAG, "before: " + Util.getNativeMemoryStats());
+        long allocatedBefore = Debug.getNativeHeapAllocatedSize();
+
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            dInfo.reset();
+            mScanner.scanFrame(frame, dInfo);
+        }
+
+        long growth = Debug.getNativeHeapAllocatedSize() - allocatedBefore;
+        Log.i(TAG, "after: " + Util.getNativeMemoryStats() + ", growth " + growth + " bytes");
+
+        assertTrue("native heap grew by " + growth + " bytes over " + MEASURED_FRAMES + " frames",
+                growth < MAX_NATIVE_HEAP_GROWTH);
+    }
+}
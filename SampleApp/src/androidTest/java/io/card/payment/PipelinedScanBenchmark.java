@@ -0,0 +1,139 @@
+package io.card.payment;
+
+/* PipelinedScanBenchmark.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static io.card.payment.ScanBenchmarks.HEIGHT;
+import static io.card.payment.ScanBenchmarks.MEASURED_FRAMES;
+import static io.card.payment.ScanBenchmarks.WARMUP_FRAMES;
+import static io.card.payment.ScanBenchmarks.WIDTH;
+
+/**
+ * Compares how many frames per second get through the native scanner when each frame is detected
+ * and recognized on one thread, and when recognition runs on a second thread as in
+ * {@link CardIOActivity#EXTRA_PIPELINED_SCAN}.
+ */
+public class PipelinedScanBenchmark {
+
+    private static final String TAG = PipelinedScanBenchmark.class.getSimpleName();
+
+    private long mContext;
+    private byte[] mFrame;
+
+    @Before
+    public void setUp() throws IOException {
+        mFrame = ScanBenchmarks.loadCardFrame();
+        mContext = ScanBenchmarks.setUpContext(false);
+    }
+
+    @After
+    public void tearDown() {
+        CardScanner.nCleanup(mContext);
+    }
+
+    @Test
+    public void serialVersusPipelined() throws InterruptedException {
+        DetectionInfo dInfo = new DetectionInfo();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            ScanBenchmarks.scan(mContext, mFrame, dInfo, true);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            ScanBenchmarks.scan(mContext, mFrame, dInfo, true);
+        }
+        double serialFps = MEASURED_FRAMES * 1e9 / (System.nanoTime() - start);
+
+        CardScanner.nResetAnalytics(mContext);
+        double pipelinedFps = runPipelined();
+
+        Log.i(TAG, String.format("serial: %.1f fps, pipelined: %.1f fps recognized", serialFps,
+                pipelinedFps));
+    }
+
+    // detects on this thread and recognizes on another, the way CardScanner does
+    private double runPipelined() throws InterruptedException {
+        final CardCropQueue.Crop[] crops =
+                new CardCropQueue.Crop[CardScanner.PIPELINE_QUEUE_CAPACITY + 2];
+        for (int i = 0; i < crops.length; i++) {
+            crops[i] = new CardCropQueue.Crop(CardScanner.nCreateCrop());
+        }
+        final CardCropQueue queue = new CardCropQueue(crops, CardScanner.PIPELINE_QUEUE_CAPACITY);
+        final int[] recognized = new int[1];
+
+        Thread recognizer = new Thread("benchmark recognizer") {
+            @Override
+            public void run() {
+                DetectionInfo dInfo = new DetectionInfo();
+                while (true) {
+                    CardCropQueue.Crop crop;
+                    try {
+                        crop = queue.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    dInfo.reset();
+                    CardScanner.nRecognizeCrop(mContext, crop.handle, dInfo, null, true,
+                            CardScanner.RENDER_NEVER);
+                    queue.recycle(crop);
+                    synchronized (recognized) {
+                        recognized[0]++;
+                        recognized.notify();
+                    }
+                }
+            }
+        };
+        recognizer.start();
+
+        DetectionInfo dInfo = new DetectionInfo();
+        long start = 0;
+        int recognizedBefore = 0;
+        int detected = 0;
+        for (int i = 0; i < WARMUP_FRAMES + MEASURED_FRAMES; i++) {
+            if (i == WARMUP_FRAMES) {
+                start = System.nanoTime();
+                synchronized (recognized) {
+                    recognizedBefore = recognized[0];
+                }
+            }
+            dInfo.reset();
+            CardCropQueue.Crop crop = queue.obtain();
+            if (CardScanner.nDetectFrame(mContext, mFrame, WIDTH, HEIGHT,
+                    CardScanner.ORIENTATION_PORTRAIT, dInfo, crop.handle)) {
+                detected++;
+                queue.publish(crop);
+            } else {
+                queue.recycle(crop);
+            }
+        }
+        // done once the crops still queued are recognized too
+        int expected = detected - queue.getCropsDropped();
+        int measured;
+        synchronized (recognized) {
+            while (recognized[0] < expected) {
+                recognized.wait();
+            }
+            measured = recognized[0] - recognizedBefore;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        recognizer.interrupt();
+        recognizer.join();
+        for (CardCropQueue.Crop crop : crops) {
+            CardScanner.nReleaseCrop(crop.handle);
+        }
+        Log.i(TAG, String.format("%d of %d frames had a card, %d of those dropped", detected,
+                WARMUP_FRAMES + MEASURED_FRAMES, queue.getCropsDropped()));
+        // only frames that made it all the way through count
+        return measured * 1e9 / elapsed;
+    }
+}
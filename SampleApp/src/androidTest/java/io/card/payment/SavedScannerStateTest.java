@@ -0,0 +1,81 @@
+package io.card.payment;
+
+/* SavedScannerStateTest.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that what nSaveState writes out of a scanner context, for a scan interrupted by the
+ * process going away, is what nRestoreState carries on with in a new one.
+ */
+public class SavedScannerStateTest {
+
+    // few enough for the card not to be read yet
+    private static final int SCANNED_FRAMES = 2;
+
+    private long mScanned;
+    private long mRestored;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] frame = ScanBenchmarks.loadCardFrame();
+        mScanned = ScanBenchmarks.setUpContext(false);
+        mRestored = ScanBenchmarks.setUpContext(false);
+
+        DetectionInfo dInfo = new DetectionInfo();
+        for (int i = 0; i < SCANNED_FRAMES; i++) {
+            ScanBenchmarks.scan(mScanned, frame, dInfo, false);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        CardScanner.nCleanup(mScanned);
+        CardScanner.nCleanup(mRestored);
+    }
+
+    @Test
+    public void restoredState_isTheOneSaved() {
+        byte[] fresh = CardScanner.nSaveState(mRestored);
+        byte[] saved = CardScanner.nSaveState(mScanned);
+        assertNotNull(saved);
+        assertFalse("scanning must leave evidence to save", Arrays.equals(fresh, saved));
+
+        assertTrue(CardScanner.nRestoreState(mRestored, saved));
+        assertTrue(Arrays.equals(saved, CardScanner.nSaveState(mRestored)));
+    }
+
+    @Test
+    public void damagedState_isIgnored() {
+        byte[] fresh = CardScanner.nSaveState(mRestored);
+        byte[] saved = CardScanner.nSaveState(mScanned);
+
+        assertFalse(CardScanner.nRestoreState(mRestored, Arrays.copyOf(saved, saved.length - 1)));
+        saved[0]++;
+        assertFalse(CardScanner.nRestoreState(mRestored, saved));
+        assertTrue(Arrays.equals(fresh, CardScanner.nSaveState(mRestored)));
+    }
+
+    @Test
+    public void detectOnlyScanner_hasNoState() {
+        long detectOnly = ScanBenchmarks.setUpContext(true);
+        try {
+            assertNull(CardScanner.nSaveState(detectOnly));
+            assertFalse(CardScanner.nRestoreState(detectOnly, CardScanner.nSaveState(mScanned)));
+        } finally {
+            CardScanner.nCleanup(detectOnly);
+        }
+    }
+}
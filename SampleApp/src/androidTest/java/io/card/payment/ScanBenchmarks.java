@@ -0,0 +1,117 @@
+package io.card.payment;
+
+/* ScanBenchmarks.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+
+/**
+ * What the native scanner benchmarks have in common: the test card as a preview frame, scanner
+ * contexts set up for it, and a timing loop comparing a pair of them.
+ */
+final class ScanBenchmarks {
+
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+
+    static final int WARMUP_FRAMES = 20;
+    static final int MEASURED_FRAMES = 300;
+
+    private ScanBenchmarks() {
+    }
+
+    /**
+     * @return the test card as an NV21 frame of {@link #WIDTH} by {@link #HEIGHT}.
+     */
+    static byte[] loadCardFrame() throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeStream(getInstrumentation().getContext().getAssets()
+                .open("test_card_images/amex.png"));
+        return CardScannerTester.getNV21FormattedImage(bitmap.getWidth(), bitmap.getHeight(),
+                bitmap);
+    }
+
+    static long setUpContext(boolean detectOnly) {
+        return CardScanner.nSetup(detectOnly, CardScanner.MIN_FOCUS_SCORE,
+                CardScanner.DEFAULT_UNBLUR_DIGITS, WIDTH, HEIGHT);
+    }
+
+    static void scan(long context, byte[] frame, DetectionInfo dInfo, boolean scanExpiry) {
+        dInfo.reset();
+        CardScanner.nScanFrame(context, frame, WIDTH, HEIGHT, CardScanner.ORIENTATION_PORTRAIT,
+                dInfo, null, scanExpiry, CardScanner.RENDER_NEVER);
+    }
+
+    /**
+     * @return the average of a total over {@link #MEASURED_FRAMES} frames, in microseconds.
+     */
+    static double averageMicros(long totalNanos) {
+        return totalNanos / 1000.0 / MEASURED_FRAMES;
+    }
+
+    /**
+     * Called for every frame a {@link ContextPair} scans.
+     */
+    interface FrameCheck {
+        void check(long context, DetectionInfo dInfo);
+    }
+
+    /**
+     * Two scanner contexts set up alike, for the benchmark to switch an option on in
+     * {@link #compared} and compare it with {@link #baseline}.
+     */
+    static final class ContextPair {
+        final long baseline;
+        final long compared;
+
+        ContextPair(boolean detectOnly) {
+            baseline = setUpContext(detectOnly);
+            compared = setUpContext(detectOnly);
+        }
+
+        void cleanup() {
+            CardScanner.nCleanup(baseline);
+            CardScanner.nCleanup(compared);
+        }
+
+        /**
+         * Scans the frame with both contexts, {@link #WARMUP_FRAMES} times and then
+         * {@link #MEASURED_FRAMES} times, and adds the measured stage times of each to its totals,
+         * which are indexed by ScanMetrics.STAGE_*.
+         */
+        void timeStages(byte[] frame, long[] baselineTotals, long[] comparedTotals,
+                        FrameCheck check) {
+            DetectionInfo dInfo = new DetectionInfo();
+            long[] stageNanos = new long[ScanMetrics.STAGE_COUNT];
+
+            for (int i = 0; i < WARMUP_FRAMES + MEASURED_FRAMES; i++) {
+                boolean measured = i >= WARMUP_FRAMES;
+                // interleaved, so thermal throttling affects both alike
+                timeStages(baseline, frame, dInfo, stageNanos, measured ? baselineTotals : null,
+                        check);
+                timeStages(compared, frame, dInfo, stageNanos, measured ? comparedTotals : null,
+                        check);
+            }
+        }
+
+        private static void timeStages(long context, byte[] frame, DetectionInfo dInfo,
+                                       long[] stageNanos, long[] totals, FrameCheck check) {
+            scan(context, frame, dInfo, false);
+            if (check != null) {
+                check.check(context, dInfo);
+            }
+            if (totals == null) {
+                return;
+            }
+            CardScanner.nGetStageTimes(context, stageNanos);
+            for (int stage = 0; stage < ScanMetrics.STAGE_COUNT; stage++) {
+                totals[stage] += stageNanos[stage];
+            }
+        }
+    }
+}
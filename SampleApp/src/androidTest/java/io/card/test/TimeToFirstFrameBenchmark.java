@@ -0,0 +1,110 @@
+package io.card.test;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.card.payment.CardIOActivity;
+import io.card.payment.ScanEvent;
+import io.card.payment.ScanEventListener;
+
+import static android.support.test.InstrumentationRegistry.getInstrumentation;
+import static android.support.test.InstrumentationRegistry.getTargetContext;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Times starting {@link CardIOActivity} up to the first camera frame, with the real camera. The
+ * first launch is cold: the native libraries are loaded and the hardware is checked for the
+ * first time in the process. Run this on its own for that to hold. The launches after it are
+ * warm.
+ */
+public class TimeToFirstFrameBenchmark {
+
+    private static final String TAG = TimeToFirstFrameBenchmark.class.getSimpleName();
+
+    private static final int WARM_LAUNCHES = 5;
+    private static final long FIRST_FRAME_TIMEOUT_MS = 10000;
+
+    @Before
+    public void setUp() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // no permission dialog, which would hold up the first frame
+            ParcelFileDescriptor output = getInstrumentation().getUiAutomation().executeShellCommand(
+                    "pm grant " + getTargetContext().getPackageName()
+                            + " android.permission.CAMERA");
+            output.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        CardIOActivity.setScanEventListener(null);
+    }
+
+    @Test
+    public void coldAndWarmStart() throws InterruptedException {
+        long coldMs = launchUntilFirstFrame();
+
+        long warmTotalMs = 0;
+        long warmMaxMs = 0;
+        for (int i = 0; i < WARM_LAUNCHES; i++) {
+            long warmMs = launchUntilFirstFrame();
+            warmTotalMs += warmMs;
+            warmMaxMs = Math.max(warmMaxMs, warmMs);
+        }
+
+        Log.i(TAG, String.format("time to first frame, cold: %d ms, warm: %d ms average, %d ms max",
+                coldMs, warmTotalMs / WARM_LAUNCHES, warmMaxMs));
+    }
+
+    private long launchUntilFirstFrame() throws InterruptedException {
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        final long[] firstFrameAt = new long[1];
+        CardIOActivity.setScanEventListener(new ScanEventListener() {
+            @Override
+            public void onScanEvent(ScanEvent event) {
+                if (firstFrame.getCount() > 0) {
+                    firstFrameAt[0] = event.getTimestampNanos();
+                    firstFrame.countDown();
+                }
+            }
+        });
+
+        Intent intent = new Intent(getTargetContext(), CardIOActivity.class)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        long start = System.nanoTime();
+        final Activity activity = getInstrumentation().startActivitySync(intent);
+        try {
+            assertTrue("no camera frame within " + FIRST_FRAME_TIMEOUT_MS + " ms",
+                    firstFrame.await(FIRST_FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            finishAndWait(activity);
+        }
+        return (firstFrameAt[0] - start) / 1000000;
+    }
+
+    // so the camera is free again for the next launch
+    private static void finishAndWait(final Activity activity) throws InterruptedException {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        long endTime = System.currentTimeMillis() + FIRST_FRAME_TIMEOUT_MS;
+        while (!activity.isDestroyed() && System.currentTimeMillis() < endTime) {
+            Thread.sleep(20);
+        }
+        getInstrumentation().waitForIdleSync();
+    }
+}
@@ -0,0 +1,77 @@
+package io.card.payment;
+
+/* BinInfo.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * What a {@link BinTable} knows about the range a card number falls in. The fields are read from
+ * the table when asked for, rather than copied out of it, so a single instance can be passed to
+ * {@link BinTable#lookup(CharSequence, BinInfo)} over and over without creating anything.
+ */
+public final class BinInfo {
+    /**
+     * Whether cards in the range are credit, debit or prepaid isn't known.
+     */
+    public static final int PRODUCT_UNKNOWN = 0;
+    public static final int PRODUCT_CREDIT = 1;
+    public static final int PRODUCT_DEBIT = 2;
+    public static final int PRODUCT_PREPAID = 3;
+
+    private BinTable mTable;
+    private int mRecord;
+
+    /**
+     * Creates an empty instance, to be filled in by {@link BinTable#lookup(CharSequence, BinInfo)}.
+     */
+    public BinInfo() {
+    }
+
+    void set(BinTable table, int record) {
+        mTable = table;
+        mRecord = record;
+    }
+
+    /**
+     * @return the card type, or {@link CardType#UNKNOWN} for a network card.io doesn't know.
+     */
+    public CardType getCardType() {
+        return mTable.cardType(mRecord);
+    }
+
+    /**
+     * @return one of the <code>PRODUCT_</code> constants.
+     */
+    public int getProduct() {
+        return mTable.product(mRecord);
+    }
+
+    /**
+     * @return the two letter ISO 3166-1 code of the issuer's country, or <code>null</code> if not
+     * known.
+     */
+    public String getCountry() {
+        return mTable.country(mRecord);
+    }
+
+    /**
+     * @return the name of the issuer, or <code>null</code> if not known.
+     */
+    public String getIssuer() {
+        return mTable.issuer(mRecord);
+    }
+
+    /**
+     * @return the fewest digits a card number in the range has, or 0 if not known.
+     */
+    public int getMinLength() {
+        return mTable.minLength(mRecord);
+    }
+
+    /**
+     * @return the most digits a card number in the range has, or 0 if not known.
+     */
+    public int getMaxLength() {
+        return mTable.maxLength(mRecord);
+    }
+}
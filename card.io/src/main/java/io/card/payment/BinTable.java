@@ -0,0 +1,283 @@
+package io.card.payment;
+
+/* BinTable.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A table of card number (BIN/IIN) ranges with what is known about the cards in each: the type,
+ * whether they are credit, debit or prepaid, the issuer and its country, and how long their
+ * numbers are. This goes beyond what {@link CardType#fromCardNumber(String)} can tell from the
+ * handful of ranges built into card.io.
+ * <p/>
+ * Tables are generated from CSV ahead of time, by the <code>binTable</code> Gradle task. The table is memory
+ * mapped rather than read in, so opening one costs the same however large it is, only the pages
+ * a lookup touches are ever loaded, and none of it is held on the Java heap. A lookup is a binary
+ * search over the ranges, which don't overlap, and creates nothing.
+ * <p/>
+ * A table can be shared between threads.
+ */
+public final class BinTable {
+    // "CIOB"
+    static final int MAGIC = 0x43494f42;
+    static final int VERSION = 1;
+
+    /**
+     * The header is the magic number, the version, the number of ranges and where the issuer
+     * names start, as big-endian ints. The ranges follow, sorted, and then the names.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Each range is its first and last key, the issuer name's offset from the start of the names
+     * (or {@link #NO_ISSUER}), then the type code, product and the shortest and longest number
+     * length as a byte each, two ASCII bytes of country code, and two bytes of padding.
+     */
+    static final int RECORD_SIZE = 20;
+    private static final int RANGE_START = 0;
+    private static final int RANGE_END = 4;
+    private static final int ISSUER = 8;
+    private static final int TYPE = 12;
+    private static final int PRODUCT = 13;
+    private static final int MIN_LENGTH = 14;
+    private static final int MAX_LENGTH = 15;
+    private static final int COUNTRY = 16;
+
+    static final int NO_ISSUER = -1;
+
+    /**
+     * Ranges are keyed by the first this many digits of a card number. Shorter range boundaries
+     * are padded out to it.
+     */
+    static final int KEY_DIGITS = CardTypeTrie.MAX_PREFIX_DIGITS;
+
+    /**
+     * The card types by their code in a table. Codes are kept apart from the ordinals of
+     * {@link CardType}, so that tables keep working if it changes.
+     */
+    static final CardType[] CARD_TYPES = { CardType.UNKNOWN, CardType.AMEX, CardType.DINERSCLUB,
+            CardType.DISCOVER, CardType.JCB, CardType.MASTERCARD, CardType.VISA,
+            CardType.MAESTRO, };
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mIssuersOffset;
+
+    BinTable(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a card.io BIN table");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported BIN table version " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(8);
+        mIssuersOffset = buffer.getInt(12);
+        if (mCount < 0 || mIssuersOffset != HEADER_SIZE + (long) mCount * RECORD_SIZE
+                || mIssuersOffset > buffer.capacity()) {
+            throw new IOException("BIN table is truncated or corrupt");
+        }
+        mBuffer = buffer;
+    }
+
+    /**
+     * Maps a table from a file.
+     */
+    public static BinTable open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // the mapping outlives the file being closed
+            return new BinTable(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Maps a table from the app's assets. The asset has to be stored uncompressed to be mapped,
+     * which takes <code>aaptOptions { noCompress "bin" }</code> in the app's build.gradle for a
+     * table named <code>*.bin</code>.
+     */
+    public static BinTable openAsset(Context context, String assetName) throws IOException {
+        AssetFileDescriptor fd;
+        try {
+            fd = context.getAssets().openFd(assetName);
+        } catch (FileNotFoundException e) {
+            IOException notMappable = new IOException("Can't map asset " + assetName
+                    + ". Check that it exists and isn't compressed.");
+            notMappable.initCause(e);
+            throw notMappable;
+        }
+        try {
+            FileInputStream in = fd.createInputStream();
+            try {
+                return new BinTable(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        fd.getStartOffset(), fd.getLength()));
+            } finally {
+                in.close();
+            }
+        } finally {
+            fd.close();
+        }
+    }
+
+    /**
+     * @return the number of ranges in the table.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Looks up the range a card number falls in.
+     *
+     * @param digits the card number, or as much of it as is known, made of digits only. Only the
+     *               first 8 digits are looked at.
+     * @param result filled in with the range, if one is found.
+     * @return whether the number is known to be in a range. A number that is too short to tell
+     * which of several ranges it falls in isn't.
+     */
+    public boolean lookup(CharSequence digits, BinInfo result) {
+        int length = Math.min(digits.length(), KEY_DIGITS);
+        int prefix = 0;
+        for (int i = 0; i < length; i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            prefix = prefix * 10 + (c - '0');
+        }
+        return find(prefix, length, result);
+    }
+
+    /**
+     * Like {@link #lookup(CharSequence, BinInfo)}, but for the first <code>length</code> digits
+     * of a number given as values from 0 to 9.
+     */
+    boolean lookup(int[] digits, int length, BinInfo result) {
+        length = Math.min(length, KEY_DIGITS);
+        int prefix = 0;
+        for (int i = 0; i < length; i++) {
+            if (digits[i] < 0 || digits[i] > 9) {
+                return false;
+            }
+            prefix = prefix * 10 + digits[i];
+        }
+        return find(prefix, length, result);
+    }
+
+    /**
+     * @return the range the card number falls in, or <code>null</code> if it isn't known to be
+     * in one.
+     * @see #lookup(CharSequence, BinInfo)
+     */
+    public BinInfo lookup(CharSequence digits) {
+        BinInfo result = new BinInfo();
+        return lookup(digits, result) ? result : null;
+    }
+
+    private boolean find(int prefix, int length, BinInfo result) {
+        if (length == 0) {
+            return false;
+        }
+        // the keys of every number starting with the prefix
+        int span = 1;
+        for (int i = length; i < KEY_DIGITS; i++) {
+            span *= 10;
+        }
+        int low = prefix * span;
+        int high = low + span - 1;
+
+        // the last range starting at or before low
+        int found = -1;
+        int first = 0;
+        int last = mCount - 1;
+        while (first <= last) {
+            int mid = (first + last) >>> 1;
+            if (mBuffer.getInt(recordOffset(mid) + RANGE_START) <= low) {
+                found = mid;
+                first = mid + 1;
+            } else {
+                last = mid - 1;
+            }
+        }
+        if (found < 0 || mBuffer.getInt(recordOffset(found) + RANGE_END) < high) {
+            return false;
+        }
+        result.set(this, found);
+        return true;
+    }
+
+    private static int recordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    static int typeCode(CardType type) {
+        for (int i = 0; i < CARD_TYPES.length; i++) {
+            if (CARD_TYPES[i] == type) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    CardType cardType(int record) {
+        int code = mBuffer.get(recordOffset(record) + TYPE) & 0xff;
+        return code < CARD_TYPES.length ? CARD_TYPES[code] : CardType.UNKNOWN;
+    }
+
+    int product(int record) {
+        return mBuffer.get(recordOffset(record) + PRODUCT) & 0xff;
+    }
+
+    int minLength(int record) {
+        return mBuffer.get(recordOffset(record) + MIN_LENGTH) & 0xff;
+    }
+
+    int maxLength(int record) {
+        return mBuffer.get(recordOffset(record) + MAX_LENGTH) & 0xff;
+    }
+
+    String country(int record) {
+        int offset = recordOffset(record) + COUNTRY;
+        if (mBuffer.get(offset) == 0) {
+            return null;
+        }
+        return new String(new char[] { (char) mBuffer.get(offset),
+                (char) mBuffer.get(offset + 1) });
+    }
+
+    /**
+     * Issuer names are stored once each, as a big-endian unsigned short byte count followed by
+     * that many bytes of UTF-8.
+     */
+    String issuer(int record) {
+        int nameOffset = mBuffer.getInt(recordOffset(record) + ISSUER);
+        if (nameOffset == NO_ISSUER) {
+            return null;
+        }
+        int offset = mIssuersOffset + nameOffset;
+        byte[] bytes = new byte[mBuffer.getShort(offset) & 0xffff];
+        // absolute reads only, as the buffer's position is shared by every thread
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(offset + 2 + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
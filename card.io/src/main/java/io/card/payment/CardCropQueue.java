@@ -0,0 +1,114 @@
+package io.card.payment;
+
+/* CardCropQueue.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The bounded queue between the two threads of the pipelined scan, see
+ * {@link CardIOActivity#EXTRA_PIPELINED_SCAN}: the detecting thread fills crops of the cards it
+ * finds, and the recognizing thread reads them.
+ * <p/>
+ * There are exactly enough crops for one being filled, one being read and a full queue, so the
+ * detecting thread never waits for a crop. When the recognizing thread falls behind, the oldest
+ * queued crop is dropped for the newest one, just like camera frames are.
+ */
+class CardCropQueue {
+
+    /**
+     * A native crop of a card found by {@link CardScanner#nDetectFrame}, along with what the
+     * detecting thread saw of the frame it came from.
+     */
+    static final class Crop {
+        final long handle;
+        float focusScore;
+        int edgeFlags;
+
+        Crop(long handle) {
+            this.handle = handle;
+        }
+    }
+
+    private final Crop[] mCrops;
+    private final ArrayBlockingQueue<Crop> mFree;
+    private final ArrayBlockingQueue<Crop> mQueued;
+    private volatile int mCropsDropped;
+
+    /**
+     * @param crops <code>capacity + 2</code> crops, which stay owned by the caller.
+     */
+    CardCropQueue(Crop[] crops, int capacity) {
+        if (crops.length != capacity + 2) {
+            throw new IllegalArgumentException("need " + (capacity + 2) + " crops, got " + crops.length);
+        }
+        mCrops = crops;
+        mFree = new ArrayBlockingQueue<>(crops.length);
+        mQueued = new ArrayBlockingQueue<>(capacity);
+        for (Crop crop : crops) {
+            mFree.add(crop);
+        }
+    }
+
+    /**
+     * @return a crop to detect into. Detecting thread only.
+     */
+    Crop obtain() {
+        return mFree.poll();
+    }
+
+    /**
+     * Queues a crop with a card in it for recognition, dropping the oldest one if the queue is
+     * full. Detecting thread only.
+     */
+    void publish(Crop crop) {
+        while (!mQueued.offer(crop)) {
+            Crop oldest = mQueued.poll();
+            if (oldest != null) {
+                mFree.add(oldest);
+                mCropsDropped++;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next crop to recognize. Recognizing thread only.
+     */
+    Crop take() throws InterruptedException {
+        return mQueued.take();
+    }
+
+    /**
+     * Hands back a crop from {@link #obtain()} that had no card, or one from {@link #take()} once
+     * it has been recognized.
+     */
+    void recycle(Crop crop) {
+        mFree.add(crop);
+    }
+
+    /**
+     * Drops every queued crop, when scanning pauses or resumes.
+     */
+    void clear() {
+        Crop crop;
+        while ((crop = mQueued.poll()) != null) {
+            mFree.add(crop);
+        }
+    }
+
+    /**
+     * @return the crops dropped because the recognizing thread was behind.
+     */
+    int getCropsDropped() {
+        return mCropsDropped;
+    }
+
+    void resetCropsDropped() {
+        mCropsDropped = 0;
+    }
+
+    Crop[] getCrops() {
+        return mCrops;
+    }
+}
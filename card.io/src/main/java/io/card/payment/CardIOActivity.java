@@ -17,10 +17,12 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.hardware.Camera;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.util.Log;
 import android.view.Gravity;
@@ -42,6 +44,7 @@ import android.widget.Toast;
 import java.io.ByteArrayInputStream;
 import java.lang.reflect.Constructor;
 import java.util.Date;
+import java.util.Random;
 
 import io.card.payment.i18n.LocalizedStrings;
 import io.card.payment.i18n.StringKey;
@@ -220,6 +223,123 @@ public final class CardIOActivity extends Activity {
      */
     public static final String EXTRA_KEEP_APPLICATION_THEME = "io.card.payment.keepApplicationTheme";
 
+    /**
+     * Integer extra. Optional. Defaults to <code>3</code>. The number of preview buffers handed to the
+     * camera, between <code>1</code> and <code>8</code>. More buffers let the camera keep delivering
+     * frames while earlier ones are still being scanned, at the cost of one preview frame of memory
+     * (about 460 KB) each.
+     */
+    public static final String EXTRA_PREVIEW_BUFFER_COUNT = "io.card.payment.previewBufferCount";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>true</code>. If set, camera frames are scanned on a
+     * dedicated background thread rather than on the main thread, so drawing the overlay does not
+     * hold up scanning.
+     */
+    public static final String EXTRA_SCAN_ON_BACKGROUND_THREAD = "io.card.payment.scanOnBackgroundThread";
+
+    /**
+     * Integer extra. Optional. Defaults to {@link #CARD_IMAGE_RENDER_ON_COMPLETION}. When the scanner
+     * renders the color image of the card, which is far more expensive than recognizing it. One of
+     * {@link #CARD_IMAGE_RENDER_NEVER}, {@link #CARD_IMAGE_RENDER_ON_COMPLETION} or
+     * {@link #CARD_IMAGE_RENDER_THROTTLED}.
+     */
+    public static final String EXTRA_CARD_IMAGE_RENDER_MODE = "io.card.payment.cardImageRenderMode";
+
+    /**
+     * Integer extra. Optional. Defaults to <code>5</code>. The maximum number of times per second the
+     * card image shown in the guide frame is refreshed while a card is in view, when
+     * {@link #EXTRA_CARD_IMAGE_RENDER_MODE} is {@link #CARD_IMAGE_RENDER_THROTTLED}.
+     */
+    public static final String EXTRA_CARD_IMAGE_RENDER_RATE = "io.card.payment.cardImageRenderRate";
+
+    /**
+     * Integer extra. Optional. Defaults to <code>15</code>. The maximum number of times per second the
+     * guide frame is redrawn because the detected card edges changed. Faster changes are coalesced
+     * into the latest edges. <code>0</code> disables the limit.
+     */
+    public static final String EXTRA_MAX_EDGE_UPDATE_RATE = "io.card.payment.maxEdgeUpdateRate";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, the focus of camera frames is
+     * judged from the region under the guide frame only, rather than from the whole frame.
+     */
+    public static final String EXTRA_GUIDE_FRAME_ROI = "io.card.payment.guideFrameRoi";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>true</code>. If set, the camera's preview frame rate
+     * is lowered to what the scanner can keep up with on this device, and when the camera can't go
+     * that slow, only every Nth frame is scanned. If not set, the camera runs at its default rate and
+     * frames that arrive while the scanner is busy are dropped.
+     */
+    public static final String EXTRA_ADAPTIVE_FRAME_RATE = "io.card.payment.adaptiveFrameRate";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, finding the card in a frame
+     * and reading the number off it run on two threads, so the next frame is searched for a card
+     * while the last one is still being read. Ignored on single core devices, with
+     * {@link #EXTRA_SUPPRESS_SCAN}, or with {@link #EXTRA_SCAN_ON_BACKGROUND_THREAD} off.
+     */
+    public static final String EXTRA_PIPELINED_SCAN = "io.card.payment.pipelinedScan";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, each camera frame is first
+     * checked for a card at a quarter of its resolution, and the card edges are only searched for
+     * at full resolution when there could be one. This saves most of the work on frames without a
+     * card, but the guide frame then only shows edges once at least three of them are in view.
+     */
+    public static final String EXTRA_COARSE_EDGE_DETECTION = "io.card.payment.coarseEdgeDetection";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, once a card has been found,
+     * the following frames only check near its last corners for where it moved to, rather than
+     * searching the whole guide frame again, until it is lost.
+     */
+    public static final String EXTRA_CORNER_TRACKING = "io.card.payment.cornerTracking";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, the activity scans card
+     * after card, keeping the camera open, until it is cancelled. Each card read goes to the
+     * listener set with {@link #setContinuousScanListener(ContinuousScanListener)}, and the next
+     * card is only read once the last one has been taken away. Ignored without a listener, or with
+     * {@link #EXTRA_SUPPRESS_SCAN}.
+     */
+    public static final String EXTRA_CONTINUOUS_SCAN = "io.card.payment.continuousScan";
+
+    /**
+     * Boolean extra. Optional. Defaults to <code>false</code>. If set, the data intent passed to your
+     * {@link android.app.Activity} will have a {@link ScanMetrics} of the scan session in the
+     * {@link #EXTRA_SCAN_METRICS} extra.
+     */
+    public static final String EXTRA_RETURN_SCAN_METRICS = "io.card.payment.returnScanMetrics";
+
+    /**
+     * Parcelable extra containing {@link ScanMetrics}, if {@link #EXTRA_RETURN_SCAN_METRICS} is set
+     * and the camera was used.
+     */
+    public static final String EXTRA_SCAN_METRICS = "io.card.payment.scanMetrics";
+
+    /**
+     * Value for {@link #EXTRA_CARD_IMAGE_RENDER_MODE}: never render the card image, for apps that only
+     * need the number. No card image is shown after a scan. Ignored if
+     * {@link #EXTRA_SUPPRESS_SCAN} or {@link #EXTRA_RETURN_CARD_IMAGE} is set, since those need the
+     * image.
+     */
+    public static final int CARD_IMAGE_RENDER_NEVER = 0;
+
+    /**
+     * Value for {@link #EXTRA_CARD_IMAGE_RENDER_MODE}: render the card image once, from the frame
+     * that completed the scan.
+     */
+    public static final int CARD_IMAGE_RENDER_ON_COMPLETION = 1;
+
+    /**
+     * Value for {@link #EXTRA_CARD_IMAGE_RENDER_MODE}: also render the card image while it is in
+     * view, at most {@link #EXTRA_CARD_IMAGE_RENDER_RATE} times per second, and show it in the guide
+     * frame as a live preview of what the scanner sees.
+     */
+    public static final int CARD_IMAGE_RENDER_THROTTLED = 2;
+
 
     /**
      * Boolean extra. Used for testing only.
@@ -272,6 +392,9 @@ public final class CardIOActivity extends Activity {
     private static final int KEY_BTN_ID = 3;
 
     private static final String BUNDLE_WAITING_FOR_PERMISSION = "io.card.payment.waitingForPermission";
+    private static final String BUNDLE_SCAN_SESSION_ID = "io.card.payment.scanSessionId";
+    private static final String BUNDLE_SCANNER_STATE = "io.card.payment.scannerState";
+    private static final String BUNDLE_SCANNER_STATE_SAVED_AT = "io.card.payment.scannerStateSavedAt";
 
     private static final float UIBAR_VERTICAL_MARGIN_DP = 15.0f;
 
@@ -282,6 +405,9 @@ public final class CardIOActivity extends Activity {
     private static final int DATA_ENTRY_REQUEST_ID = 10;
     private static final int PERMISSION_REQUEST_ID = 11;
 
+    // hands out scan session ids, see mScanSessionId
+    private static final Random SCAN_SESSION_IDS = new Random();
+
     private OverlayView mOverlay;
     private OrientationEventListener orientationListener;
 
@@ -297,6 +423,18 @@ public final class CardIOActivity extends Activity {
     private LinearLayout customOverlayLayout;
     private boolean waitingForPermission;
 
+    // Identifies this scan across re-creations of the activity, see ScannerSessionCache. Random, so
+    // an id restored after the process was killed can't match one handed out by this process.
+    private long mScanSessionId;
+    // What the scanner had gathered of the card when the activity was saved, for when the process
+    // was killed in the meantime and took the parked session with it. Taken from once, then null.
+    private byte[] mSavedScannerState;
+
+    // in SystemClock.elapsedRealtime() time
+    private long mCreatedAt;
+    // Only set during onCreate, while the scanner takes what it needs from it.
+    private ScannerStartup mScannerStartup;
+
     private RelativeLayout mUIBar;
     private FrameLayout mMainLayout;
     private boolean useApplicationTheme;
@@ -318,6 +456,10 @@ public final class CardIOActivity extends Activity {
      */
     static Bitmap markedCardImage = null;
 
+    // Intents can't carry a listener, so it is handed over statically, like markedCardImage.
+    private static volatile ScanEventListener scanEventListener;
+    private static volatile ContinuousScanListener continuousScanListener;
+
     // ------------------------------------------------------------------------
     // ACTIVITY LIFECYCLE
     // ------------------------------------------------------------------------
@@ -325,6 +467,7 @@ public final class CardIOActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAt = SystemClock.elapsedRealtime();
 
         numActivityAllocations++;
         // NOTE: java native asserts are disabled by default on Android.
@@ -366,8 +509,39 @@ public final class CardIOActivity extends Activity {
 
         if (savedInstanceState != null) {
             waitingForPermission = savedInstanceState.getBoolean(BUNDLE_WAITING_FOR_PERMISSION);
+            mScanSessionId = savedInstanceState.getLong(BUNDLE_SCAN_SESSION_ID);
+            if (System.currentTimeMillis()
+                    - savedInstanceState.getLong(BUNDLE_SCANNER_STATE_SAVED_AT)
+                    <= ScannerSessionCache.RESUME_WINDOW_MS) {
+                mSavedScannerState = savedInstanceState.getByteArray(BUNDLE_SCANNER_STATE);
+            }
+        }
+        while (mScanSessionId == 0) {
+            mScanSessionId = SCAN_SESSION_IDS.nextLong();
+        }
+
+        // before CardScanner is first touched, so it can pick its native library from the cache
+        Util.knownHardwareSupport(this);
+
+        if (!clientData.getBooleanExtra(EXTRA_NO_CAMERA, false)
+                && !clientData.getBooleanExtra(PRIVATE_EXTRA_CAMERA_BYPASS_TEST_MODE, false)
+                && (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                        || checkSelfPermission(Manifest.permission.CAMERA)
+                        == PackageManager.PERMISSION_GRANTED)) {
+            // opens the camera and loads the native libraries while the rest of this runs
+            mScannerStartup = ScannerStartup.start(this, clientData, mScanSessionId);
+        }
+        try {
+            handleCamera(clientData);
+        } finally {
+            if (mScannerStartup != null) {
+                mScannerStartup.release();
+                mScannerStartup = null;
+            }
         }
+    }
 
+    private void handleCamera(Intent clientData) {
         if (clientData.getBooleanExtra(EXTRA_NO_CAMERA, false)) {
             Log.i(Util.PUBLIC_LOG_TAG, "EXTRA_NO_CAMERA set to true. Skipping camera.");
             manualEntryFallbackOrForced = true;
@@ -431,7 +605,13 @@ public final class CardIOActivity extends Activity {
 
     private void checkCamera() {
         try {
-            if (!Util.hardwareSupported()) {
+            // only waits for the camera to open if this device hasn't been checked before
+            Boolean supported = Util.knownHardwareSupport(this);
+            if (supported == null) {
+                Camera camera = mScannerStartup != null ? mScannerStartup.peekCamera() : null;
+                supported = Util.hardwareSupported(this, camera);
+            }
+            if (!supported) {
                 StringKey errorKey = StringKey.ERROR_NO_DEVICE_SUPPORT;
                 String localizedError = LocalizedStrings.getString(errorKey);
                 Log.w(Util.PUBLIC_LOG_TAG, errorKey + ": " + localizedError);
@@ -599,6 +779,14 @@ public final class CardIOActivity extends Activity {
         super.onSaveInstanceState(outState);
 
         outState.putBoolean(BUNDLE_WAITING_FOR_PERMISSION, waitingForPermission);
+        outState.putLong(BUNDLE_SCAN_SESSION_ID, mScanSessionId);
+        if (mCardScanner != null) {
+            byte[] scannerState = mCardScanner.saveSessionState();
+            if (scannerState != null) {
+                outState.putByteArray(BUNDLE_SCANNER_STATE, scannerState);
+                outState.putLong(BUNDLE_SCANNER_STATE_SAVED_AT, System.currentTimeMillis());
+            }
+        }
     }
 
     @Override
@@ -626,7 +814,9 @@ public final class CardIOActivity extends Activity {
         setFlashOn(false);
 
         if (mCardScanner != null) {
-            mCardScanner.endScanning();
+            // Re-created after a rotation or to free memory in the background: leave the scanner's
+            // progress for the next instance to pick up.
+            mCardScanner.endScanning(!isFinishing());
             mCardScanner = null;
         }
 
@@ -705,8 +895,20 @@ public final class CardIOActivity extends Activity {
      * @return <code>true</code> if camera is supported. <code>false</code> otherwise.
      */
     public static boolean canReadCardWithCamera() {
+        return canReadCardWithCamera(null);
+    }
+
+    /**
+     * Like {@link #canReadCardWithCamera()}, but the answer is kept across processes, so the
+     * camera only has to be opened to find out once per device, system update and card.io
+     * version.
+     *
+     * @param context any context of the app, or <code>null</code> to check in every process.
+     * @return <code>true</code> if camera is supported. <code>false</code> otherwise.
+     */
+    public static boolean canReadCardWithCamera(Context context) {
         try {
-            return Util.hardwareSupported();
+            return Util.hardwareSupported(context, null);
         } catch (CameraUnavailableException e) {
             return false;
         } catch (RuntimeException e) {
@@ -715,6 +917,18 @@ public final class CardIOActivity extends Activity {
         }
     }
 
+    /**
+     * Forgets whether the device was found to support card scanning, see
+     * {@link #canReadCardWithCamera(Context)}, so the next check opens the camera again. Only
+     * needed if something the check can't see changed, such as a camera being replaced.
+     *
+     * @param context any context of the app.
+     */
+    public static void clearHardwareCapabilityCache(Context context) {
+        HardwareCapabilityCache.invalidate(context);
+        Util.forgetHardwareSupport();
+    }
+
     /**
      * Returns the String version of this SDK.  Please include the return value of this method in any support requests.
      *
@@ -750,8 +964,62 @@ public final class CardIOActivity extends Activity {
         return result;
     }
 
+    /**
+     * Registers a listener that gets an event for every camera frame of the scans that follow:
+     * focus score, card edges, whether the frame was usable, how long each stage of the scanner
+     * took, and why frames were dropped. Events are delivered on a background thread, through a
+     * bounded buffer, so a slow listener never holds up the camera.
+     * <br><br>
+     * Register before starting this activity. The listener is kept until it is replaced, so pass
+     * <code>null</code> when done with it.
+     *
+     * @param listener the listener, or <code>null</code> to stop listening.
+     */
+    public static void setScanEventListener(ScanEventListener listener) {
+        scanEventListener = listener;
+    }
+
+    static ScanEventListener getScanEventListener() {
+        return scanEventListener;
+    }
+
+    /**
+     * Registers the listener that gets the cards read by a continuous scan, see
+     * {@link #EXTRA_CONTINUOUS_SCAN}.
+     * <br><br>
+     * Register before starting this activity. The listener is kept until it is replaced, so pass
+     * <code>null</code> when done with it.
+     *
+     * @param listener the listener, or <code>null</code> to stop listening.
+     */
+    public static void setContinuousScanListener(ContinuousScanListener listener) {
+        continuousScanListener = listener;
+    }
+
+    static ContinuousScanListener getContinuousScanListener() {
+        return continuousScanListener;
+    }
+
     // end static
 
+    long getScanSessionId() {
+        return mScanSessionId;
+    }
+
+    long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    ScannerStartup getScannerStartup() {
+        return mScannerStartup;
+    }
+
+    byte[] takeSavedScannerState() {
+        byte[] state = mSavedScannerState;
+        mSavedScannerState = null;
+        return state;
+    }
+
     void onFirstFrame(int orientation) {
         SurfaceView sv = mPreview.getSurfaceView();
         if (mOverlay != null) {
@@ -772,16 +1040,12 @@ public final class CardIOActivity extends Activity {
         mOverlay.setDetectionInfo(dInfo);
     }
 
+    void onCardImagePreview(Bitmap cardImage) {
+        mOverlay.setCardPreview(cardImage);
+    }
+
     void onCardDetected(Bitmap detectedBitmap, DetectionInfo dInfo) {
-        try {
-            Vibrator vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
-            vibrator.vibrate(VIBRATE_PATTERN, -1);
-        } catch (SecurityException e) {
-            Log.e(Util.PUBLIC_LOG_TAG,
-                    "Could not activate vibration feedback. Please add <uses-permission android:name=\"android.permission.VIBRATE\" /> to your application's manifest.");
-        } catch (Exception e) {
-            Log.w(Util.PUBLIC_LOG_TAG, "Exception while attempting to vibrate: ", e);
-        }
+        vibrate();
 
         mCardScanner.pauseScanning();
         mUIBar.setVisibility(View.INVISIBLE);
@@ -802,9 +1066,12 @@ public final class CardIOActivity extends Activity {
         Matrix m = new Matrix();
         m.postScale(sf, sf);
 
-        Bitmap scaledCard = Bitmap.createBitmap(detectedBitmap, 0, 0, detectedBitmap.getWidth(),
-                detectedBitmap.getHeight(), m, false);
-        mOverlay.setBitmap(scaledCard);
+        // null when the card image is never rendered
+        if (detectedBitmap != null) {
+            Bitmap scaledCard = Bitmap.createBitmap(detectedBitmap, 0, 0, detectedBitmap.getWidth(),
+                    detectedBitmap.getHeight(), m, false);
+            mOverlay.setBitmap(scaledCard);
+        }
 
         if (mDetectOnly) {
             Intent dataIntent = new Intent();
@@ -816,6 +1083,30 @@ public final class CardIOActivity extends Activity {
         }
     }
 
+    /**
+     * A continuous scan read a card, and is already looking for the next one.
+     */
+    void onCardScanned(CreditCard card, long latencyMillis) {
+        ContinuousScanListener listener = continuousScanListener;
+        if (listener == null) {
+            return;
+        }
+        vibrate();
+        listener.onCardScanned(card, latencyMillis);
+    }
+
+    private void vibrate() {
+        try {
+            Vibrator vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+            vibrator.vibrate(VIBRATE_PATTERN, -1);
+        } catch (SecurityException e) {
+            Log.e(Util.PUBLIC_LOG_TAG,
+                    "Could not activate vibration feedback. Please add <uses-permission android:name=\"android.permission.VIBRATE\" /> to your application's manifest.");
+        } catch (Exception e) {
+            Log.w(Util.PUBLIC_LOG_TAG, "Exception while attempting to vibrate: ", e);
+        }
+    }
+
     private void nextActivity() {
         final Intent origIntent = getIntent();
         if (origIntent != null && origIntent.getBooleanExtra(EXTRA_SUPPRESS_CONFIRMATION, false)) {
@@ -950,7 +1241,8 @@ public final class CardIOActivity extends Activity {
                 LayoutParams.MATCH_PARENT));
         if (getIntent() != null) {
             boolean useCardIOLogo = getIntent().getBooleanExtra(EXTRA_USE_CARDIO_LOGO, false);
-            mOverlay.setUseCardIOLogo(useCardIOLogo);
+            mOverlay.setUseCardIOLogo(useCardIOLogo, mScannerStartup != null
+                    ? mScannerStartup.takeLogo(useCardIOLogo) : null);
 
             int color = getIntent().getIntExtra(EXTRA_GUIDE_COLOR, 0);
 
@@ -1069,7 +1361,13 @@ public final class CardIOActivity extends Activity {
         }
     }
 
-    private void setResultAndFinish(final int resultCode, final Intent data) {
+    private void setResultAndFinish(final int resultCode, Intent data) {
+        if (mCardScanner != null && getIntent().getBooleanExtra(EXTRA_RETURN_SCAN_METRICS, false)) {
+            if (data == null) {
+                data = new Intent();
+            }
+            data.putExtra(EXTRA_SCAN_METRICS, mCardScanner.getMetrics());
+        }
         setResult(resultCode, data);
         markedCardImage = null;
         finish();
@@ -0,0 +1,359 @@
+package io.card.payment;
+
+/* CardIOImageScanner.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans still images of cards, such as uploaded photos, without a camera or an activity. Images are
+ * scanned in parallel on a fixed pool of worker threads, each with its own native scanner.
+ * <p/>
+ * Images should be framed like the camera preview: 4:3 landscape, with the card filling the
+ * center of the picture the way the guide frame asks for. Images of other sizes are scaled to
+ * 640x480 pixels. Call {@link #shutdown()} when done, to free the native scanners.
+ */
+public class CardIOImageScanner {
+
+    /**
+     * Receives the result of scanning an image, on the worker thread that scanned it.
+     */
+    public interface Callback {
+        /**
+         * @param card the recognized card, or <code>null</code> if the image has no readable card.
+         */
+        void onImageScanned(CreditCard card);
+
+        /**
+         * @param error why the image couldn't be scanned, e.g. because it couldn't be decoded.
+         */
+        void onScanFailed(Throwable error);
+    }
+
+    private static final String TAG = CardIOImageScanner.class.getSimpleName();
+
+    static final int FRAME_WIDTH = 640;
+    static final int FRAME_HEIGHT = 480;
+
+    // the scanner wants several agreeing frames before it trusts a number
+    private static final int MAX_FRAMES_PER_IMAGE = 10;
+
+    // images waiting for a worker, per worker, before scan() blocks
+    private static final int QUEUED_IMAGES_PER_THREAD = 2;
+
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<Worker> mWorkers;
+    private final Semaphore mSlots;
+    private final boolean mScanExpiry;
+
+    private final AtomicInteger mImagesScanned = new AtomicInteger();
+    private final AtomicLong mFirstSubmittedAt = new AtomicLong();
+    private volatile long mLastScannedAt;
+
+    /**
+     * @return whether this device can scan card images at all.
+     */
+    public static boolean isSupported() {
+        return CardScanner.processorSupported();
+    }
+
+    /**
+     * Creates a scanner with one worker per processor, that also scans expiry dates.
+     */
+    public CardIOImageScanner() {
+        this(Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * @param threadCount the number of images scanned at once.
+     * @param scanExpiry whether to also scan the expiry date.
+     * @throws UnsupportedOperationException if {@link #isSupported()} is false.
+     */
+    public CardIOImageScanner(int threadCount, boolean scanExpiry) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("card scanning is not supported on this device");
+        }
+
+        mScanExpiry = scanExpiry;
+        mWorkers = new ArrayBlockingQueue<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers.add(new Worker());
+        }
+        mSlots = new Semaphore(threadCount * (1 + QUEUED_IMAGES_PER_THREAD));
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "card.io image scanner " + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Scans a bitmap, which must not be recycled before the scan is done. Blocks while too many
+     * images are waiting to be scanned already.
+     *
+     * @return the recognized card, or <code>null</code> if the image has no readable card.
+     */
+    public Future<CreditCard> scan(Bitmap bitmap) {
+        return scan(bitmap, null);
+    }
+
+    /**
+     * Like {@link #scan(Bitmap)}, but also hands the result to callback.
+     */
+    public Future<CreditCard> scan(final Bitmap bitmap, Callback callback) {
+        return submit(new Job() {
+            @Override
+            byte[] toFrame(Worker worker) {
+                return worker.encode(bitmap);
+            }
+        }, callback);
+    }
+
+    /**
+     * Scans an encoded image, in any format {@link BitmapFactory} can decode, such as JPEG or PNG.
+     * Blocks while too many images are waiting to be scanned already.
+     *
+     * @return the recognized card, or <code>null</code> if the image has no readable card.
+     */
+    public Future<CreditCard> scan(byte[] encodedImage) {
+        return scan(encodedImage, null);
+    }
+
+    /**
+     * Like {@link #scan(byte[])}, but also hands the result to callback.
+     */
+    public Future<CreditCard> scan(final byte[] encodedImage, Callback callback) {
+        return submit(new Job() {
+            @Override
+            byte[] toFrame(Worker worker) {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(encodedImage, 0, encodedImage.length);
+                if (bitmap == null) {
+                    throw new IllegalArgumentException("can't decode image");
+                }
+                try {
+                    return worker.encode(bitmap);
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Scans a 640x480 NV21 frame, the format of camera previews. The frame is read while it is
+     * scanned, so it must not be changed until then. Blocks while too many images are waiting to
+     * be scanned already.
+     *
+     * @return the recognized card, or <code>null</code> if the frame has no readable card.
+     */
+    public Future<CreditCard> scanNV21(byte[] frame, int width, int height) {
+        return scanNV21(frame, width, height, null);
+    }
+
+    /**
+     * Like {@link #scanNV21(byte[], int, int)}, but also hands the result to callback.
+     */
+    public Future<CreditCard> scanNV21(final byte[] frame, int width, int height,
+                                       Callback callback) {
+        if (width != FRAME_WIDTH || height != FRAME_HEIGHT) {
+            throw new IllegalArgumentException("NV21 frames must be " + FRAME_WIDTH + "x"
+                    + FRAME_HEIGHT + ", not " + width + "x" + height);
+        }
+        if (frame.length < FRAME_WIDTH * FRAME_HEIGHT * 3 / 2) {
+            throw new IllegalArgumentException("frame is too short for NV21");
+        }
+        return submit(new Job() {
+            @Override
+            byte[] toFrame(Worker worker) {
+                return frame;
+            }
+        }, callback);
+    }
+
+    /**
+     * @return the number of images scanned so far, whether or not they had a readable card.
+     */
+    public int getImagesScanned() {
+        return mImagesScanned.get();
+    }
+
+    /**
+     * @return the images scanned per second, from the first image submitted to the last one
+     * scanned.
+     */
+    public double getImagesPerSecond() {
+        long first = mFirstSubmittedAt.get();
+        long elapsed = mLastScannedAt - first;
+        if (first == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mImagesScanned.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Finishes the images already submitted, then frees the native scanners. No images can be
+     * scanned afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+        try {
+            while (!mExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.v(TAG, "waiting for images to be scanned");
+            }
+        } catch (InterruptedException e) {
+            // workers may still be scanning, so their native scanners can't be freed
+            Log.w(TAG, "interrupted while shutting down, not freeing native scanners");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        Worker worker;
+        while ((worker = mWorkers.poll()) != null) {
+            worker.release();
+        }
+    }
+
+    private Future<CreditCard> submit(Job job, final Callback callback) {
+        mSlots.acquireUninterruptibly();
+        mFirstSubmittedAt.compareAndSet(0, System.nanoTime());
+
+        FutureTask<CreditCard> task = new FutureTask<CreditCard>(job) {
+            @Override
+            protected void done() {
+                mSlots.release();
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                try {
+                    callback.onImageScanned(get());
+                } catch (ExecutionException e) {
+                    callback.onScanFailed(e.getCause());
+                } catch (InterruptedException e) {
+                    // can't happen, the task is done
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            mSlots.release();
+            throw e;
+        }
+        return task;
+    }
+
+    private abstract class Job implements Callable<CreditCard> {
+
+        /**
+         * @return the image as a 640x480 NV21 frame.
+         */
+        abstract byte[] toFrame(Worker worker);
+
+        @Override
+        public CreditCard call() throws Exception {
+            // there are as many workers as threads, so this never waits
+            Worker worker = mWorkers.take();
+            CreditCard card;
+            try {
+                card = worker.scan(toFrame(worker));
+            } finally {
+                mWorkers.add(worker);
+            }
+            mImagesScanned.incrementAndGet();
+            mLastScannedAt = System.nanoTime();
+            return card;
+        }
+    }
+
+    /**
+     * A native scanner, and the buffers for converting images to frames for it. Only ever used by
+     * one thread at a time.
+     */
+    private class Worker {
+        private final long mContext;
+        private final int[] mPixels = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        private final byte[] mFrame = new byte[FRAME_WIDTH * FRAME_HEIGHT * 3 / 2];
+        private final DetectionInfo mDetectionInfo = new DetectionInfo();
+
+        Worker() {
+            mContext = CardScanner.nSetup(false, CardScanner.MIN_FOCUS_SCORE,
+                    CardScanner.DEFAULT_UNBLUR_DIGITS, FRAME_WIDTH, FRAME_HEIGHT);
+        }
+
+        byte[] encode(Bitmap bitmap) {
+            Bitmap frameBitmap = bitmap;
+            if (bitmap.getWidth() != FRAME_WIDTH || bitmap.getHeight() != FRAME_HEIGHT) {
+                frameBitmap = Bitmap.createScaledBitmap(bitmap, FRAME_WIDTH, FRAME_HEIGHT, true);
+            }
+            frameBitmap.getPixels(mPixels, 0, FRAME_WIDTH, 0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+            if (frameBitmap != bitmap) {
+                frameBitmap.recycle();
+            }
+
+            Util.encodeNV21(mPixels, FRAME_WIDTH, FRAME_HEIGHT, mFrame);
+            return mFrame;
+        }
+
+        /**
+         * Scans the frame as if the camera kept delivering it, until the number is recognized or
+         * it becomes clear that it won't be.
+         */
+        CreditCard scan(byte[] frame) {
+            CardScanner.nResetAnalytics(mContext);
+
+            DetectionInfo dInfo = mDetectionInfo;
+            for (int i = 0; i < MAX_FRAMES_PER_IMAGE; i++) {
+                dInfo.reset();
+                CardScanner.nScanFrame(mContext, frame, FRAME_WIDTH, FRAME_HEIGHT,
+                        CardScanner.ORIENTATION_PORTRAIT, dInfo, null, mScanExpiry,
+                        CardScanner.RENDER_NEVER);
+
+                if (dInfo.predicted()) {
+                    return dInfo.creditCard();
+                }
+                // unlike with a camera, the next frame won't be any sharper or better aligned
+                if (dInfo.focusScore < CardScanner.MIN_FOCUS_SCORE || !dInfo.detected()) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        void release() {
+            CardScanner.nCleanup(mContext);
+        }
+    }
+}
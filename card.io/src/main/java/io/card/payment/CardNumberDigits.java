@@ -0,0 +1,178 @@
+package io.card.payment;
+
+/* CardNumberDigits.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * The digits of a card number as it is being typed, kept along with what they add up to so far:
+ * the node of {@link CardType}'s trie they lead to, and the Luhn sum of each digit both doubled and
+ * not. These are kept for every prefix, so adding or removing digits at the end only has to work
+ * out the digits added, and an edit anywhere else only the digits from the edit on. Nothing is
+ * created once the buffers have grown to fit the number.
+ * <p/>
+ * Whether a digit is doubled for the Luhn checksum depends on how far it is from the end of the
+ * number, which isn't known until the number is complete. So both sums are kept: one doubling the
+ * digits at even positions, counted from the start, and one doubling those at odd positions.
+ * Whichever doubles the right digits for the length at the time is the checksum.
+ */
+final class CardNumberDigits implements CharSequence {
+    private static final int INITIAL_CAPACITY = 19;
+
+    // what each digit adds to the checksum when it is doubled
+    private static final int[] DOUBLED_DIGITS = { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 };
+
+    private final CardTypeTrie mTypeTrie = CardType.getTypeTrie();
+
+    private char[] mDigits = new char[INITIAL_CAPACITY];
+    // all of the first i + 1 digits
+    private int[] mTypeNode = new int[INITIAL_CAPACITY];
+    private int[] mEvenDoubledSum = new int[INITIAL_CAPACITY];
+    private int[] mOddDoubledSum = new int[INITIAL_CAPACITY];
+    private int mLength;
+
+    /**
+     * Replaces all the digits with those of <code>number</code>.
+     */
+    void set(CharSequence number) {
+        replace(0, mLength, number, 0, number.length());
+    }
+
+    /**
+     * Replaces <code>removed</code> digits from <code>index</code> on with the digits between
+     * <code>start</code> and <code>end</code> of <code>source</code>. Anything else in it is
+     * skipped.
+     */
+    void replace(int index, int removed, CharSequence source, int start, int end) {
+        int inserted = countDigits(source, start, end);
+        int tail = mLength - index - removed;
+        ensureCapacity(mLength - removed + inserted);
+        if (inserted != removed && tail > 0) {
+            System.arraycopy(mDigits, index + removed, mDigits, index + inserted, tail);
+        }
+        int position = index;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (isDigit(c)) {
+                mDigits[position++] = c;
+            }
+        }
+        mLength += inserted - removed;
+
+        // what the digits add up to only changes from the edit on
+        for (int i = index; i < mLength; i++) {
+            update(i);
+        }
+    }
+
+    private void update(int i) {
+        int digit = mDigits[i] - '0';
+        int previousNode = i == 0 ? CardTypeTrie.ROOT : mTypeNode[i - 1];
+        // digits past the longest range can't change the type
+        mTypeNode[i] = i < CardTypeTrie.MAX_PREFIX_DIGITS
+                ? mTypeTrie.next(previousNode, digit) : previousNode;
+
+        int evenSum = i == 0 ? 0 : mEvenDoubledSum[i - 1];
+        int oddSum = i == 0 ? 0 : mOddDoubledSum[i - 1];
+        boolean even = (i & 1) == 0;
+        mEvenDoubledSum[i] = evenSum + (even ? DOUBLED_DIGITS[digit] : digit);
+        mOddDoubledSum[i] = oddSum + (even ? digit : DOUBLED_DIGITS[digit]);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mDigits.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mDigits.length * 2);
+        char[] digits = new char[newCapacity];
+        System.arraycopy(mDigits, 0, digits, 0, mLength);
+        mDigits = digits;
+        mTypeNode = new int[newCapacity];
+        mEvenDoubledSum = new int[newCapacity];
+        mOddDoubledSum = new int[newCapacity];
+        // only the digits have to be copied, as replace() works the rest out from the edit on
+        for (int i = 0; i < mLength; i++) {
+            update(i);
+        }
+    }
+
+    CardType getCardType() {
+        return mLength == 0 ? CardType.UNKNOWN : mTypeTrie.typeOf(mTypeNode[mLength - 1]);
+    }
+
+    /**
+     * @return the card type there would be after {@link #replace}, without making the edit.
+     */
+    CardType cardTypeAfterReplacing(int index, int removed, CharSequence source, int start,
+                                    int end) {
+        if (mLength - removed + countDigits(source, start, end) == 0) {
+            return CardType.UNKNOWN;
+        }
+        int position = index;
+        int node = index == 0 ? CardTypeTrie.ROOT : mTypeNode[Math.min(index,
+                CardTypeTrie.MAX_PREFIX_DIGITS) - 1];
+        for (int i = start; i < end && position < CardTypeTrie.MAX_PREFIX_DIGITS; i++) {
+            char c = source.charAt(i);
+            if (isDigit(c)) {
+                node = mTypeTrie.next(node, c - '0');
+                position++;
+            }
+        }
+        for (int i = index + removed; i < mLength && position < CardTypeTrie.MAX_PREFIX_DIGITS;
+             i++) {
+            node = mTypeTrie.next(node, mDigits[i] - '0');
+            position++;
+        }
+        return mTypeTrie.typeOf(node);
+    }
+
+    /**
+     * @see CreditCardNumber#passesLuhnChecksum(String)
+     */
+    boolean passesLuhnChecksum() {
+        if (mLength == 0) {
+            return true;
+        }
+        // the last digit is never doubled, so every other one before it is
+        int sum = (mLength & 1) == 0 ? mEvenDoubledSum[mLength - 1]
+                : mOddDoubledSum[mLength - 1];
+        return sum % 10 == 0;
+    }
+
+    static int countDigits(CharSequence text, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (isDigit(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mDigits[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mDigits, 0, mLength);
+    }
+}
@@ -7,13 +7,18 @@ package io.card.payment;
 import android.text.Editable;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
-import android.text.TextUtils;
 
 class CardNumberValidator implements Validator {
     // private static final String TAG = CardNumberValidator.class.getSimpleName();
 
+    private final CardNumberDigits digits = new CardNumberDigits();
+    // made from digits when asked for
     private String numberString;
 
+    // the edit about to be made, between beforeTextChanged and onTextChanged
+    private int editIndex;
+    private int editRemoved;
+
     final static int[] AMEX_SPACER = { 4, 11 };
     final static int[] NORMAL_SPACER = { 4, 9, 14 };
     private int spacerToDelete;
@@ -22,14 +27,29 @@ class CardNumberValidator implements Validator {
     }
 
     public CardNumberValidator(String number) {
+        if (number != null) {
+            digits.set(number);
+        }
         numberString = number;
     }
 
+    CardType getCardType() {
+        return digits.getCardType();
+    }
+
+    /**
+     * @return how many digits come before <code>position</code> of <code>text</code>, which
+     * holds the digits as they are. Counted back from the end, so that typing at the end doesn't
+     * have to look at the rest of the number.
+     */
+    private int digitsBefore(CharSequence text, int position) {
+        return digits.length() - CardNumberDigits.countDigits(text, position, text.length());
+    }
+
     @Override
     public void afterTextChanged(Editable source) {
         // TODO document whatever is going on here
-        numberString = StringHelper.getDigitsOnlyString(source.toString());
-        CardType type = CardType.fromCardNumber(numberString);
+        CardType type = digits.getCardType();
 
         if (spacerToDelete > 1) {
             int e = spacerToDelete;
@@ -57,20 +77,25 @@ class CardNumberValidator implements Validator {
 
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        editIndex = digitsBefore(s, start);
+        editRemoved = CardNumberDigits.countDigits(s, start, start + count);
     }
 
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
+        // only the digits edited are looked at, the rest of what they add up to is kept
+        digits.replace(editIndex, editRemoved, s, start, start + count);
+        numberString = null;
     }
 
     @Override
     public boolean hasFullLength() {
-        if (TextUtils.isEmpty(numberString)) {
+        if (digits.length() == 0) {
             return false;
         }
 
-        CardType type = CardType.fromCardNumber(numberString);
-        return (numberString.length() == type.numberLength());
+        CardType type = digits.getCardType();
+        return (digits.length() == type.numberLength());
     }
 
     @Override
@@ -78,7 +103,7 @@ class CardNumberValidator implements Validator {
         if (!this.hasFullLength()) {
             return false;
         }
-        if (!CreditCardNumber.passesLuhnChecksum(numberString)) {
+        if (!digits.passesLuhnChecksum()) {
             return false;
         }
 
@@ -88,6 +113,9 @@ class CardNumberValidator implements Validator {
 
     @Override
     public String getValue() {
+        if (numberString == null) {
+            numberString = digits.toString();
+        }
         return numberString;
     }
 
@@ -97,19 +125,22 @@ class CardNumberValidator implements Validator {
         // Log.v(TAG, "filter(source:\"" + source + "\" start:" + start + " end:" + end + " dest:"
         // + dest + " dstart:" + dstart + " dend:" + dend + ")");
 
-        String updated = new SpannableStringBuilder(dest).replace(dstart, dend, source, start, end)
-                .toString();
-        String updatedDigits = StringHelper.getDigitsOnlyString(updated);
-        CardType type = CardType.fromCardNumber(updatedDigits);
+        // the number as it would be after the edit, worked out from the digits edited only
+        int index = digitsBefore(dest, dstart);
+        int removed = CardNumberDigits.countDigits(dest, dstart, dend);
+        int updatedLength = digits.length() - removed
+                + CardNumberDigits.countDigits(source, start, end);
+        CardType type = digits.cardTypeAfterReplacing(index, removed, source, start, end);
         int maxLength = type.numberLength();
 
-        // Log.v(TAG, "updatedDigits:" + updatedDigits + ",cardType:" + type + ",maxLength:"
+        // Log.v(TAG, "updatedLength:" + updatedLength + ",cardType:" + type + ",maxLength:"
         // + maxLength);
-        if (updatedDigits.length() > maxLength) {
+        if (updatedLength > maxLength) {
             return "";
         }
 
-        SpannableStringBuilder result = new SpannableStringBuilder(source);
+        // only copied if a space has to go in
+        SpannableStringBuilder result = null;
 
         int[] spacers;
         if (maxLength == 15) {
@@ -126,7 +157,11 @@ class CardNumberValidator implements Validator {
             }
             if (dstart - replen <= spacers[i] && dstart + end - replen >= spacers[i]) {
                 int loc = spacers[i] - dstart;
-                if (loc == end || (0 <= loc && loc < end && result.charAt(loc) != ' ')) {
+                CharSequence current = result != null ? result : source;
+                if (loc == end || (0 <= loc && loc < end && current.charAt(loc) != ' ')) {
+                    if (result == null) {
+                        result = new SpannableStringBuilder(source);
+                    }
                     result.insert(loc, " ");
                     // Log.v(TAG, "adding space");
 
@@ -135,6 +170,10 @@ class CardNumberValidator implements Validator {
             }
         }
 
-        return result;
+        if (result != null) {
+            return result;
+        }
+        // nothing to add, so what was typed goes in as it is
+        return start == 0 && end == source.length() ? null : new SpannableStringBuilder(source);
     }
 }
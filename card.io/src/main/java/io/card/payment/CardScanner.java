@@ -13,6 +13,12 @@ import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -21,9 +27,12 @@ import android.view.WindowManager;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Encapsulates the core image scanning.
@@ -37,19 +46,57 @@ import java.util.Map;
  * closes the scanner and launches the next activity.
  * <p/>
  * HOWEVER, at the moment, the CardScanner is directly communicating with the Preview.
+ * <p/>
+ * Unless disabled with {@link CardIOActivity#EXTRA_SCAN_ON_BACKGROUND_THREAD}, frames are scanned on
+ * a dedicated {@link HandlerThread}. The camera keeps delivering into a pool of preview buffers
+ * while earlier frames are being scanned, and everything the activity needs to know about is posted
+ * back to the main thread.
  */
 class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
-        SurfaceHolder.Callback {
+        SurfaceHolder.Callback, Handler.Callback {
     private static final String TAG = CardScanner.class.getSimpleName();
 
-    private static final float MIN_FOCUS_SCORE = 6; // TODO - parameterize this
+    static final float MIN_FOCUS_SCORE = 6; // TODO - parameterize this
     // value based on phone? or
     // change focus behavior?
 
-    private static final int DEFAULT_UNBLUR_DIGITS = -1; // no blur per default
+    static final int DEFAULT_UNBLUR_DIGITS = -1; // no blur per default
+
+    static final int CAMERA_CONNECT_TIMEOUT = 5000;
+    static final int CAMERA_CONNECT_RETRY_INTERVAL = 50;
+
+    static final int PREVIEW_WIDTH = 640;
+    static final int PREVIEW_HEIGHT = 480;
+
+    static final int DEFAULT_PREVIEW_BUFFER_COUNT = 3;
+    static final int MAX_PREVIEW_BUFFER_COUNT = 8;
+
+    static final int DEFAULT_CARD_IMAGE_RENDER_RATE = 5;
+    static final int DEFAULT_MAX_EDGE_UPDATE_RATE = 15;
 
-    private static final int CAMERA_CONNECT_TIMEOUT = 5000;
-    private static final int CAMERA_CONNECT_RETRY_INTERVAL = 50;
+    // crops waiting between the detecting and the recognizing thread of the pipelined scan
+    static final int PIPELINE_QUEUE_CAPACITY = 2;
+
+    // Continuous scan only: a card counts as taken away after this many sharp frames without one.
+    static final int CARD_REMOVED_FRAMES = 5;
+
+    // how nScanFrame renders the card image, see nativeRecognizer.cpp. The same values as
+    // CardIOActivity.CARD_IMAGE_RENDER_*, but RENDER_THROTTLED is only passed once a render is due.
+    static final int RENDER_NEVER = CardIOActivity.CARD_IMAGE_RENDER_NEVER;
+    static final int RENDER_ON_COMPLETION = CardIOActivity.CARD_IMAGE_RENDER_ON_COMPLETION;
+    static final int RENDER_THROTTLED = CardIOActivity.CARD_IMAGE_RENDER_THROTTLED;
+
+    // messages handled by the processing thread
+    private static final int MSG_PROCESS_FRAME = 1;
+
+    // messages handled by the main thread
+    private static final int MSG_FIRST_FRAME = 10;
+    private static final int MSG_EDGE_UPDATE = 11;
+    private static final int MSG_CARD_DETECTED = 12;
+    private static final int MSG_AUTO_FOCUS = 13;
+    private static final int MSG_PREVIEW_FPS_RANGE = 14;
+    private static final int MSG_CARD_SCANNED = 15;
+    private static final int MSG_CARD_IMAGE_PREVIEW = 16;
 
     static final int ORIENTATION_PORTRAIT = 1;
 
@@ -64,34 +111,140 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
     public static native boolean nUseX86();
 
-    private native void nSetup(boolean shouldDetectOnly, float minFocusScore);
+    // The scanner natives are static and take the context handle from nSetup, so that
+    // CardIOImageScanner can drive them without a camera or an activity.
+    static native long nSetup(boolean shouldDetectOnly, float minFocusScore, int unBlur,
+            int frameWidth, int frameHeight);
+
+    static native void nResetAnalytics(long context);
 
-    private native void nSetup(boolean shouldDetectOnly, float minFocusScore, int unBlur);
+    static native void nResetCard(long context);
 
-    private native void nResetAnalytics();
+    // what the scanner has gathered of the card so far, to carry on with in another process
+    static native byte[] nSaveState(long context);
+
+    static native boolean nRestoreState(long context, byte[] state);
 
     private native void nGetGuideFrame(int orientation, int previewWidth, int previewHeight, Rect r);
 
-    private native void nScanFrame(byte[] data, int frameWidth, int frameHeight, int orientation,
-                                   DetectionInfo dinfo, Bitmap resultBitmap, boolean scanExpiry);
+    static native boolean nScanFrame(long context, byte[] data, int frameWidth, int frameHeight,
+                                     int orientation, DetectionInfo dinfo, Bitmap resultBitmap,
+                                     boolean scanExpiry, int renderMode);
+
+    static native boolean nScanFrameDirect(long context, ByteBuffer data, int frameWidth,
+                                           int frameHeight, int orientation, DetectionInfo dinfo,
+                                           Bitmap resultBitmap, boolean scanExpiry, int renderMode);
+
+    // The pipelined scan splits nScanFrame in two: nDetectFrame finds the card and warps it into a
+    // crop, and nRecognizeCrop reads it, possibly on another thread while the next frame is being
+    // detected.
+    static native long nCreateCrop();
+
+    static native void nReleaseCrop(long crop);
+
+    static native boolean nDetectFrame(long context, byte[] data, int frameWidth, int frameHeight,
+                                       int orientation, DetectionInfo dinfo, long crop);
+
+    static native boolean nDetectFrameDirect(long context, ByteBuffer data, int frameWidth,
+                                             int frameHeight, int orientation, DetectionInfo dinfo,
+                                             long crop);
+
+    static native boolean nRecognizeCrop(long context, long crop, DetectionInfo dinfo,
+                                         Bitmap resultBitmap, boolean scanExpiry, int renderMode);
+
+    static native int nGetNumFramesScanned(long context);
+
+    static native void nSetGuideRoi(long context, boolean enabled);
 
-    private native int nGetNumFramesScanned();
+    static native void nSetCoarseEdges(long context, boolean enabled);
 
-    private native void nCleanup();
+    // frames the coarse edge pass found no card in, since the last reset
+    static native int nGetCoarseRejectCount(long context);
+
+    // times the frame sized scratch images had to be (re)allocated, since setup
+    static native int nGetScratchAllocations(long context);
+
+    static native void nSetCornerTracking(long context, boolean enabled);
+
+    // frames the card was tracked in, and times it was lost, since the last reset
+    static native void nGetTrackingCounts(long context, int[] counts);
+
+    // times of the last frame's stages, indexed by ScanMetrics.STAGE_*
+    static native void nGetStageTimes(long context, long[] stageNanos);
+
+    static native void nGetStageHistograms(long context, int[] buckets, long[] totalNanos,
+            long[] maxNanos);
+
+    static native void nCleanup(long context);
+
+    // Handle of this scanner's native context, 0 once cleaned up. Each scanner has its own, so
+    // several can scan at once.
+    private long mNativeContext;
+
+    // Scan session continuity, see ScannerSessionCache. A session carries on over a pause shorter
+    // than its resume window, unless it already found a card.
+    private final long mSessionId;
+    private boolean mSessionAdopted;
+    private boolean mCardFound;
+    private long mPausedAt;
+    private int numSessionsContinued;
+
+    // Opening the camera and setting up the native context, started along with the activity.
+    // Taken from once, then null.
+    private ScannerStartup mStartup;
+    private final long mActivityCreatedAt;
+    private volatile long mTimeToFirstFrame;
 
     private Bitmap detectedBitmap;
 
+    // Reused for every frame by whichever thread scans. Only handed to the main thread along with
+    // a detected card, after which nothing else is scanned until scanning resumes.
+    private final DetectionInfo mFrameInfo = new DetectionInfo();
+
+    // The edges last reported to the activity, only touched by whichever thread scans.
+    private final DetectionInfo mLastEdges = new DetectionInfo();
+
+    // Receives edge updates on the main thread.
+    private final DetectionInfo mEdgeInfo = new DetectionInfo();
+
+    // Edge changes are coalesced: while an update is pending, newer edges just replace its flags.
+    private final AtomicInteger mPendingEdgeFlags = new AtomicInteger();
+    private final AtomicBoolean mEdgeUpdatePending = new AtomicBoolean();
+    private volatile long mLastEdgeUpdate;
+    private long mMinEdgeUpdateInterval = 1000 / DEFAULT_MAX_EDGE_UPDATE_RATE;
+
     private static boolean manualFallbackForError;
 
+    // The processor flags of the native decider, as of when the libraries were loaded. Taken from
+    // HardwareCapabilityCache if it already has them, which saves loading the decider at all.
+    private static boolean sUseNeon;
+    private static boolean sUseTegra;
+    private static boolean sUseX86;
+
     // member data
     protected WeakReference<CardIOActivity> mScanActivityRef;
     private boolean mSuppressScan = false;
     private boolean mScanExpiry;
     private int mUnblurDigits = DEFAULT_UNBLUR_DIGITS;
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
+    private boolean mScanOnBackgroundThread = true;
+    private boolean mUseGuideRoi;
+    private boolean mAdaptiveFrameRate = true;
+    private boolean mPipelinedScan;
+    private boolean mCoarseEdges;
+    private boolean mCornerTracking;
+    private boolean mContinuousScan;
+    private int mCardImageRenderMode = CardIOActivity.CARD_IMAGE_RENDER_ON_COMPLETION;
+    private long mCardImageRenderInterval = 1000 / DEFAULT_CARD_IMAGE_RENDER_RATE;
+    // only touched by whichever thread scans
+    private long mLastCardImageRender;
+    // Set while the main thread has yet to copy a card image rendered for the live preview, so
+    // the next one isn't rendered into detectedBitmap before it has.
+    private final AtomicBoolean mCardImagePreviewPending = new AtomicBoolean();
 
     // read by CardIOActivity to set up Preview
-    final int mPreviewWidth = 640;
-    final int mPreviewHeight = 480;
+    final int mPreviewWidth = PREVIEW_WIDTH;
+    final int mPreviewHeight = PREVIEW_HEIGHT;
 
     private int mFrameOrientation = ORIENTATION_PORTRAIT;
 
@@ -101,7 +254,39 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     private long mAutoFocusCompletedAt;
 
     private Camera mCamera;
-    private byte[] mPreviewBuffer;
+    private byte[][] mPreviewBuffers;
+    private long[] mPreviewBufferReceivedAt;
+
+    // Direct buffers for frame sources that can write straight into native memory, which the
+    // scanner reads without JNI copying anything. The camera can't, so it keeps using
+    // mPreviewBuffers. Allocated on first use.
+    private ArrayBlockingQueue<ByteBuffer> mDirectFrameBuffers;
+
+    // Latest-frame-wins mailbox between frame delivery and the scanner, holding either a preview
+    // buffer (byte[]) or a direct buffer (ByteBuffer). A frame that is replaced before the scanner
+    // gets to it is recycled straight away, so the scanner always works on the newest frame.
+    private final AtomicReference<Object> mPendingFrame = new AtomicReference<>();
+
+    private final Handler mMainHandler;
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler;
+
+    // Guards the native scanner and the camera's callback buffers, both of which are touched by the
+    // processing thread as well as by the activity lifecycle on the main thread.
+    private final Object mProcessingLock = new Object();
+    // Written under either lock or both, and read by the recognizing thread under mRecognitionLock
+    // only, so it must be seen across them.
+    private volatile boolean mScanningActive;
+
+    // Pipelined scan only: the recognizing thread and the queue of crops it reads from, null
+    // otherwise. mRecognitionLock guards the native recognizer the way mProcessingLock guards the
+    // detector. Whoever needs both takes mRecognitionLock first.
+    private CardCropQueue mCropQueue;
+    private Thread mRecognitionThread;
+    private final Object mRecognitionLock = new Object();
+    private final DetectionInfo mRecognizedInfo = new DetectionInfo();
+    private volatile long mLastRecognitionNanos;
+    private int numCropsRecognized;
 
     // accessed by test harness subclass.
     protected boolean useCamera = true;
@@ -111,7 +296,30 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     private int numManualRefocus;
     private int numAutoRefocus;
     private int numManualTorchChange;
-    private int numFramesSkipped;
+    // counted on the camera's callback thread, reset and read on others
+    private final AtomicInteger numFramesSkipped = new AtomicInteger();
+    private int numFramesQueued;
+    private long totalFrameQueueLatency;
+    private long maxFrameQueueLatency;
+    private int numCardImagesRendered;
+
+    // Set up along with the camera, null if the frame rate is left alone.
+    private volatile FrameRateGovernor mFrameRateGovernor;
+
+    // Continuous scan only, guarded by mProcessingLock. After a card is read, the next one isn't
+    // until the last one is taken away, or it would be read again and again.
+    private boolean mAwaitingCardRemoval;
+    private int mFramesWithoutCard;
+    private long mCardPresentedAt;
+    // the recognizer still holds the evidence of the last card, cleared before it reads the next
+    private volatile boolean mResetCardPending;
+    private int numCardsScanned;
+    private long totalCardLatency;
+    private long maxCardLatency;
+
+    // Per-frame telemetry, null unless a ScanEventListener was registered.
+    private ScanEventBuffer mScanEvents;
+    private final long[] mFrameStageNanos = new long[ScanMetrics.STAGE_COUNT];
 
     // ------------------------------------------------------------------------
     // STATIC INITIALIZATION
@@ -121,11 +329,22 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         Log.i(Util.PUBLIC_LOG_TAG, "card.io " + BuildConfig.PRODUCT_VERSION + " " + BuildConfig.BUILD_TIME);
 
         try {
-            loadLibrary("cardioDecider");
-            Log.d(Util.PUBLIC_LOG_TAG, "Loaded card.io decider library.");
-            Log.d(Util.PUBLIC_LOG_TAG, "    nUseNeon(): " + nUseNeon());
-            Log.d(Util.PUBLIC_LOG_TAG, "    nUseTegra():" + nUseTegra());
-            Log.d(Util.PUBLIC_LOG_TAG, "    nUseX86():  " + nUseX86());
+            HardwareCapabilityCache.Capabilities cached = HardwareCapabilityCache.cached();
+            if (cached != null) {
+                sUseNeon = cached.neon;
+                sUseTegra = cached.tegra;
+                sUseX86 = cached.x86;
+                Log.d(Util.PUBLIC_LOG_TAG, "Using the cached card.io decider flags.");
+            } else {
+                loadLibrary("cardioDecider");
+                Log.d(Util.PUBLIC_LOG_TAG, "Loaded card.io decider library.");
+                sUseNeon = nUseNeon();
+                sUseTegra = nUseTegra();
+                sUseX86 = nUseX86();
+            }
+            Log.d(Util.PUBLIC_LOG_TAG, "    nUseNeon(): " + sUseNeon);
+            Log.d(Util.PUBLIC_LOG_TAG, "    nUseTegra():" + sUseTegra);
+            Log.d(Util.PUBLIC_LOG_TAG, "    nUseX86():  " + sUseX86);
 
             if (usesSupportedProcessorArch()) {
                 loadLibrary("opencv_core");
@@ -133,13 +352,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
                 loadLibrary("opencv_imgproc");
                 Log.d(Util.PUBLIC_LOG_TAG, "Loaded opencv imgproc library");
             }
-            if (nUseNeon()) {
+            if (sUseNeon) {
                 loadLibrary("cardioRecognizer");
                 Log.i(Util.PUBLIC_LOG_TAG, "Loaded card.io NEON library");
-            } else if (nUseX86()) {
+            } else if (sUseX86) {
                 loadLibrary("cardioRecognizer");
                 Log.i(Util.PUBLIC_LOG_TAG, "Loaded card.io x86 library");
-            } else if (nUseTegra()) {
+            } else if (sUseTegra) {
                 loadLibrary("cardioRecognizer_tegra2");
                 Log.i(Util.PUBLIC_LOG_TAG, "Loaded card.io Tegra2 library");
             } else {
@@ -182,7 +401,19 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
     }
 
     private static boolean usesSupportedProcessorArch() {
-        return nUseNeon() || nUseTegra() || nUseX86();
+        return sUseNeon || sUseTegra || sUseX86;
+    }
+
+    static boolean usesNeon() {
+        return sUseNeon;
+    }
+
+    static boolean usesTegra() {
+        return sUseTegra;
+    }
+
+    static boolean usesX86() {
+        return sUseX86;
     }
 
     static boolean processorSupported() {
@@ -196,10 +427,104 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
             mScanExpiry = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_REQUIRE_EXPIRY, false)
                     && scanIntent.getBooleanExtra(CardIOActivity.EXTRA_SCAN_EXPIRY, true);
             mUnblurDigits = scanIntent.getIntExtra(CardIOActivity.EXTRA_UNBLUR_DIGITS, DEFAULT_UNBLUR_DIGITS);
+            mPreviewBufferCount = Math.max(1, Math.min(MAX_PREVIEW_BUFFER_COUNT,
+                    scanIntent.getIntExtra(CardIOActivity.EXTRA_PREVIEW_BUFFER_COUNT,
+                            DEFAULT_PREVIEW_BUFFER_COUNT)));
+            mScanOnBackgroundThread = scanIntent.getBooleanExtra(
+                    CardIOActivity.EXTRA_SCAN_ON_BACKGROUND_THREAD, true);
+            mCardImageRenderMode = scanIntent.getIntExtra(
+                    CardIOActivity.EXTRA_CARD_IMAGE_RENDER_MODE,
+                    CardIOActivity.CARD_IMAGE_RENDER_ON_COMPLETION);
+            if (mCardImageRenderMode == CardIOActivity.CARD_IMAGE_RENDER_NEVER && (mSuppressScan
+                    || scanIntent.getBooleanExtra(CardIOActivity.EXTRA_RETURN_CARD_IMAGE, false))) {
+                Log.w(Util.PUBLIC_LOG_TAG, "The card image is needed, so it will be rendered after all");
+                mCardImageRenderMode = CardIOActivity.CARD_IMAGE_RENDER_ON_COMPLETION;
+            }
+            int renderRate = Math.max(1, scanIntent.getIntExtra(
+                    CardIOActivity.EXTRA_CARD_IMAGE_RENDER_RATE, DEFAULT_CARD_IMAGE_RENDER_RATE));
+            mCardImageRenderInterval = 1000 / renderRate;
+            int edgeUpdateRate = scanIntent.getIntExtra(CardIOActivity.EXTRA_MAX_EDGE_UPDATE_RATE,
+                    DEFAULT_MAX_EDGE_UPDATE_RATE);
+            mMinEdgeUpdateInterval = edgeUpdateRate > 0 ? 1000 / edgeUpdateRate : 0;
+            mUseGuideRoi = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_GUIDE_FRAME_ROI, false);
+            mAdaptiveFrameRate = scanIntent.getBooleanExtra(
+                    CardIOActivity.EXTRA_ADAPTIVE_FRAME_RATE, true);
+            mPipelinedScan = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_PIPELINED_SCAN, false);
+            mCoarseEdges = scanIntent.getBooleanExtra(
+                    CardIOActivity.EXTRA_COARSE_EDGE_DETECTION, false);
+            mCornerTracking = scanIntent.getBooleanExtra(
+                    CardIOActivity.EXTRA_CORNER_TRACKING, false);
+            if (scanIntent.getBooleanExtra(CardIOActivity.EXTRA_CONTINUOUS_SCAN, false)) {
+                if (CardIOActivity.getContinuousScanListener() == null) {
+                    Log.w(Util.PUBLIC_LOG_TAG, "No ContinuousScanListener set, so the scan stops after the first card");
+                } else {
+                    mContinuousScan = !mSuppressScan;
+                }
+            }
         }
         mScanActivityRef = new WeakReference<>(scanActivity);
         mFrameOrientation = currentFrameOrientation;
-        nSetup(mSuppressScan, MIN_FOCUS_SCORE, mUnblurDigits);
+        mMainHandler = new Handler(Looper.getMainLooper(), this);
+        mSessionId = scanActivity.getScanSessionId();
+        mActivityCreatedAt = scanActivity.getCreatedAt();
+        mStartup = scanActivity.getScannerStartup();
+        ScannerSessionCache.Session session = ScannerSessionCache.adopt(mSessionId);
+        if (session != null) {
+            // the activity was re-created, carry on where its scanner left off
+            mNativeContext = session.context;
+            captureStart = session.captureStart;
+            numSessionsContinued = session.timesContinued;
+            mSessionAdopted = true;
+        } else if (mStartup != null) {
+            mNativeContext = mStartup.takeContext(mSuppressScan, mUnblurDigits);
+        }
+        if (mNativeContext == 0) {
+            // the frame geometry lets the native side size its scratch images once, up front
+            mNativeContext = nSetup(mSuppressScan, MIN_FOCUS_SCORE, mUnblurDigits, mPreviewWidth,
+                    mPreviewHeight);
+        }
+        byte[] savedState = scanActivity.takeSavedScannerState();
+        if (session == null && savedState != null && nRestoreState(mNativeContext, savedState)) {
+            // The process was killed in between, carry on from what the activity saved of it. How
+            // long the scan took before that went with the process.
+            captureStart = System.currentTimeMillis();
+            mSessionAdopted = true;
+        }
+        nSetGuideRoi(mNativeContext, mUseGuideRoi);
+        nSetCoarseEdges(mNativeContext, mCoarseEdges);
+        nSetCornerTracking(mNativeContext, mCornerTracking);
+
+        ScanEventListener scanEventListener = CardIOActivity.getScanEventListener();
+        if (scanEventListener != null) {
+            mScanEvents = new ScanEventBuffer(scanEventListener, ScanEventBuffer.DEFAULT_CAPACITY);
+        }
+
+        if (mScanOnBackgroundThread) {
+            mProcessingThread = new HandlerThread("card.io scanner", Process.THREAD_PRIORITY_DISPLAY);
+            mProcessingThread.start();
+            mProcessingHandler = new Handler(mProcessingThread.getLooper(), this);
+
+            // Detecting only has nothing left to overlap, and a single core has nothing to overlap
+            // it on.
+            if (mPipelinedScan && !mSuppressScan && Runtime.getRuntime().availableProcessors() > 1) {
+                startRecognitionThread();
+            }
+        }
+    }
+
+    /**
+     * For tests, which feed frames to {@link #onPreviewFrame} on the calling thread and override
+     * {@link #scanFrame(byte[], DetectionInfo)} to stand in for the native scanner. There is no
+     * camera, activity or native context, and scanning is active straight away.
+     */
+    CardScanner(int currentFrameOrientation) {
+        mFrameOrientation = currentFrameOrientation;
+        mMainHandler = new Handler(Looper.getMainLooper(), this);
+        mScanActivityRef = new WeakReference<>(null);
+        mSessionId = 0;
+        mActivityCreatedAt = 0;
+        mScanOnBackgroundThread = false;
+        mScanningActive = true;
     }
 
     /**
@@ -207,30 +532,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      * <code>false</code> if maxTimeout passes.
      */
     private Camera connectToCamera(int checkInterval, int maxTimeout) {
-        long start = System.currentTimeMillis();
-        if (useCamera) {
-            do {
-                try {
-                    // Camera.open() will open the back-facing camera. Front cameras are not
-                    // attempted.
-                    return Camera.open();
-                } catch (RuntimeException e) {
-                    try {
-                        Log.w(Util.PUBLIC_LOG_TAG,
-                                "Wasn't able to connect to camera service. Waiting and trying again...");
-                        Thread.sleep(checkInterval);
-                    } catch (InterruptedException e1) {
-                        Log.e(Util.PUBLIC_LOG_TAG, "Interrupted while waiting for camera", e1);
-                    }
-                } catch (Exception e) {
-                    Log.e(Util.PUBLIC_LOG_TAG, "Unexpected exception. Please report it as a GitHub issue", e);
-                    maxTimeout = 0;
-                }
-
-            } while (System.currentTimeMillis() - start < maxTimeout);
+        if (mStartup != null) {
+            // already opening, since the activity started
+            Camera camera = mStartup.takeCamera();
+            mStartup = null;
+            return camera;
         }
-        Log.w(TAG, "camera connect timeout");
-        return null;
+        return useCamera ? ScannerStartup.openCamera(checkInterval, maxTimeout) : null;
     }
 
     void prepareScanner() {
@@ -238,12 +546,6 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         mAutoFocusStartedAt = 0;
         mAutoFocusCompletedAt = 0;
 
-        numManualRefocus = 0;
-        numAutoRefocus = 0;
-        numManualTorchChange = 0;
-
-        numFramesSkipped = 0;
-
         if (useCamera && mCamera == null) {
             mCamera = connectToCamera(CAMERA_CONNECT_RETRY_INTERVAL, CAMERA_CONNECT_TIMEOUT);
             if (mCamera == null) {
@@ -255,7 +557,13 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
             Camera.Parameters parameters = mCamera.getParameters();
 
-            List<Size> supportedPreviewSizes = parameters.getSupportedPreviewSizes();
+            // The hardware check already found the preview size among the camera's, if it was
+            // cached. Otherwise look for it.
+            HardwareCapabilityCache.Capabilities cached = HardwareCapabilityCache.cached();
+            boolean previewSizeKnown = cached != null && cached.previewWidth == mPreviewWidth
+                    && cached.previewHeight == mPreviewHeight;
+            List<Size> supportedPreviewSizes = previewSizeKnown ? null
+                    : parameters.getSupportedPreviewSizes();
             if (supportedPreviewSizes != null) {
                 Size previewSize = null;
                 for (Size s : supportedPreviewSizes) {
@@ -277,13 +585,22 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
             parameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
 
+            mFrameRateGovernor = null;
+            List<int[]> supportedFpsRanges = parameters.getSupportedPreviewFpsRange();
+            if (mAdaptiveFrameRate && supportedFpsRanges != null && !supportedFpsRanges.isEmpty()) {
+                int[] fpsRange = new int[2];
+                parameters.getPreviewFpsRange(fpsRange);
+                mFrameRateGovernor = new FrameRateGovernor(supportedFpsRanges, fpsRange);
+            }
+
             mCamera.setParameters(parameters);
         } else if (!useCamera) {
             Log.w(TAG, "useCamera is false!");
         } else if (mCamera != null) {
             Log.v(TAG, "we already have a camera instance: " + mCamera);
         }
-        if (detectedBitmap == null) {
+        if (detectedBitmap == null
+                && mCardImageRenderMode != CardIOActivity.CARD_IMAGE_RENDER_NEVER) {
             detectedBitmap = Bitmap.createBitmap(CREDIT_CARD_TARGET_WIDTH,
                     CREDIT_CARD_TARGET_HEIGHT, Bitmap.Config.ARGB_8888);
         }
@@ -302,14 +619,36 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
         assert holder != null;
 
-        if (useCamera && mPreviewBuffer == null) {
+        // before the camera starts, so its first autofocus and torch change count towards it
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                boolean continueSession = !mCardFound && (mSessionAdopted || (mPausedAt != 0
+                        && SystemClock.elapsedRealtime() - mPausedAt
+                        <= ScannerSessionCache.RESUME_WINDOW_MS));
+                mSessionAdopted = false;
+                if (continueSession) {
+                    // Keep what the scanner has seen of the card so far, but not where it was:
+                    // the camera has likely moved since.
+                    nSetCornerTracking(mNativeContext, mCornerTracking);
+                    numSessionsContinued++;
+                } else {
+                    resetSession();
+                }
+            }
+        }
+
+        if (useCamera && mPreviewBuffers == null) {
             Camera.Parameters parameters = mCamera.getParameters();
             int previewFormat = parameters.getPreviewFormat();
-            int bytesPerPixel = ImageFormat.getBitsPerPixel(previewFormat) / 8;
-            int bufferSize = mPreviewWidth * mPreviewHeight * bytesPerPixel * 3;
-
-            mPreviewBuffer = new byte[bufferSize];
-            mCamera.addCallbackBuffer(mPreviewBuffer);
+            int bufferSize = mPreviewWidth * mPreviewHeight
+                    * ImageFormat.getBitsPerPixel(previewFormat) / 8;
+
+            mPreviewBuffers = new byte[mPreviewBufferCount][];
+            mPreviewBufferReceivedAt = new long[mPreviewBufferCount];
+            for (int i = 0; i < mPreviewBufferCount; i++) {
+                mPreviewBuffers[i] = new byte[bufferSize];
+                mCamera.addCallbackBuffer(mPreviewBuffers[i]);
+            }
         }
 
         holder.addCallback(this);
@@ -324,38 +663,179 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
 
         // Turn flash off
         setFlashOn(false);
-        captureStart = System.currentTimeMillis();
 
-        nResetAnalytics();
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                if (mCropQueue != null) {
+                    mCropQueue.clear();
+                }
+                // the overlay starts out without edges, see CardIOActivity.onFirstFrame
+                mLastEdges.reset();
+                mScanningActive = true;
+            }
+        }
 
         return true;
     }
 
+    // with both locks held
+    private void resetSession() {
+        nResetAnalytics(mNativeContext);
+        mCardFound = false;
+        captureStart = System.currentTimeMillis();
+
+        numManualRefocus = 0;
+        numAutoRefocus = 0;
+        numManualTorchChange = 0;
+
+        numFramesSkipped.set(0);
+        numFramesQueued = 0;
+        totalFrameQueueLatency = 0;
+        maxFrameQueueLatency = 0;
+        numCardImagesRendered = 0;
+        mLastCardImageRender = 0;
+        mCardImagePreviewPending.set(false);
+        numSessionsContinued = 0;
+
+        mAwaitingCardRemoval = false;
+        mFramesWithoutCard = 0;
+        mCardPresentedAt = 0;
+        mResetCardPending = false;
+        numCardsScanned = 0;
+        totalCardLatency = 0;
+        maxCardLatency = 0;
+
+        if (mCropQueue != null) {
+            mCropQueue.resetCropsDropped();
+            numCropsRecognized = 0;
+        }
+    }
+
     public void pauseScanning() {
         setFlashOn(false);
-        // Because the Camera object is a shared resource, it's very
-        // important to release it when the activity is paused.
-        if (mCamera != null) {
-            try {
-                mCamera.stopPreview();
-                mCamera.setPreviewDisplay(null);
-            } catch (IOException e) {
-                Log.w(Util.PUBLIC_LOG_TAG, "can't stop preview display", e);
+
+        if (mProcessingHandler != null) {
+            mProcessingHandler.removeMessages(MSG_PROCESS_FRAME);
+        }
+        // a frame the scanner never got to goes back to the pool or the camera it came from
+        Object pendingFrame = mPendingFrame.getAndSet(null);
+        if (pendingFrame != null) {
+            recycleFrame(pendingFrame);
+        }
+        mMainHandler.removeMessages(MSG_CARD_DETECTED);
+        mMainHandler.removeMessages(MSG_CARD_IMAGE_PREVIEW);
+        mMainHandler.removeMessages(MSG_AUTO_FOCUS);
+        mMainHandler.removeMessages(MSG_PREVIEW_FPS_RANGE);
+
+        // Waits for a frame or crop that is already being scanned, so nothing touches the camera or
+        // the card image after this.
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                if (mScanningActive) {
+                    mPausedAt = SystemClock.elapsedRealtime();
+                }
+                mScanningActive = false;
+                if (mCropQueue != null) {
+                    mCropQueue.clear();
+                }
+
+                // no more edge updates can be posted now
+                mMainHandler.removeMessages(MSG_EDGE_UPDATE);
+                mEdgeUpdatePending.set(false);
+
+                // Because the Camera object is a shared resource, it's very
+                // important to release it when the activity is paused.
+                if (mCamera != null) {
+                    try {
+                        mCamera.stopPreview();
+                        mCamera.setPreviewDisplay(null);
+                    } catch (IOException e) {
+                        Log.w(Util.PUBLIC_LOG_TAG, "can't stop preview display", e);
+                    }
+                    mCamera.setPreviewCallback(null);
+                    mCamera.release();
+                    mPreviewBuffers = null;
+                    mCamera = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return what the scanner has gathered of the card so far, for {@link #nRestoreState} in a
+     * scanner that replaces this one after the process is killed, or <code>null</code> if the scan
+     * isn't interrupted or has nothing to carry on with.
+     */
+    byte[] saveSessionState() {
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                if (mCardFound || mPausedAt == 0 || mScanningActive || mNativeContext == 0) {
+                    return null;
+                }
+                return nSaveState(mNativeContext);
             }
-            mCamera.setPreviewCallback(null);
-            mCamera.release();
-            mPreviewBuffer = null;
-            mCamera = null;
         }
     }
 
     public void endScanning() {
+        endScanning(false);
+    }
+
+    /**
+     * @param keepSession whether to keep the scan session for the scanner of the activity that
+     *                    replaces this one, see {@link ScannerSessionCache}.
+     */
+    void endScanning(boolean keepSession) {
         if (mCamera != null) {
             pauseScanning();
         }
-        nCleanup();
 
-        mPreviewBuffer = null;
+        if (mProcessingThread != null) {
+            mProcessingThread.quit();
+            try {
+                mProcessingThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted while waiting for the processing thread", e);
+            }
+            mProcessingThread = null;
+            mProcessingHandler = null;
+        }
+        if (mRecognitionThread != null) {
+            mRecognitionThread.interrupt();
+            try {
+                mRecognitionThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "interrupted while waiting for the recognition thread", e);
+            }
+            mRecognitionThread = null;
+        }
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                if (keepSession && !mCardFound && mPausedAt != 0) {
+                    ScannerSessionCache.park(new ScannerSessionCache.Session(mSessionId,
+                            mNativeContext, captureStart, numSessionsContinued));
+                } else {
+                    nCleanup(mNativeContext);
+                }
+                mNativeContext = 0;
+            }
+            if (mCropQueue != null) {
+                for (CardCropQueue.Crop crop : mCropQueue.getCrops()) {
+                    nReleaseCrop(crop.handle);
+                }
+                mCropQueue = null;
+            }
+        }
+
+        if (mScanEvents != null) {
+            // nothing publishes any more; the listener is left to drain what it has
+            mScanEvents.stop();
+            mScanEvents = null;
+        }
+
+        mPreviewBuffers = null;
     }
 
     /*
@@ -431,8 +911,6 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
      * <p/>
      * This method is called by Android, never directly by application code.
      */
-    private static boolean processingInProgress = false;
-
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
 
@@ -441,47 +919,479 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
             return;
         }
 
-        if (processingInProgress) {
-            Log.e(TAG, "processing in progress.... dropping frame");
-            // return frame buffer to pool
-            numFramesSkipped++;
-            if (camera != null) {
-                camera.addCallbackBuffer(data);
+        int bufferIndex = indexOfPreviewBuffer(data);
+        if (bufferIndex >= 0) {
+            mPreviewBufferReceivedAt[bufferIndex] = SystemClock.uptimeMillis();
+        }
+
+        submitFrame(data);
+    }
+
+    /**
+     * @return a direct buffer with room for one NV21 frame, or <code>null</code> if they are all
+     * in use.
+     */
+    ByteBuffer obtainDirectFrameBuffer() {
+        synchronized (mProcessingLock) {
+            if (mDirectFrameBuffers == null) {
+                mDirectFrameBuffers = new ArrayBlockingQueue<>(mPreviewBufferCount);
+                for (int i = 0; i < mPreviewBufferCount; i++) {
+                    // NV21: a full resolution Y plane followed by interleaved, subsampled VU
+                    mDirectFrameBuffers.add(
+                            ByteBuffer.allocateDirect(mPreviewWidth * mPreviewHeight * 3 / 2));
+                }
             }
-            return;
         }
-        processingInProgress = true;
+        return mDirectFrameBuffers.poll();
+    }
 
+    /**
+     * Scans a frame that was written into a buffer from {@link #obtainDirectFrameBuffer()}. The
+     * buffer goes back to the pool once it has been scanned or replaced by a newer frame.
+     */
+    void onDirectFrame(ByteBuffer frame) {
+        submitFrame(frame);
+    }
+
+    private void submitFrame(Object frame) {
         // TODO: eliminate this foolishness and measure/layout properly.
         if (mFirstPreviewFrame) {
             mFirstPreviewFrame = false;
+            if (mTimeToFirstFrame == 0) {
+                mTimeToFirstFrame = SystemClock.elapsedRealtime() - mActivityCreatedAt;
+            }
             mFrameOrientation = ORIENTATION_PORTRAIT;
-            mScanActivityRef.get().onFirstFrame(ORIENTATION_PORTRAIT);
+            dispatchToActivity(MSG_FIRST_FRAME, 0, null);
         }
 
-        DetectionInfo dInfo = new DetectionInfo();
+        FrameRateGovernor governor = mFrameRateGovernor;
+        if (governor != null && !governor.onFrameArrived(System.nanoTime())) {
+            // more frames than the scanner can take, and no slower fps range to ask for
+            recycleFrame(frame);
+            if (mScanEvents != null) {
+                mScanEvents.publishDropped(ScanEvent.DROP_STRIDE);
+            }
+            return;
+        }
+
+        Object staleFrame = mPendingFrame.getAndSet(frame);
+        if (staleFrame != null) {
+            // the scanner never got to the previous frame. Recycle it straight away.
+            Log.v(TAG, "scanner busy, replacing pending frame");
+            numFramesSkipped.incrementAndGet();
+            recycleFrame(staleFrame);
+            if (mScanEvents != null) {
+                mScanEvents.publishDropped(ScanEvent.DROP_SUPERSEDED);
+            }
+        } else if (mProcessingHandler != null) {
+            // one message per frame put into an empty mailbox; a replaced frame rides along
+            mProcessingHandler.sendEmptyMessage(MSG_PROCESS_FRAME);
+        }
+
+        if (mProcessingHandler == null) {
+            processPendingFrame();
+        }
+    }
+
+    private void processPendingFrame() {
+        Object frame = mPendingFrame.getAndSet(null);
+        if (frame == null) {
+            return;
+        }
+
+        int bufferIndex = frame instanceof byte[] ? indexOfPreviewBuffer((byte[]) frame) : -1;
+        if (bufferIndex >= 0) {
+            long queueLatency = SystemClock.uptimeMillis() - mPreviewBufferReceivedAt[bufferIndex];
+            // read by getMetrics() on another thread
+            synchronized (mProcessingLock) {
+                numFramesQueued++;
+                totalFrameQueueLatency += queueLatency;
+                maxFrameQueueLatency = Math.max(maxFrameQueueLatency, queueLatency);
+            }
+        }
+
+        processFrame(frame);
+    }
+
+    private int indexOfPreviewBuffer(byte[] data) {
+        byte[][] buffers = mPreviewBuffers;
+        if (buffers != null) {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] == data) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the native scanner over a single frame, then hands the buffer back to the camera. Called
+     * on the processing thread, or directly from {@link #onPreviewFrame} when scanning on the
+     * camera's thread.
+     */
+    private void processFrame(Object frame) {
+        synchronized (mProcessingLock) {
+            if (!mScanningActive) {
+                // paused, or a card was already found. Don't overwrite the detected image.
+                recycleFrame(frame);
+                if (mScanEvents != null) {
+                    mScanEvents.publishDropped(ScanEvent.DROP_NOT_SCANNING);
+                }
+                return;
+            }
+
+            DetectionInfo dInfo = mFrameInfo;
+            dInfo.reset();
+
+            if (mResetCardPending && mCropQueue == null) {
+                // the pipelined scan does this on the recognizing thread
+                nResetCard(mNativeContext);
+                mResetCardPending = false;
+            }
+
+            long scanStart = System.nanoTime();
+            if (mCropQueue != null) {
+                detectFrame(frame, dInfo);
+            } else if (frame instanceof ByteBuffer) {
+                scanFrame((ByteBuffer) frame, dInfo);
+            } else {
+                scanFrame((byte[]) frame, dInfo);
+            }
+            long scanNanos = System.nanoTime() - scanStart;
+
+            FrameRateGovernor governor = mFrameRateGovernor;
+            // pipelined, frames get through as fast as the slower of the two threads
+            if (governor != null && governor.onFrameScanned(Math.max(scanNanos,
+                    mCropQueue != null ? mLastRecognitionNanos : 0))) {
+                mMainHandler.sendEmptyMessage(MSG_PREVIEW_FPS_RANGE);
+            }
+
+            boolean sufficientFocus = (dInfo.focusScore >= MIN_FOCUS_SCORE);
 
+            if (mScanEvents != null) {
+                nGetStageTimes(mNativeContext, mFrameStageNanos);
+                mScanEvents.publishScanned(dInfo, sufficientFocus && dInfo.detected(),
+                        mFrameStageNanos);
+            }
+
+            if (sufficientFocus && !dInfo.sameEdgesAs(mLastEdges)) {
+                mLastEdges.copyEdgesFrom(dInfo);
+                postEdgeUpdate(dInfo.edgeFlags());
+            }
+
+            if (!sufficientFocus) {
+                dispatchToActivity(MSG_AUTO_FOCUS, 0, null);
+            } else if (mContinuousScan) {
+                trackCardPresence(dInfo.detected());
+                if (dInfo.predicted()) {
+                    onContinuousScanResult(dInfo);
+                }
+            } else if (dInfo.predicted() || (mSuppressScan && dInfo.detected())) {
+                mScanningActive = false;
+                mCardFound = true;
+                dispatchToActivity(MSG_CARD_DETECTED, 0, dInfo);
+            }
+            // give the image buffer back to the camera, AFTER we're done reading
+            // the image.
+            recycleFrame(frame);
+        }
+    }
+
+    // package-private for benchmarks, which call these without a camera or an activity, and for
+    // tests, which override them
+    void scanFrame(byte[] data, DetectionInfo dInfo) {
         /** pika **/
-        nScanFrame(data, mPreviewWidth, mPreviewHeight, mFrameOrientation, dInfo, detectedBitmap, mScanExpiry);
+        int renderMode = nextRenderMode();
+        onCardImageRendered(renderMode, nScanFrame(mNativeContext, data, mPreviewWidth,
+                mPreviewHeight, mFrameOrientation, dInfo, detectedBitmap, mScanExpiry, renderMode));
+    }
+
+    void scanFrame(ByteBuffer data, DetectionInfo dInfo) {
+        int renderMode = nextRenderMode();
+        onCardImageRendered(renderMode, nScanFrameDirect(mNativeContext, data, mPreviewWidth,
+                mPreviewHeight, mFrameOrientation, dInfo, detectedBitmap, mScanExpiry, renderMode));
+    }
+
+    /**
+     * Pipelined scan: finds the card in a frame and queues its crop for the recognizing thread.
+     * The frame itself is done with once this returns.
+     */
+    private void detectFrame(Object frame, DetectionInfo dInfo) {
+        CardCropQueue.Crop crop = mCropQueue.obtain();
+        boolean detected;
+        if (frame instanceof ByteBuffer) {
+            detected = nDetectFrameDirect(mNativeContext, (ByteBuffer) frame, mPreviewWidth,
+                    mPreviewHeight, mFrameOrientation, dInfo, crop.handle);
+        } else {
+            detected = nDetectFrame(mNativeContext, (byte[]) frame, mPreviewWidth, mPreviewHeight,
+                    mFrameOrientation, dInfo, crop.handle);
+        }
+
+        if (detected) {
+            crop.focusScore = dInfo.focusScore;
+            crop.edgeFlags = dInfo.edgeFlags();
+            mCropQueue.publish(crop);
+        } else {
+            mCropQueue.recycle(crop);
+        }
+    }
+
+    private void startRecognitionThread() {
+        CardCropQueue.Crop[] crops = new CardCropQueue.Crop[PIPELINE_QUEUE_CAPACITY + 2];
+        for (int i = 0; i < crops.length; i++) {
+            crops[i] = new CardCropQueue.Crop(nCreateCrop());
+        }
+        mCropQueue = new CardCropQueue(crops, PIPELINE_QUEUE_CAPACITY);
+
+        mRecognitionThread = new Thread("card.io recognizer") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                recognizeCrops();
+            }
+        };
+        mRecognitionThread.start();
+    }
+
+    /**
+     * Pipelined scan: the recognizing thread's loop, which reads the number off every crop the
+     * detecting thread queues, until interrupted by {@link #endScanning()}.
+     */
+    private void recognizeCrops() {
+        while (true) {
+            CardCropQueue.Crop crop;
+            try {
+                crop = mCropQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (mRecognitionLock) {
+                // queued before a pause, or after a card was already found
+                if (mScanningActive) {
+                    recognizeCrop(crop);
+                }
+            }
+            mCropQueue.recycle(crop);
+        }
+    }
+
+    // with mRecognitionLock held
+    private void recognizeCrop(CardCropQueue.Crop crop) {
+        // Only handed to the main thread along with a detected card, like mFrameInfo.
+        DetectionInfo dInfo = mRecognizedInfo;
+        dInfo.reset();
+        dInfo.focusScore = crop.focusScore;
+        dInfo.setEdgeFlags(crop.edgeFlags);
+
+        if (mResetCardPending) {
+            nResetCard(mNativeContext);
+            mResetCardPending = false;
+        }
 
-        boolean sufficientFocus = (dInfo.focusScore >= MIN_FOCUS_SCORE);
+        long start = System.nanoTime();
+        int renderMode = nextRenderMode();
+        onCardImageRendered(renderMode, nRecognizeCrop(mNativeContext, crop.handle, dInfo,
+                detectedBitmap, mScanExpiry, renderMode));
+        mLastRecognitionNanos = System.nanoTime() - start;
+        numCropsRecognized++;
 
-        if (!sufficientFocus) {
-            triggerAutoFocus(false);
-        } else if (dInfo.predicted() || (mSuppressScan && dInfo.detected())) {
-            mScanActivityRef.get().onCardDetected(detectedBitmap, dInfo);
+        if (!dInfo.predicted()) {
+            return;
         }
-        // give the image buffer back to the camera, AFTER we're done reading
-        // the image.
-        if (camera != null) {
-            camera.addCallbackBuffer(data);
+        synchronized (mProcessingLock) {
+            if (mContinuousScan) {
+                onContinuousScanResult(dInfo);
+                return;
+            }
+            mScanningActive = false;
+            mCardFound = true;
         }
-        processingInProgress = false;
+        dispatchToActivity(MSG_CARD_DETECTED, 0, dInfo);
+    }
 
+    /**
+     * Continuous scan only, for every sharp frame: notes when a card is put in front of the camera,
+     * for the latency of reading it, and when it is taken away, so the next card can be read.
+     * With mProcessingLock held.
+     */
+    private void trackCardPresence(boolean cardInFrame) {
+        if (cardInFrame) {
+            mFramesWithoutCard = 0;
+            if (mCardPresentedAt == 0 && !mAwaitingCardRemoval) {
+                mCardPresentedAt = System.nanoTime();
+            }
+        } else if (mFramesWithoutCard < CARD_REMOVED_FRAMES
+                && ++mFramesWithoutCard == CARD_REMOVED_FRAMES) {
+            // Taken away, whether it was read or not. Whatever the recognizer saw of it would only
+            // get mixed up with the next card.
+            mAwaitingCardRemoval = false;
+            mCardPresentedAt = 0;
+            mResetCardPending = true;
+        }
     }
 
-    void onEdgeUpdate(DetectionInfo dInfo) {
-        mScanActivityRef.get().onEdgeUpdate(dInfo);
+    /**
+     * Continuous scan only: hands a card read to the activity, unless it is the one already read,
+     * and has the scanner carry on with the next. With mProcessingLock held.
+     */
+    private void onContinuousScanResult(DetectionInfo dInfo) {
+        if (!mAwaitingCardRemoval) {
+            long latency = mCardPresentedAt == 0 ? 0
+                    : (System.nanoTime() - mCardPresentedAt) / 1000000;
+            numCardsScanned++;
+            totalCardLatency += latency;
+            maxCardLatency = Math.max(maxCardLatency, latency);
+            dispatchToActivity(MSG_CARD_SCANNED, (int) latency, dInfo.creditCard());
+        }
+        mAwaitingCardRemoval = true;
+        mCardPresentedAt = 0;
+        mResetCardPending = true;
+    }
+
+    /**
+     * Whether the next frame should render the card image, if it finds a card. Rendering takes two
+     * chroma warps, a color conversion and a blur, so by default it only happens for the frame
+     * that completes the scan. A throttled render also shows the card in the overlay while it is
+     * in view, no more often than the render rate and only once the last one is on screen. A
+     * continuous scan only hands its listener the card read, so it never renders.
+     */
+    private int nextRenderMode() {
+        if (mContinuousScan || mCardImageRenderMode == CardIOActivity.CARD_IMAGE_RENDER_NEVER) {
+            return RENDER_NEVER;
+        }
+        if (mCardImageRenderMode == CardIOActivity.CARD_IMAGE_RENDER_THROTTLED
+                && !mCardImagePreviewPending.get()
+                && SystemClock.elapsedRealtime() - mLastCardImageRender >= mCardImageRenderInterval) {
+            return RENDER_THROTTLED;
+        }
+        return RENDER_ON_COMPLETION;
+    }
+
+    private void onCardImageRendered(int renderMode, boolean rendered) {
+        if (!rendered) {
+            return;
+        }
+        numCardImagesRendered++;
+        if (renderMode == RENDER_THROTTLED) {
+            mLastCardImageRender = SystemClock.elapsedRealtime();
+            mCardImagePreviewPending.set(true);
+            dispatchToActivity(MSG_CARD_IMAGE_PREVIEW, 0, null);
+        }
+    }
+
+    private void recycleFrame(Object frame) {
+        if (frame instanceof ByteBuffer) {
+            ByteBuffer direct = (ByteBuffer) frame;
+            direct.clear();
+            mDirectFrameBuffers.offer(direct);
+        } else {
+            returnPreviewBuffer((byte[]) frame);
+        }
+    }
+
+    private void returnPreviewBuffer(byte[] data) {
+        synchronized (mProcessingLock) {
+            if (mCamera != null && mPreviewBuffers != null) {
+                mCamera.addCallbackBuffer(data);
+            }
+        }
+    }
+
+    /**
+     * Delivers a scanner event to {@link CardIOActivity}, which must only be touched on the main
+     * thread.
+     */
+    private void dispatchToActivity(int what, int arg, Object obj) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            handleActivityMessage(what, arg, obj);
+        } else {
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(what, arg, 0, obj));
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_PROCESS_FRAME) {
+            processPendingFrame();
+        } else if (msg.what == MSG_EDGE_UPDATE) {
+            // cleared before reading the flags, so a change racing with this gets its own update
+            mEdgeUpdatePending.set(false);
+            mLastEdgeUpdate = SystemClock.uptimeMillis();
+            handleActivityMessage(MSG_EDGE_UPDATE, mPendingEdgeFlags.get(), null);
+        } else if (msg.what == MSG_PREVIEW_FPS_RANGE) {
+            applyPreviewFpsRange();
+        } else {
+            handleActivityMessage(msg.what, msg.arg1, msg.obj);
+        }
+        return true;
+    }
+
+    private void handleActivityMessage(int what, int arg, Object obj) {
+        CardIOActivity activity = mScanActivityRef.get();
+        if (activity == null) {
+            return;
+        }
+
+        switch (what) {
+            case MSG_FIRST_FRAME:
+                activity.onFirstFrame(ORIENTATION_PORTRAIT);
+                break;
+            case MSG_EDGE_UPDATE:
+                mEdgeInfo.setEdgeFlags(arg);
+                activity.onEdgeUpdate(mEdgeInfo);
+                break;
+            case MSG_CARD_DETECTED:
+                activity.onCardDetected(detectedBitmap, (DetectionInfo) obj);
+                break;
+            case MSG_CARD_IMAGE_PREVIEW:
+                activity.onCardImagePreview(detectedBitmap);
+                mCardImagePreviewPending.set(false);
+                break;
+            case MSG_AUTO_FOCUS:
+                triggerAutoFocus(false);
+                break;
+            case MSG_CARD_SCANNED:
+                activity.onCardScanned((CreditCard) obj, arg);
+                break;
+            default:
+                Log.w(TAG, "unknown message: " + what);
+                break;
+        }
+    }
+
+    /**
+     * Tells the activity that the detected edges changed, at most once per
+     * {@link #mMinEdgeUpdateInterval}. Changes that come in faster than that are coalesced into
+     * the pending update, so the overlay only ever sees the latest edges.
+     */
+    private void postEdgeUpdate(int edgeFlags) {
+        mPendingEdgeFlags.set(edgeFlags);
+        if (mEdgeUpdatePending.compareAndSet(false, true)) {
+            long due = Math.max(SystemClock.uptimeMillis(), mLastEdgeUpdate + mMinEdgeUpdateInterval);
+            mMainHandler.sendMessageAtTime(mMainHandler.obtainMessage(MSG_EDGE_UPDATE), due);
+        }
+    }
+
+    /**
+     * Sets the fps range the {@link FrameRateGovernor} picked on the camera. Main thread only,
+     * like everything else that touches the camera's parameters.
+     */
+    private void applyPreviewFpsRange() {
+        FrameRateGovernor governor = mFrameRateGovernor;
+        if (mCamera == null || governor == null || governor.getFpsRange() == null) {
+            return;
+        }
+        int[] fpsRange = governor.getFpsRange();
+        try {
+            Camera.Parameters params = mCamera.getParameters();
+            params.setPreviewFpsRange(fpsRange[FrameRateGovernor.FPS_MIN_INDEX],
+                    fpsRange[FrameRateGovernor.FPS_MAX_INDEX]);
+            mCamera.setParameters(params);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not set preview fps range: " + e);
+        }
     }
 
     Rect getGuideFrame(int orientation, int previewWidth, int previewHeight) {
@@ -509,18 +1419,75 @@ class CardScanner implements Camera.PreviewCallback, Camera.AutoFocusCallback,
         return mFrameOrientation;
     }
 
-    Map<String, Object> getAnalytics() {
-        HashMap<String, Object> analytics = new HashMap<String, Object>(11);
-
-        analytics.put("num_frames_scanned", Integer.valueOf(nGetNumFramesScanned()));
-        analytics.put("num_frames_skipped", Integer.valueOf(numFramesSkipped));
+    /**
+     * @return a snapshot of this scan session so far, including how long each stage of the native
+     * scanner took per frame.
+     */
+    ScanMetrics getMetrics() {
+        ScanMetrics metrics = new ScanMetrics();
+
+        synchronized (mRecognitionLock) {
+            synchronized (mProcessingLock) {
+                metrics.framesScanned = nGetNumFramesScanned(mNativeContext);
+                metrics.framesRejectedCoarse = nGetCoarseRejectCount(mNativeContext);
+                int[] trackingCounts = new int[2];
+                nGetTrackingCounts(mNativeContext, trackingCounts);
+                metrics.framesTracked = trackingCounts[0];
+                metrics.trackingLosses = trackingCounts[1];
+                nGetStageHistograms(mNativeContext, metrics.stageBuckets, metrics.stageTotalNanos,
+                        metrics.stageMaxNanos);
+                metrics.averageFrameQueueLatencyMs = numFramesQueued == 0 ? 0
+                        : (double) totalFrameQueueLatency / numFramesQueued;
+                metrics.maxFrameQueueLatencyMs = maxFrameQueueLatency;
+                // counted by the scanning threads, with one of these locks held
+                metrics.cropsRecognized = numCropsRecognized;
+                metrics.cardImagesRendered = numCardImagesRendered;
+            }
+        }
+        metrics.framesSkipped = numFramesSkipped.get();
+        metrics.elapsedSeconds = (System.currentTimeMillis() - captureStart) / 1000.0;
+
+        metrics.manualRefocusings = numManualRefocus;
+        metrics.autoRefocusings = numAutoRefocus;
+        metrics.manualTorchChanges = numManualTorchChange;
+
+        metrics.previewBufferCount = mPreviewBufferCount;
+        metrics.scanOnBackgroundThread = mProcessingThread != null;
+        metrics.cardImageRenderMode = mCardImageRenderMode;
+        metrics.guideFrameRoi = mUseGuideRoi;
+        metrics.coarseEdgeDetection = mCoarseEdges;
+        metrics.cornerTracking = mCornerTracking;
+        metrics.sessionsContinued = numSessionsContinued;
+        metrics.timeToFirstFrameMs = mTimeToFirstFrame;
+
+        metrics.continuousScan = mContinuousScan;
+        if (mContinuousScan) {
+            synchronized (mProcessingLock) {
+                metrics.cardsScanned = numCardsScanned;
+                metrics.averageCardLatencyMs = numCardsScanned == 0 ? 0
+                        : (double) totalCardLatency / numCardsScanned;
+                metrics.maxCardLatencyMs = maxCardLatency;
+            }
+        }
 
-        analytics.put("elapsed_time", Double.valueOf((System.currentTimeMillis() - captureStart) / 1000));
+        metrics.pipelinedScan = mCropQueue != null;
+        if (mCropQueue != null) {
+            metrics.cropsDropped = mCropQueue.getCropsDropped();
+        }
 
-        analytics.put("num_manual_refocusings", Integer.valueOf(numManualRefocus));
-        analytics.put("num_auto_triggered_refocusings", Integer.valueOf(numAutoRefocus));
-        analytics.put("num_manual_torch_changes", Integer.valueOf(numManualTorchChange));
-        return analytics;
+        FrameRateGovernor governor = mFrameRateGovernor;
+        metrics.adaptiveFrameRate = governor != null;
+        if (governor != null) {
+            int[] fpsRange = governor.getFpsRange();
+            metrics.previewFpsMin = fpsRange[FrameRateGovernor.FPS_MIN_INDEX] / 1000.0;
+            metrics.previewFpsMax = fpsRange[FrameRateGovernor.FPS_MAX_INDEX] / 1000.0;
+            metrics.scannerFps = governor.getScanFps();
+            metrics.frameStride = governor.getStride();
+            metrics.framesStrided = governor.getFramesStrided();
+            metrics.fpsRangeChanges = governor.getFpsRangeChanges();
+            metrics.frameStrideChanges = governor.getStrideChanges();
+        }
+        return metrics;
     }
 
     // ------------------------------------------------------------------------
@@ -8,11 +8,6 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
-import android.util.Pair;
-
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map.Entry;
 
 import io.card.payment.i18n.LocalizedStrings;
 import io.card.payment.i18n.StringKey;
@@ -212,80 +207,37 @@ public enum CardType {
         return null;
     }
 
-    /**
-     * Determine if a number matches a prefix interval
-     *
-     * @param number credit card number
-     * @param intervalStart prefix (e.g. "4") or prefix interval start (e.g. "51")
-     * @param intervalEnd prefix interval end (e.g. "55") or null for non-intervals
-     * @return -1 for insufficient digits, 0 for no, 1 for yes.
-     */
-    private static boolean isNumberInInterval(String number, String intervalStart,
-                                              String intervalEnd) {
-        // Log.d("CardType", "numberInInterval(number:" + number + ",intervalStart:" + intervalStart
-        // + ",intervalEnd:" + intervalEnd + ")");
-
-        int numCompareStart = Math.min(number.length(), intervalStart.length());
-        int numCompareEnd = Math.min(number.length(), intervalEnd.length());
-
-        if (Integer.parseInt(number.substring(0, numCompareStart)) < Integer.parseInt(intervalStart
-                .substring(0, numCompareStart))) {
-            // number is too low
-            return false;
-        } else if (Integer.parseInt(number.substring(0, numCompareEnd)) > Integer
-                .parseInt(intervalEnd.substring(0, numCompareEnd))) {
-            // number is too high
-            return false;
-        }
-
-        return true;
-    }
-
-    private static HashMap<Pair<String, String>, CardType> intervalLookup;
+    private static final CardTypeTrie typeTrie;
 
     static {
         // initialize
-        intervalLookup = new HashMap<Pair<String, String>, CardType>();
-        intervalLookup.put(getNewPair("2221", "2720"), CardType.MASTERCARD);    // MasterCard 2-series
-        intervalLookup.put(getNewPair("300", "305"), CardType.DINERSCLUB);      // Diners Club (Discover)
-        intervalLookup.put(getNewPair("309", null), CardType.DINERSCLUB);       // Diners Club (Discover)
-        intervalLookup.put(getNewPair("34", null), CardType.AMEX);              // AmEx
-        intervalLookup.put(getNewPair("3528", "3589"), CardType.JCB);           // JCB
-        intervalLookup.put(getNewPair("36", null), CardType.DINERSCLUB);        // Diners Club (Discover)
-        intervalLookup.put(getNewPair("37", null), CardType.AMEX);              // AmEx
-        intervalLookup.put(getNewPair("38", "39"), CardType.DINERSCLUB);        // Diners Club (Discover)
-        intervalLookup.put(getNewPair("4", null), CardType.VISA);               // Visa
-        intervalLookup.put(getNewPair("50", null), CardType.MAESTRO);           // Maestro
-        intervalLookup.put(getNewPair("51", "55"), CardType.MASTERCARD);        // MasterCard
-        intervalLookup.put(getNewPair("56", "59"), CardType.MAESTRO);           // Maestro
-        intervalLookup.put(getNewPair("6011", null), CardType.DISCOVER);        // Discover
-        intervalLookup.put(getNewPair("61", null), CardType.MAESTRO);           // Maestro
-        intervalLookup.put(getNewPair("62", null), CardType.DISCOVER);          // China UnionPay (Discover)
-        intervalLookup.put(getNewPair("63", null), CardType.MAESTRO);           // Maestro
-        intervalLookup.put(getNewPair("644", "649"), CardType.DISCOVER);        // Discover
-        intervalLookup.put(getNewPair("65", null), CardType.DISCOVER);          // Discover
-        intervalLookup.put(getNewPair("66", "69"), CardType.MAESTRO);           // Maestro
-        intervalLookup.put(getNewPair("88", null), CardType.DISCOVER);          // China UnionPay (Discover)
-
-        for (Entry<Pair<String, String>, CardType> entry : getIntervalLookup().entrySet()) {
-            minDigits = Math.max(minDigits, entry.getKey().first.length());
-            if (entry.getKey().second != null) {
-                minDigits = Math.max(minDigits, entry.getKey().second.length());
-            }
-        }
-    }
-
-    private static HashMap<Pair<String, String>, CardType> getIntervalLookup() {
-        return intervalLookup;
+        typeTrie = new CardTypeTrie.Builder()
+                .add("2221", "2720", CardType.MASTERCARD)       // MasterCard 2-series
+                .add("300", "305", CardType.DINERSCLUB)         // Diners Club (Discover)
+                .add("309", null, CardType.DINERSCLUB)          // Diners Club (Discover)
+                .add("34", null, CardType.AMEX)                 // AmEx
+                .add("3528", "3589", CardType.JCB)              // JCB
+                .add("36", null, CardType.DINERSCLUB)           // Diners Club (Discover)
+                .add("37", null, CardType.AMEX)                 // AmEx
+                .add("38", "39", CardType.DINERSCLUB)           // Diners Club (Discover)
+                .add("4", null, CardType.VISA)                  // Visa
+                .add("50", null, CardType.MAESTRO)              // Maestro
+                .add("51", "55", CardType.MASTERCARD)           // MasterCard
+                .add("56", "59", CardType.MAESTRO)              // Maestro
+                .add("6011", null, CardType.DISCOVER)           // Discover
+                .add("61", null, CardType.MAESTRO)              // Maestro
+                .add("62", null, CardType.DISCOVER)             // China UnionPay (Discover)
+                .add("63", null, CardType.MAESTRO)              // Maestro
+                .add("644", "649", CardType.DISCOVER)           // Discover
+                .add("65", null, CardType.DISCOVER)             // Discover
+                .add("66", "69", CardType.MAESTRO)              // Maestro
+                .add("88", null, CardType.DISCOVER)             // China UnionPay (Discover)
+                .build();
+        minDigits = Math.max(minDigits, typeTrie.maxPrefixLength());
     }
 
-    private static Pair<String, String> getNewPair(String intervalStart, String intervalEnd) {
-        if (intervalEnd == null) {
-            // set intervalEnd to intervalStart before creating the Pair object, because apparently
-            // Pair.hashCode() can't handle nulls on some devices/versions. WTF.
-            intervalEnd = intervalStart;
-        }
-        return new Pair<String, String>(intervalStart, intervalEnd);
+    static CardTypeTrie getTypeTrie() {
+        return typeTrie;
     }
 
     /**
@@ -313,31 +265,38 @@ public enum CardType {
 
     /**
      * Infer the CardType from the number string. See http://en.wikipedia.org/wiki/Bank_card_number
-     * for these ranges (last checked: 19 Feb 2013)
+     * for these ranges (last checked: 19 Feb 2013). See {@link BinTable} for the issuer, country
+     * and more.
      *
      * @param numStr A string containing only the card number.
      * @return the inferred card type
      */
     public static CardType fromCardNumber(String numStr) {
-        if (TextUtils.isEmpty(numStr)) {
-            return CardType.UNKNOWN;
-        }
+        return fromCardNumber((CharSequence) numStr);
+    }
 
-        HashSet<CardType> possibleCardTypes = new HashSet<CardType>();
-        for (Entry<Pair<String, String>, CardType> entry : getIntervalLookup().entrySet()) {
-            boolean isPossibleCard = isNumberInInterval(numStr, entry.getKey().first,
-                    entry.getKey().second);
-            if (isPossibleCard) {
-                possibleCardTypes.add(entry.getValue());
-            }
+    /**
+     * Infer the CardType from the number, without creating any objects. Only the first few digits
+     * are looked at.
+     *
+     * @param digits A sequence containing only the card number.
+     * @return the inferred card type
+     */
+    public static CardType fromCardNumber(CharSequence digits) {
+        if (TextUtils.isEmpty(digits)) {
+            return CardType.UNKNOWN;
         }
+        return typeTrie.lookup(digits);
+    }
 
-        if (possibleCardTypes.size() > 1) {
-            return CardType.INSUFFICIENT_DIGITS;
-        } else if (possibleCardTypes.size() == 1) {
-            return possibleCardTypes.iterator().next();
-        } else {
+    /**
+     * Infer the CardType from the first <code>length</code> digits of a number, given as values
+     * from 0 to 9.
+     */
+    static CardType fromCardNumber(int[] digits, int length) {
+        if (length <= 0) {
             return CardType.UNKNOWN;
         }
+        return typeTrie.lookup(digits, length);
     }
 }
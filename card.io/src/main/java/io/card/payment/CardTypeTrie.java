@@ -0,0 +1,251 @@
+package io.card.payment;
+
+/* CardTypeTrie.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * The card number prefix (IIN) ranges of {@link CardType}, compiled into a digit trie held in flat
+ * arrays. Looking a number up takes one array read per digit, for at most
+ * {@link #MAX_PREFIX_DIGITS} digits, and allocates nothing.
+ * <p/>
+ * Each node stands for a prefix and knows what a number starting with it is: the one type all the
+ * ranges it overlaps share, {@link CardType#INSUFFICIENT_DIGITS} if they are of more than one
+ * type, or {@link CardType#UNKNOWN} if none. A prefix that no range overlaps has no node at all.
+ * A node that lies entirely within ranges of a single type is a leaf, and every digit leads from
+ * it back to itself, as no more digits can change the answer.
+ */
+final class CardTypeTrie {
+    /**
+     * The longest range boundary that can be added, so the longest prefix that is ever looked at.
+     */
+    static final int MAX_PREFIX_DIGITS = 8;
+
+    static final int ROOT = 0;
+
+    /**
+     * What {@link #next(int, int)} returns when no range starts with the digits so far.
+     */
+    static final int NONE = -1;
+
+    private static final CardType[] TYPES = CardType.values();
+
+    private final int[] mNext;
+    private final CardType[] mType;
+    private final int mMaxPrefixLength;
+
+    private CardTypeTrie(int[] next, CardType[] type, int maxPrefixLength) {
+        mNext = next;
+        mType = type;
+        mMaxPrefixLength = maxPrefixLength;
+    }
+
+    /**
+     * @return the node for the prefix of <code>node</code> followed by <code>digit</code>, or
+     * {@link #NONE}.
+     */
+    int next(int node, int digit) {
+        if (node == NONE || digit < 0 || digit > 9) {
+            return NONE;
+        }
+        return mNext[node * 10 + digit];
+    }
+
+    CardType typeOf(int node) {
+        return node == NONE ? CardType.UNKNOWN : mType[node];
+    }
+
+    /**
+     * @return the length of the longest range boundary added.
+     */
+    int maxPrefixLength() {
+        return mMaxPrefixLength;
+    }
+
+    /**
+     * @param digits the number, which must be made of digits only.
+     */
+    CardType lookup(CharSequence digits) {
+        int length = Math.min(digits.length(), MAX_PREFIX_DIGITS);
+        int node = ROOT;
+        for (int i = 0; i < length && node != NONE; i++) {
+            node = next(node, digits.charAt(i) - '0');
+        }
+        return typeOf(node);
+    }
+
+    /**
+     * @param digits the number, as values from 0 to 9.
+     */
+    CardType lookup(int[] digits, int length) {
+        length = Math.min(length, MAX_PREFIX_DIGITS);
+        int node = ROOT;
+        for (int i = 0; i < length && node != NONE; i++) {
+            node = next(node, digits[i]);
+        }
+        return typeOf(node);
+    }
+
+    /**
+     * Collects the ranges. Ranges may overlap, in which case the numbers they share are of more
+     * than one type, and need more digits to tell apart.
+     */
+    static final class Builder {
+        private static final class Node {
+            // null for a leaf
+            Node[] children;
+            // the types a leaf is covered by, as bits of their ordinals
+            int types;
+        }
+
+        private final Node mRoot = new Node();
+        private int mMaxPrefixLength;
+
+        Builder() {
+            mRoot.children = new Node[10];
+        }
+
+        /**
+         * Adds the numbers starting with anything from <code>start</code> to <code>end</code>,
+         * inclusive, both of at most {@link #MAX_PREFIX_DIGITS} digits. Boundaries of different
+         * lengths are compared as if <code>start</code> were padded with 0s and <code>end</code>
+         * with 9s.
+         *
+         * @param end the end of the range, or <code>null</code> for a range of a single prefix.
+         */
+        Builder add(String start, String end, CardType type) {
+            if (end == null) {
+                end = start;
+            }
+            int length = Math.max(start.length(), end.length());
+            if (length == 0 || length > MAX_PREFIX_DIGITS) {
+                throw new IllegalArgumentException("range boundaries must have 1 to "
+                        + MAX_PREFIX_DIGITS + " digits: " + start + "-" + end);
+            }
+            int low = Integer.parseInt(pad(start, length, '0'));
+            int high = Integer.parseInt(pad(end, length, '9'));
+            if (low > high) {
+                throw new IllegalArgumentException("range ends before it starts: " + start + "-"
+                        + end);
+            }
+
+            add(mRoot, 0, 0, length, low, high, 1 << type.ordinal());
+            mMaxPrefixLength = Math.max(mMaxPrefixLength, length);
+            return this;
+        }
+
+        private static String pad(String boundary, int length, char padding) {
+            StringBuilder sb = new StringBuilder(boundary);
+            while (sb.length() < length) {
+                sb.append(padding);
+            }
+            return sb.toString();
+        }
+
+        private static void add(Node node, int prefix, int depth, int length, int low, int high,
+                                int type) {
+            int span = 1;
+            for (int i = depth; i < length; i++) {
+                span *= 10;
+            }
+            int nodeLow = prefix * span;
+            int nodeHigh = nodeLow + span - 1;
+            if (low <= nodeLow && nodeHigh <= high) {
+                cover(node, type);
+                return;
+            }
+
+            if (node.children == null) {
+                // a leaf that is only partly covered now, so split it
+                node.children = new Node[10];
+                for (int d = 0; d < 10; d++) {
+                    node.children[d] = new Node();
+                    node.children[d].types = node.types;
+                }
+            }
+            int childSpan = span / 10;
+            for (int d = 0; d < 10; d++) {
+                int childLow = nodeLow + d * childSpan;
+                if (childLow + childSpan - 1 < low || high < childLow) {
+                    continue;
+                }
+                if (node.children[d] == null) {
+                    node.children[d] = new Node();
+                }
+                add(node.children[d], prefix * 10 + d, depth + 1, length, low, high, type);
+            }
+        }
+
+        private static void cover(Node node, int type) {
+            if (node.children == null) {
+                node.types |= type;
+                return;
+            }
+            for (int d = 0; d < 10; d++) {
+                if (node.children[d] == null) {
+                    node.children[d] = new Node();
+                }
+                cover(node.children[d], type);
+            }
+        }
+
+        CardTypeTrie build() {
+            int count = count(mRoot);
+            int[] next = new int[count * 10];
+            CardType[] type = new CardType[count];
+            flatten(mRoot, new int[] { ROOT }, next, type);
+            return new CardTypeTrie(next, type, mMaxPrefixLength);
+        }
+
+        private static int count(Node node) {
+            if (node == null || (node.children == null && node.types == 0)) {
+                return 0;
+            }
+            int count = 1;
+            if (node.children != null) {
+                for (Node child : node.children) {
+                    count += count(child);
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Writes out the node and what lies below it, numbering nodes depth first.
+         *
+         * @param nextIndex the number of the next node to be written out, updated as they are.
+         * @return the types the node overlaps.
+         */
+        private static int flatten(Node node, int[] nextIndex, int[] next, CardType[] type) {
+            int index = nextIndex[0]++;
+            int types = 0;
+            if (node.children == null) {
+                types = node.types;
+                for (int d = 0; d < 10; d++) {
+                    next[index * 10 + d] = index;
+                }
+            } else {
+                for (int d = 0; d < 10; d++) {
+                    Node child = node.children[d];
+                    if (child == null || (child.children == null && child.types == 0)) {
+                        next[index * 10 + d] = NONE;
+                    } else {
+                        next[index * 10 + d] = nextIndex[0];
+                        types |= flatten(child, nextIndex, next, type);
+                    }
+                }
+            }
+            type[index] = typeFor(types);
+            return types;
+        }
+
+        private static CardType typeFor(int types) {
+            if (types == 0) {
+                return CardType.UNKNOWN;
+            } else if (Integer.bitCount(types) > 1) {
+                return CardType.INSUFFICIENT_DIGITS;
+            }
+            return TYPES[Integer.numberOfTrailingZeros(types)];
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.card.payment;
+
+/* ContinuousScanListener.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * Receives every card read during a continuous scan, see
+ * {@link CardIOActivity#EXTRA_CONTINUOUS_SCAN} and
+ * {@link CardIOActivity#setContinuousScanListener(ContinuousScanListener)}.
+ * <p/>
+ * Called on the main thread, while the scanner already looks for the next card.
+ */
+public interface ContinuousScanListener {
+
+    /**
+     * @param card          the card read. Its number is never masked here, so handle it with care.
+     * @param latencyMillis the time from the card first being found in a sharp frame to it being
+     *                      read.
+     */
+    void onCardScanned(CreditCard card, long latencyMillis);
+}
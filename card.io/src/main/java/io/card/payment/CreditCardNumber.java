@@ -4,15 +4,15 @@ package io.card.payment;
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
-import java.text.CharacterIterator;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.text.StringCharacterIterator;
 import java.util.Calendar;
-import java.util.Date;
 
 class CreditCardNumber {
 
+    // what each digit adds to the checksum when it is doubled
+    private static final int[] DOUBLED_DIGITS = { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 };
+
+    static final int INVALID_EXPIRY = -1;
+
     /**
      * Checks if the given string represents a number that passes the Luhn Checksum which all valid
      * CCs will pass.
@@ -21,18 +21,40 @@ class CreditCardNumber {
      * @return true if the number does pass the checksum, else false
      */
     public static boolean passesLuhnChecksum(String number) {
-        int even = 0;
-        int sum = 0;
+        return passesLuhnChecksum((CharSequence) number);
+    }
 
-        final int[][] sums = { { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 } };
+    /**
+     * Like {@link #passesLuhnChecksum(String)}, without creating any objects.
+     */
+    public static boolean passesLuhnChecksum(CharSequence number) {
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = number.length() - 1; i >= 0; i--) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            sum += doubled ? DOUBLED_DIGITS[c - '0'] : c - '0';
+            doubled = !doubled;
+        }
+        return sum % 10 == 0;
+    }
 
-        CharacterIterator iter = new StringCharacterIterator(number);
-        for (char c = iter.last(); c != CharacterIterator.DONE; c = iter.previous()) {
-            if (!Character.isDigit(c)) {
+    /**
+     * Like {@link #passesLuhnChecksum(String)}, for the first <code>length</code> digits of a
+     * number given as values from 0 to 9, as in {@link DetectionInfo#prediction}.
+     */
+    static boolean passesLuhnChecksum(int[] digits, int length) {
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = length - 1; i >= 0; i--) {
+            int digit = digits[i];
+            if (digit < 0 || digit > 9) {
                 return false;
             }
-            int cInt = c - '0';
-            sum += sums[even++ & 0x1][cInt];
+            sum += doubled ? DOUBLED_DIGITS[digit] : digit;
+            doubled = !doubled;
         }
         return sum % 10 == 0;
     }
@@ -47,58 +69,107 @@ class CreditCardNumber {
     }
 
     public static String formatString(String numStr, boolean filterDigits, CardType type) {
-        String digits;
+        StringBuilder sb = new StringBuilder(numStr.length() + 3);
+        formatString(numStr, filterDigits, type, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Like {@link #formatString(String, boolean, CardType)}, but writes the result into
+     * <code>out</code>, replacing what it held. Nothing is created once <code>out</code> has grown
+     * to fit a formatted number.
+     */
+    static void formatString(CharSequence numStr, boolean filterDigits, CardType type,
+                             StringBuilder out) {
+        out.setLength(0);
+
+        int numDigits = 0;
         if (filterDigits) {
-            digits = StringHelper.getDigitsOnlyString(numStr);
+            // the type is worked out along the way, from the digits only
+            CardTypeTrie typeTrie = CardType.getTypeTrie();
+            int typeNode = CardTypeTrie.ROOT;
+            for (int i = 0; i < numStr.length(); i++) {
+                char c = numStr.charAt(i);
+                if (Character.isDigit(c)) {
+                    if (numDigits < CardTypeTrie.MAX_PREFIX_DIGITS) {
+                        typeNode = typeTrie.next(typeNode, c - '0');
+                    }
+                    numDigits++;
+                }
+            }
+            if (type == null) {
+                type = numDigits > 0 ? typeTrie.typeOf(typeNode) : CardType.UNKNOWN;
+            }
         } else {
-            digits = numStr;
-        }
-        if (type == null) {
-            type = CardType.fromCardNumber(digits);
+            numDigits = numStr.length();
+            if (type == null) {
+                type = CardType.fromCardNumber(numStr);
+            }
         }
+
         int numLen = type.numberLength();
-        if (digits.length() == numLen) {
-            if (numLen == 16) {
-                return formatSixteenString(digits);
-            } else if (numLen == 15) {
-                return formatFifteenString(digits);
+        if (numDigits != numLen || (numLen != 15 && numLen != 16)) {
+            out.append(numStr); // at the worst case, pass back what was given
+            return;
+        }
+        int index = 0;
+        for (int i = 0; i < numStr.length(); i++) {
+            char c = numStr.charAt(i);
+            if (filterDigits && !Character.isDigit(c)) {
+                continue;
             }
+            if (startsGroup(index++, numLen)) {
+                out.append(' ');
+            }
+            out.append(c);
         }
-        return numStr; // at the worst case, pass back what was given
     }
 
-    private static String formatFifteenString(String digits) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 15; i++) {
-            if (i == 4 || i == 10) {
-                sb.append(' ');
+    /**
+     * Writes the first <code>length</code> digits of a number given as values from 0 to 9 into
+     * <code>out</code>, replacing what it held, grouped as {@link #formatString(String)} would
+     * group them.
+     *
+     * @param type the card type, or <code>null</code> to infer it from the number.
+     */
+    static void formatString(int[] digits, int length, CardType type, StringBuilder out) {
+        out.setLength(0);
+        if (type == null) {
+            type = CardType.fromCardNumber(digits, length);
+        }
+        int numLen = type.numberLength();
+        boolean grouped = length == numLen && (numLen == 15 || numLen == 16);
+        for (int i = 0; i < length; i++) {
+            if (grouped && startsGroup(i, numLen)) {
+                out.append(' ');
             }
-            sb.append(digits.charAt(i));
+            out.append((char) ('0' + digits[i]));
         }
-        return sb.toString();
     }
 
-    private static String formatSixteenString(String digits) {
-        StringBuilder sb = new StringBuilder();
-        {
-            for (int i = 0; i < 16; i++) {
-                if (i != 0 && i % 4 == 0) {
-                    sb.append(' ');// insert every 4th char, except at end
-                }
-                sb.append(digits.charAt(i));
-            }
+    /**
+     * @return whether a space goes before the digit at <code>index</code> of a formatted number.
+     * 15 digits are grouped 4-6-5, and 16 digits 4-4-4-4.
+     */
+    static boolean startsGroup(int index, int numberLength) {
+        if (numberLength == 15) {
+            return index == 4 || index == 10;
         }
-        return sb.toString();
+        return index != 0 && index % 4 == 0;
     }
 
     public static boolean isDateValid(int expiryMonth, int expiryYear) {
+        return isDateValid(expiryMonth, expiryYear, System.currentTimeMillis());
+    }
+
+    static boolean isDateValid(int expiryMonth, int expiryYear, long nowMillis) {
         if (expiryMonth < 1 || 12 < expiryMonth) {
             return false;
         }
 
-        Calendar now = Calendar.getInstance();
-        int thisYear = now.get(Calendar.YEAR);
-        int thisMonth = now.get(Calendar.MONTH) + 1;
+        CurrentMonth now = currentMonth(nowMillis);
+        int thisYear = now.year;
+        int thisMonth = now.month;
 
         if (expiryYear < thisYear) {
             return false;
@@ -114,42 +185,115 @@ class CreditCardNumber {
     }
 
     public static boolean isDateValid(String dateString) {
-        String digitsOnly = StringHelper.getDigitsOnlyString(dateString);
-        SimpleDateFormat validDate = getDateFormatForLength(digitsOnly.length());
-        if (validDate == null) {
-            return false;
+        return isDateValid((CharSequence) dateString);
+    }
+
+    /**
+     * Like {@link #isDateValid(String)}, without creating any objects.
+     */
+    public static boolean isDateValid(CharSequence dateString) {
+        long nowMillis = System.currentTimeMillis();
+        int expiry = parseExpiry(dateString, nowMillis);
+        return expiry != INVALID_EXPIRY
+                && isDateValid(expiryMonth(expiry), expiryYear(expiry), nowMillis);
+    }
+
+    /**
+     * Reads an expiry date of the form MM/YY or MM/YYYY, where anything but the digits is skipped.
+     * Two digit years are taken to be within 80 years before and 20 years after now, as
+     * <code>SimpleDateFormat</code> does.
+     *
+     * @return the year times 100 plus the month, which {@link #expiryYear(int)} and
+     * {@link #expiryMonth(int)} take apart, or {@link #INVALID_EXPIRY} if it isn't a date.
+     */
+    public static int parseExpiry(CharSequence dateString) {
+        return parseExpiry(dateString, System.currentTimeMillis());
+    }
+
+    static int parseExpiry(CharSequence dateString, long nowMillis) {
+        int numDigits = 0;
+        int month = 0;
+        int year = 0;
+        for (int i = 0; i < dateString.length(); i++) {
+            char c = dateString.charAt(i);
+            if (c < '0' || c > '9') {
+                continue;
+            }
+            if (numDigits < 2) {
+                month = month * 10 + c - '0';
+            } else {
+                year = year * 10 + c - '0';
+            }
+            if (++numDigits > 6) {
+                return INVALID_EXPIRY;
+            }
         }
-        try {
-            validDate.setLenient(false);
-            Date enteredDate = validDate.parse(digitsOnly);
-            return isDateValid(enteredDate.getMonth() + 1, enteredDate.getYear() + 1900);
-        } catch (ParseException pe) {
-            return false;
+
+        if (month < 1 || 12 < month) {
+            return INVALID_EXPIRY;
+        }
+        if (numDigits == 4) {
+            int centuryStart = currentMonth(nowMillis).year - 80;
+            year += centuryStart - centuryStart % 100;
+            if (year < centuryStart) {
+                year += 100;
+            }
+        } else if (numDigits != 6 || year == 0) {
+            return INVALID_EXPIRY;
         }
+        return year * 100 + month;
     }
 
-    public static SimpleDateFormat getDateFormatForLength(int len) {
-        if (len == 4) {
-            return new SimpleDateFormat("MMyy");
-        } else if (len == 6) {
-            return new SimpleDateFormat("MMyyyy");
-        } else {
-            return null;
+    static int expiryYear(int expiry) {
+        return expiry / 100;
+    }
+
+    static int expiryMonth(int expiry) {
+        return expiry % 100;
+    }
+
+    private static volatile CurrentMonth currentMonth;
+
+    private static CurrentMonth currentMonth(long nowMillis) {
+        CurrentMonth month = currentMonth;
+        if (month == null || !month.contains(nowMillis)) {
+            // threads that get here at the same time each work it out, and any of them may be kept
+            month = new CurrentMonth(nowMillis);
+            currentMonth = month;
         }
+        return month;
     }
 
-    public static Date getDateForString(String dateString) {
-        String digitsOnly = StringHelper.getDigitsOnlyString(dateString);
-        SimpleDateFormat validDate = getDateFormatForLength(digitsOnly.length());
-        if (validDate != null) {
-            try {
-                validDate.setLenient(false);
-                Date date = validDate.parse(digitsOnly);
-                return date;
-            } catch (ParseException pe) {
-                return null;
-            }
+    /**
+     * The year and month at some time, and when that month starts and ends in the default time
+     * zone, so that the date only has to be worked out again once the month is over. It never
+     * changes once made, so it can be shared between threads.
+     */
+    private static final class CurrentMonth {
+        final int year;
+        final int month;
+        private final long startMillis;
+        private final long endMillis;
+
+        CurrentMonth(long nowMillis) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(nowMillis);
+            year = calendar.get(Calendar.YEAR);
+            month = calendar.get(Calendar.MONTH) + 1;
+
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            startMillis = calendar.getTimeInMillis();
+            calendar.add(Calendar.MONTH, 1);
+            endMillis = calendar.getTimeInMillis();
+        }
+
+        // also false for times before the month, in case the clock is set back
+        boolean contains(long millis) {
+            return startMillis <= millis && millis < endMillis;
         }
-        return null;
     }
 }
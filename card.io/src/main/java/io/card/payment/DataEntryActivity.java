@@ -63,7 +63,7 @@ public final class DataEntryActivity extends Activity implements TextWatcher {
 
     private TextView activityTitleTextView;
     private EditText numberEdit;
-    private Validator numberValidator;
+    private CardNumberValidator numberValidator;
     private EditText expiryEdit;
     private Validator expiryValidator;
     private EditText cvvEdit;
@@ -278,7 +278,7 @@ public final class DataEntryActivity extends Activity implements TextWatcher {
 
             int length = 4;
             if (capture != null) {
-                CardType type = CardType.fromCardNumber(numberValidator.getValue());
+                CardType type = numberValidator.getCardType();
                 length = type.cvvLength();
             }
             cvvValidator = new FixedLengthValidator(length);
@@ -516,7 +516,7 @@ public final class DataEntryActivity extends Activity implements TextWatcher {
             }
 
             if (cvvEdit != null) {
-                CardType type = CardType.fromCardNumber(numberValidator.getValue().toString());
+                CardType type = numberValidator.getCardType();
                 FixedLengthValidator v = (FixedLengthValidator) cvvValidator;
                 int length = type.cvvLength();
                 v.requiredLength = length;
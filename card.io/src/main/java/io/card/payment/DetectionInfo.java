@@ -4,12 +4,22 @@ package io.card.payment;
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
+import java.util.Arrays;
+
 /**
  * This class implements a data structure used to pass card detection details back and forth between
  * java and native code/
+ * <p/>
+ * A single instance is reused for every frame, see {@link #reset()}. Nothing is allocated until a
+ * {@link CreditCard} is requested with {@link #creditCard()}.
  */
 
 class DetectionInfo {
+    static final int EDGE_TOP = 1;
+    static final int EDGE_BOTTOM = 1 << 1;
+    static final int EDGE_LEFT = 1 << 2;
+    static final int EDGE_RIGHT = 1 << 3;
+
     public boolean complete;
     public boolean topEdge;
     public boolean bottomEdge;
@@ -19,25 +29,59 @@ class DetectionInfo {
     public int[] prediction;
     public int expiry_month;
     public int expiry_year;
-    public CreditCard detectedCard;
+    public int yoff;
+    public int[] xoff;
 
     public DetectionInfo() {
-        complete = false;
-        
         prediction = new int[16];
-        prediction[0] = -1;
-        prediction[15] = -1;
-
-        detectedCard = new CreditCard();
+        xoff = new int[16];
+        reset();
     }
 
-    ;
+    /**
+     * Clears the result of the previous frame, so this instance can be handed to the next one.
+     */
+    void reset() {
+        complete = false;
+        topEdge = false;
+        bottomEdge = false;
+        leftEdge = false;
+        rightEdge = false;
+        focusScore = 0;
+        Arrays.fill(prediction, -1);
+        expiry_month = 0;
+        expiry_year = 0;
+        yoff = 0;
+        Arrays.fill(xoff, 0);
+    }
 
     boolean sameEdgesAs(DetectionInfo other) {
         return other.topEdge == this.topEdge && other.bottomEdge == this.bottomEdge
                 && other.leftEdge == this.leftEdge && other.rightEdge == this.rightEdge;
     }
 
+    void copyEdgesFrom(DetectionInfo other) {
+        topEdge = other.topEdge;
+        bottomEdge = other.bottomEdge;
+        leftEdge = other.leftEdge;
+        rightEdge = other.rightEdge;
+    }
+
+    /**
+     * @return the four edge flags packed into an int, so they can cross threads without allocating.
+     */
+    int edgeFlags() {
+        return (topEdge ? EDGE_TOP : 0) | (bottomEdge ? EDGE_BOTTOM : 0)
+                | (leftEdge ? EDGE_LEFT : 0) | (rightEdge ? EDGE_RIGHT : 0);
+    }
+
+    void setEdgeFlags(int flags) {
+        topEdge = (flags & EDGE_TOP) != 0;
+        bottomEdge = (flags & EDGE_BOTTOM) != 0;
+        leftEdge = (flags & EDGE_LEFT) != 0;
+        rightEdge = (flags & EDGE_RIGHT) != 0;
+    }
+
     boolean detected() {
         return (topEdge && bottomEdge && rightEdge && leftEdge);
     }
@@ -46,17 +90,39 @@ class DetectionInfo {
         return complete;
     }
 
+    /**
+     * @return how many digits of {@link #prediction} were recognized.
+     */
+    int numDigits() {
+        int numDigits = 0;
+        while (numDigits < prediction.length && 0 <= prediction[numDigits]
+                && prediction[numDigits] < 10) {
+            numDigits++;
+        }
+        return numDigits;
+    }
+
+    /**
+     * @return a new {@link CreditCard} holding the recognized number, expiry and digit positions.
+     * The card does not share any state with this instance, which will be reused.
+     */
     CreditCard creditCard() {
-        String numberStr = new String();
-        for (int i = 0; i < 16 && 0 <= prediction[i] && prediction[i] < 10; i++) {
-            numberStr += String.valueOf(prediction[i]);
+        int numDigits = numDigits();
+        char[] digits = new char[numDigits];
+        for (int i = 0; i < numDigits; i++) {
+            digits[i] = (char) ('0' + prediction[i]);
         }
-        detectedCard.cardNumber = numberStr;
+
+        CreditCard detectedCard = new CreditCard();
+        detectedCard.cardNumber = new String(digits);
 
         // set these regardless. They'll just be zeroes if not found.
         detectedCard.expiryMonth = expiry_month;
         detectedCard.expiryYear = expiry_year;
-        
+
+        detectedCard.yoff = yoff;
+        System.arraycopy(xoff, 0, detectedCard.xoff, 0, xoff.length);
+
         return detectedCard;
     }
 
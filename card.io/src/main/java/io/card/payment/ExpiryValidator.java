@@ -8,8 +8,6 @@ import android.text.Editable;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 
-import java.util.Date;
-
 class ExpiryValidator implements Validator {
     @SuppressWarnings("unused")
     private static final String TAG = ExpiryValidator.class.getSimpleName();
@@ -38,22 +36,13 @@ class ExpiryValidator implements Validator {
     public void afterTextChanged(Editable s) {
         fullLength = (s.length() >= 5);
 
-        String dateStr = s.toString();
-        if (dateStr == null) {
-            return;
-        }
-
-        Date expiry = CreditCardNumber.getDateForString(dateStr);
-        if (expiry == null) {
+        int expiry = CreditCardNumber.parseExpiry(s);
+        if (expiry == CreditCardNumber.INVALID_EXPIRY) {
             return;
         }
 
-        month = expiry.getMonth() + 1; // Java months are 0-11
-        year = expiry.getYear();
-
-        if (year < 1900) {
-            year += 1900;
-        }
+        month = CreditCardNumber.expiryMonth(expiry);
+        year = CreditCardNumber.expiryYear(expiry);
     }
 
     @Override
@@ -79,18 +68,7 @@ class ExpiryValidator implements Validator {
 
     @Override
     public boolean isValid() {
-        if (month < 1 || 12 < month) {
-            return false;
-        }
-
-        Date now = new Date();
-
-        if (year > 1900 + now.getYear() + 15) {
-            return false;
-        }
-
-        return (year > 1900 + now.getYear() || (year == 1900 + now.getYear() && month >= now
-                .getMonth() + 1));
+        return CreditCardNumber.isDateValid(month, year);
     }
 
     @Override
@@ -0,0 +1,225 @@
+package io.card.payment;
+
+/* FrameRateGovernor.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Matches the camera's frame rate to how fast the scanner gets through frames.
+ * <p/>
+ * The camera keeps delivering at its default rate however slow the scanner is, and every frame
+ * the scanner can't keep up with is exposed, converted and dropped for nothing. This measures the
+ * rolling cost of scanning a frame and, every {@link #DECISION_INTERVAL} frames scanned, picks
+ * <ul>
+ * <li>the slowest preview fps range that still delivers at least as many frames as the scanner
+ * can take, and</li>
+ * <li>a stride, so only every Nth frame is handed to the scanner when even the slowest range is
+ * too fast.</li>
+ * </ul>
+ * {@link #onFrameArrived(long)} is called on the camera's callback thread and
+ * {@link #onFrameScanned(long)} on the thread that scans.
+ */
+class FrameRateGovernor {
+
+    // indices into a range, same as Camera.Parameters.PREVIEW_FPS_MIN_INDEX and MAX_INDEX
+    static final int FPS_MIN_INDEX = 0;
+    static final int FPS_MAX_INDEX = 1;
+
+    static final int DECISION_INTERVAL = 30;
+
+    // Don't drop to a slower range unless the scanner has this much headroom left over it, so
+    // noise in the scan cost doesn't flip between two ranges.
+    private static final double DOWNSHIFT_HEADROOM = 1.15;
+
+    // weight of the newest sample in the rolling averages, 1/8
+    private static final int EWMA_SHIFT = 3;
+
+    // Camera units: frames per second, times 1000. Sorted by max, then by min.
+    private final int[][] mSupportedFpsRanges;
+    private volatile int mFpsRangeIndex;
+
+    // rolling averages, in nanoseconds
+    private volatile long mScanNanos;
+    private volatile long mArrivalIntervalNanos;
+
+    private volatile int mStride = 1;
+
+    // set by the scanning thread when the fps range changes, so the camera's callback thread
+    // starts measuring arrivals afresh
+    private volatile boolean mArrivalResetPending;
+
+    // touched by the camera's callback thread only
+    private long mLastArrival;
+    private int mStrideCounter;
+    private int mFramesStrided;
+
+    // touched by the scanning thread only
+    private int mFramesSinceDecision;
+    private int mFpsRangeChanges;
+    private int mStrideChanges;
+
+    /**
+     * @param supportedFpsRanges from {@link android.hardware.Camera.Parameters#getSupportedPreviewFpsRange()}.
+     * @param currentFpsRange from {@link android.hardware.Camera.Parameters#getPreviewFpsRange(int[])}.
+     */
+    FrameRateGovernor(List<int[]> supportedFpsRanges, int[] currentFpsRange) {
+        mSupportedFpsRanges = supportedFpsRanges.toArray(new int[supportedFpsRanges.size()][]);
+        Arrays.sort(mSupportedFpsRanges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                if (a[FPS_MAX_INDEX] != b[FPS_MAX_INDEX]) {
+                    return a[FPS_MAX_INDEX] < b[FPS_MAX_INDEX] ? -1 : 1;
+                }
+                return a[FPS_MIN_INDEX] < b[FPS_MIN_INDEX] ? -1
+                        : a[FPS_MIN_INDEX] == b[FPS_MIN_INDEX] ? 0 : 1;
+            }
+        });
+
+        // start out wherever the camera is, falling back to the fastest range
+        mFpsRangeIndex = mSupportedFpsRanges.length - 1;
+        for (int i = 0; i < mSupportedFpsRanges.length; i++) {
+            if (mSupportedFpsRanges[i][FPS_MIN_INDEX] == currentFpsRange[FPS_MIN_INDEX]
+                    && mSupportedFpsRanges[i][FPS_MAX_INDEX] == currentFpsRange[FPS_MAX_INDEX]) {
+                mFpsRangeIndex = i;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Called for every frame the camera delivers.
+     *
+     * @param timestampNanos when the frame arrived, in {@link System#nanoTime()} time.
+     * @return whether the frame should be scanned, or skipped to keep to the stride.
+     */
+    boolean onFrameArrived(long timestampNanos) {
+        if (mArrivalResetPending) {
+            mArrivalResetPending = false;
+            mArrivalIntervalNanos = 0;
+            mLastArrival = 0;
+        }
+        if (mLastArrival != 0) {
+            mArrivalIntervalNanos = average(mArrivalIntervalNanos, timestampNanos - mLastArrival);
+        }
+        mLastArrival = timestampNanos;
+
+        if (++mStrideCounter < mStride) {
+            mFramesStrided++;
+            return false;
+        }
+        mStrideCounter = 0;
+        return true;
+    }
+
+    /**
+     * Called for every frame scanned.
+     *
+     * @param scanNanos how long scanning the frame took.
+     * @return whether a new fps range was picked, which should then be set on the camera.
+     */
+    boolean onFrameScanned(long scanNanos) {
+        mScanNanos = average(mScanNanos, scanNanos);
+        if (++mFramesSinceDecision < DECISION_INTERVAL) {
+            return false;
+        }
+        mFramesSinceDecision = 0;
+        return decide();
+    }
+
+    private boolean decide() {
+        long scanNanos = mScanNanos;
+        if (scanNanos <= 0) {
+            return false;
+        }
+        // what the scanner can take, in camera units
+        double scanFps = 1e12 / scanNanos;
+
+        boolean rangeChanged = false;
+        if (mSupportedFpsRanges.length > 0) {
+            int index = mFpsRangeIndex;
+            int slowestSufficient = mSupportedFpsRanges.length - 1;
+            for (int i = 0; i < mSupportedFpsRanges.length; i++) {
+                if (mSupportedFpsRanges[i][FPS_MAX_INDEX] >= scanFps) {
+                    slowestSufficient = i;
+                    break;
+                }
+            }
+            // the widest of the ranges with that max, so auto exposure keeps its room in low light
+            while (slowestSufficient > 0 && mSupportedFpsRanges[slowestSufficient - 1][FPS_MAX_INDEX]
+                    == mSupportedFpsRanges[slowestSufficient][FPS_MAX_INDEX]) {
+                slowestSufficient--;
+            }
+
+            if (slowestSufficient > index) {
+                // starving the scanner, speed up straight away
+                index = slowestSufficient;
+            } else if (slowestSufficient < index && mSupportedFpsRanges[slowestSufficient][FPS_MAX_INDEX]
+                    >= scanFps * DOWNSHIFT_HEADROOM) {
+                index = slowestSufficient;
+            }
+
+            if (index != mFpsRangeIndex) {
+                mFpsRangeIndex = index;
+                mFpsRangeChanges++;
+                rangeChanged = true;
+            }
+        }
+
+        // The stride goes by the rate frames actually arrive at, which is below the range's max
+        // in low light. Rounded down, so the scanner is never left waiting. Arrivals measured
+        // under the old range say nothing about the new one, so every frame is scanned until the
+        // next decision has measured it.
+        int stride;
+        if (rangeChanged) {
+            mArrivalResetPending = true;
+            stride = 1;
+        } else {
+            long arrivalNanos = mArrivalIntervalNanos;
+            stride = arrivalNanos <= 0 ? 1 : Math.max(1, (int) (scanNanos / arrivalNanos));
+        }
+        if (stride != mStride) {
+            mStride = stride;
+            mStrideChanges++;
+        }
+        return rangeChanged;
+    }
+
+    private static long average(long average, long sample) {
+        return average == 0 ? sample : average + ((sample - average) >> EWMA_SHIFT);
+    }
+
+    /**
+     * @return the fps range picked, in camera units, or <code>null</code> if the camera has none.
+     */
+    int[] getFpsRange() {
+        return mSupportedFpsRanges.length == 0 ? null : mSupportedFpsRanges[mFpsRangeIndex];
+    }
+
+    int getStride() {
+        return mStride;
+    }
+
+    /**
+     * @return the frames the scanner can take per second, as last measured.
+     */
+    double getScanFps() {
+        long scanNanos = mScanNanos;
+        return scanNanos <= 0 ? 0 : 1e9 / scanNanos;
+    }
+
+    int getFramesStrided() {
+        return mFramesStrided;
+    }
+
+    int getFpsRangeChanges() {
+        return mFpsRangeChanges;
+    }
+
+    int getStrideChanges() {
+        return mStrideChanges;
+    }
+}
@@ -0,0 +1,124 @@
+package io.card.payment;
+
+/* HardwareCapabilityCache.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps what {@link Util#hardwareSupported(Context, android.hardware.Camera)} found out about the
+ * device across processes, so it only has to open the camera once rather than in every process.
+ * <p/>
+ * The answer is kept along with what it was based on: the processor flags of the native decider
+ * and the preview size picked. With those, {@link CardScanner} loads its native library without
+ * asking the decider, and sets up the camera without searching its preview sizes again. It is only
+ * trusted for the same system build and the same card.io version, as either can change what is
+ * supported. See {@link CardIOActivity#clearHardwareCapabilityCache(Context)} to drop it.
+ */
+final class HardwareCapabilityCache {
+    private static final String TAG = HardwareCapabilityCache.class.getSimpleName();
+
+    private static final String PREFS_NAME = "io.card.payment.hardwareCapabilities";
+
+    private static final String KEY_BUILD = "build";
+    private static final String KEY_SUPPORTED = "supported";
+    private static final String KEY_NEON = "neon";
+    private static final String KEY_X86 = "x86";
+    private static final String KEY_TEGRA = "tegra";
+    private static final String KEY_PREVIEW_WIDTH = "previewWidth";
+    private static final String KEY_PREVIEW_HEIGHT = "previewHeight";
+
+    /**
+     * What a check that opened the camera found out.
+     */
+    static final class Capabilities {
+        final boolean supported;
+        final boolean neon;
+        final boolean x86;
+        final boolean tegra;
+        // 0 if no preview size would do
+        final int previewWidth;
+        final int previewHeight;
+
+        Capabilities(boolean supported, boolean neon, boolean x86, boolean tegra, int previewWidth,
+                     int previewHeight) {
+            this.supported = supported;
+            this.neon = neon;
+            this.x86 = x86;
+            this.tegra = tegra;
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+        }
+    }
+
+    // the capabilities last loaded or stored in this process
+    private static volatile Capabilities sCached;
+
+    private HardwareCapabilityCache() {
+    }
+
+    /**
+     * @return what was found out about the hardware, or <code>null</code> if it hasn't been
+     * checked on this build yet.
+     */
+    static Capabilities load(Context context) {
+        SharedPreferences prefs = prefs(context);
+        if (!currentBuild().equals(prefs.getString(KEY_BUILD, null))) {
+            return null;
+        }
+        Capabilities capabilities = new Capabilities(prefs.getBoolean(KEY_SUPPORTED, false),
+                prefs.getBoolean(KEY_NEON, false), prefs.getBoolean(KEY_X86, false),
+                prefs.getBoolean(KEY_TEGRA, false), prefs.getInt(KEY_PREVIEW_WIDTH, 0),
+                prefs.getInt(KEY_PREVIEW_HEIGHT, 0));
+        sCached = capabilities;
+        return capabilities;
+    }
+
+    /**
+     * @return the capabilities last loaded or stored in this process, without reading them, or
+     * <code>null</code>.
+     */
+    static Capabilities cached() {
+        return sCached;
+    }
+
+    /**
+     * Keeps the outcome of a check that opened the camera. The native libraries must be loaded.
+     *
+     * @param previewWidth  the preview size picked, 0 if none would do.
+     * @param previewHeight the preview size picked, 0 if none would do.
+     */
+    static void store(Context context, boolean supported, int previewWidth, int previewHeight) {
+        Capabilities capabilities = new Capabilities(supported, CardScanner.usesNeon(),
+                CardScanner.usesX86(), CardScanner.usesTegra(), previewWidth, previewHeight);
+        prefs(context).edit()
+                .putString(KEY_BUILD, currentBuild())
+                .putBoolean(KEY_SUPPORTED, capabilities.supported)
+                .putBoolean(KEY_NEON, capabilities.neon)
+                .putBoolean(KEY_X86, capabilities.x86)
+                .putBoolean(KEY_TEGRA, capabilities.tegra)
+                .putInt(KEY_PREVIEW_WIDTH, capabilities.previewWidth)
+                .putInt(KEY_PREVIEW_HEIGHT, capabilities.previewHeight)
+                .apply();
+        sCached = capabilities;
+        Log.d(TAG, "stored hardware support: " + supported);
+    }
+
+    static void invalidate(Context context) {
+        prefs(context).edit().clear().apply();
+        sCached = null;
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+    }
+
+    private static String currentBuild() {
+        return Build.FINGERPRINT + "/" + BuildConfig.PRODUCT_VERSION;
+    }
+}
@@ -33,15 +33,28 @@ class Logo {
     }
 
     void loadLogo(boolean useCardIOLogo) {
+        loadLogo(useCardIOLogo, null);
+    }
+
+    /**
+     * @param decoded the logo from {@link #decodeLogo(Context, boolean)}, or <code>null</code> to
+     *                decode it here.
+     */
+    void loadLogo(boolean useCardIOLogo, Bitmap decoded) {
         if (mLogo != null && useCardIOLogo == mUseCardIOLogo) {
             return; // no change, don't reload
         }
 
         mUseCardIOLogo = useCardIOLogo;
+        mLogo = decoded != null ? decoded : decodeLogo(mContext, useCardIOLogo);
+    }
+
+    // safe on any thread, see ScannerStartup
+    static Bitmap decodeLogo(Context context, boolean useCardIOLogo) {
         if (useCardIOLogo) {
-            mLogo = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.cio_card_io_logo);
+            return BitmapFactory.decodeResource(context.getResources(), R.drawable.cio_card_io_logo);
         } else {
-            mLogo = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.cio_paypal_logo);
+            return BitmapFactory.decodeResource(context.getResources(), R.drawable.cio_paypal_logo);
         }
     }
 
@@ -78,6 +78,9 @@ class OverlayView extends View {
 
     private static final int GUIDE_STROKE_WIDTH = 17;
 
+    // the live card image takes up this much of the guide frame's width
+    private static final float CARD_PREVIEW_SIZE = 1 / 3.0f;
+
     private static final float CORNER_RADIUS_SIZE = 1 / 15.0f;
 
     private static final int TORCH_WIDTH = 70;
@@ -91,6 +94,10 @@ class OverlayView extends View {
     private final WeakReference<CardIOActivity> mScanActivityRef;
     private DetectionInfo mDInfo;
     private Bitmap mBitmap;
+    // The latest card image while a card is in view, with CardIOActivity.CARD_IMAGE_RENDER_THROTTLED.
+    private Bitmap mCardPreview;
+    private Canvas mCardPreviewCanvas;
+    private final Rect mCardPreviewRect = new Rect();
     GradientDrawable mScanLineDrawable;
     private Rect mGuide;
     private CreditCard mDetectedCard;
@@ -217,11 +224,28 @@ class OverlayView extends View {
         return mBitmap;
     }
 
+    /**
+     * Shows the card image in a corner of the guide frame for as long as the card stays in view.
+     * Copied, since the scanner renders the next one into the same bitmap.
+     */
+    public void setCardPreview(Bitmap cardImage) {
+        if (mCardPreview == null) {
+            mCardPreview = Bitmap.createBitmap(cardImage.getWidth(), cardImage.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+            mCardPreviewCanvas = new Canvas(mCardPreview);
+        }
+        mCardPreviewCanvas.drawBitmap(cardImage, 0, 0, null);
+        invalidate();
+    }
+
     public void setDetectionInfo(DetectionInfo dinfo) {
-        if (mDInfo != null && !mDInfo.sameEdgesAs(dinfo)) {
+        // the scanner reuses its DetectionInfo, so keep a copy of the edges rather than a reference
+        if (mDInfo == null) {
+            mDInfo = new DetectionInfo();
+        } else if (!mDInfo.sameEdgesAs(dinfo)) {
             invalidate();
         }
-        this.mDInfo = dinfo;
+        mDInfo.copyEdgesFrom(dinfo);
     }
 
     public int getCardX() {
@@ -277,6 +301,15 @@ class OverlayView extends View {
         if (mDInfo != null && mDInfo.numVisibleEdges() == 4) {
             // draw lock shadow.
             canvas.drawPath(mLockedBackgroundPath, mLockedBackgroundPaint);
+
+            if (mCardPreview != null) {
+                int inset = (int) (GUIDE_STROKE_WIDTH * mScale);
+                int previewWidth = (int) (mGuide.width() * CARD_PREVIEW_SIZE);
+                int previewHeight = previewWidth * mCardPreview.getHeight() / mCardPreview.getWidth();
+                mCardPreviewRect.set(mGuide.left + inset, mGuide.top + inset,
+                        mGuide.left + inset + previewWidth, mGuide.top + inset + previewHeight);
+                canvas.drawBitmap(mCardPreview, null, mCardPreviewRect, null);
+            }
         }
 
         // Draw guide lines
@@ -487,6 +520,13 @@ class OverlayView extends View {
         mLogo.loadLogo(useCardIOLogo);
     }
 
+    /**
+     * @param logo the logo, already decoded, or <code>null</code> to decode it here.
+     */
+    void setUseCardIOLogo(boolean useCardIOLogo, Bitmap logo) {
+        mLogo.loadLogo(useCardIOLogo, logo);
+    }
+
     // for test
     public Rect getTorchRect() {
         return mTorchRect;
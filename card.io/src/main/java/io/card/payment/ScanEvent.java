@@ -0,0 +1,135 @@
+package io.card.payment;
+
+/* ScanEvent.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * What happened to one camera frame during a scan: either it was scanned, with what the scanner
+ * saw and how long each stage took, or it was dropped, and why.
+ * <p/>
+ * Events are reused: an event is only valid during
+ * {@link ScanEventListener#onScanEvent(ScanEvent)}. Copy whatever should be kept.
+ */
+public final class ScanEvent {
+
+    /** The frame went through the scanner. */
+    public static final int TYPE_FRAME_SCANNED = 0;
+    /** The frame was dropped without being scanned, see {@link #getDropReason()}. */
+    public static final int TYPE_FRAME_DROPPED = 1;
+
+    /** The frame was not dropped. */
+    public static final int DROP_NONE = 0;
+    /** The scanner was still busy, and a newer frame arrived before it got to this one. */
+    public static final int DROP_SUPERSEDED = 1;
+    /** Scanning was paused, or a card had already been found. */
+    public static final int DROP_NOT_SCANNING = 2;
+    /**
+     * The camera delivers frames faster than the scanner can take them, so only every Nth one is
+     * scanned. See {@link CardIOActivity#EXTRA_ADAPTIVE_FRAME_RATE}.
+     */
+    public static final int DROP_STRIDE = 3;
+
+    int type;
+    int dropReason;
+    long timestampNanos;
+    float focusScore;
+    int edgeFlags;
+    boolean usable;
+    boolean complete;
+    final long[] stageNanos = new long[ScanMetrics.STAGE_COUNT];
+    int lostEventCount;
+
+    ScanEvent() {
+    }
+
+    /**
+     * @return {@link #TYPE_FRAME_SCANNED} or {@link #TYPE_FRAME_DROPPED}.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return one of the <code>DROP_</code> constants.
+     */
+    public int getDropReason() {
+        return dropReason;
+    }
+
+    /**
+     * @return when the event happened, in {@link System#nanoTime()} time.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return how sharp the frame was, 0 for dropped frames.
+     */
+    public float getFocusScore() {
+        return focusScore;
+    }
+
+    public boolean hasTopEdge() {
+        return (edgeFlags & DetectionInfo.EDGE_TOP) != 0;
+    }
+
+    public boolean hasBottomEdge() {
+        return (edgeFlags & DetectionInfo.EDGE_BOTTOM) != 0;
+    }
+
+    public boolean hasLeftEdge() {
+        return (edgeFlags & DetectionInfo.EDGE_LEFT) != 0;
+    }
+
+    public boolean hasRightEdge() {
+        return (edgeFlags & DetectionInfo.EDGE_RIGHT) != 0;
+    }
+
+    /**
+     * @return whether the frame was sharp enough and had all four card edges, so the scanner
+     * could try to read the card from it.
+     */
+    public boolean isUsable() {
+        return usable;
+    }
+
+    /**
+     * @return whether this frame completed the scan.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @param stage one of the {@link ScanMetrics} <code>STAGE_</code> constants.
+     * @return how long the stage took for this frame, 0 if the frame didn't get that far. With
+     * {@link CardIOActivity#EXTRA_PIPELINED_SCAN}, cards are read on another thread, so the
+     * recognize and render stages are those of the last card read, and {@link #isComplete()} is
+     * never set.
+     */
+    public long getStageNanos(int stage) {
+        return stageNanos[stage];
+    }
+
+    /**
+     * @return the number of events discarded, because the listener was falling behind, between the
+     * previous event delivered and this one. Each discarded event is counted once.
+     */
+    public int getLostEventCount() {
+        return lostEventCount;
+    }
+
+    void copyFrom(ScanEvent other) {
+        type = other.type;
+        dropReason = other.dropReason;
+        timestampNanos = other.timestampNanos;
+        focusScore = other.focusScore;
+        edgeFlags = other.edgeFlags;
+        usable = other.usable;
+        complete = other.complete;
+        System.arraycopy(other.stageNanos, 0, stageNanos, 0, stageNanos.length);
+        lostEventCount = other.lostEventCount;
+    }
+}
@@ -0,0 +1,152 @@
+package io.card.payment;
+
+/* ScanEventBuffer.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A fixed-size ring of {@link ScanEvent}s between the threads that scan and a
+ * {@link ScanEventListener}, which is called on a thread of its own. Publishing only copies a few
+ * fields into a preallocated slot, and when the ring is full the oldest event is overwritten, so
+ * a slow listener can never hold up the camera.
+ */
+class ScanEventBuffer {
+    private static final String TAG = ScanEventBuffer.class.getSimpleName();
+
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final ScanEventListener mListener;
+    private final ScanEvent[] mSlots;
+    private final ScanEvent mDelivered = new ScanEvent();
+    private final Thread mDeliveryThread;
+
+    // all guarded by mSlots
+    private int mHead;
+    private int mSize;
+    private boolean mStopped;
+
+    ScanEventBuffer(ScanEventListener listener, int capacity) {
+        mListener = listener;
+        mSlots = new ScanEvent[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new ScanEvent();
+        }
+
+        mDeliveryThread = new Thread("card.io scan events") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                deliverEvents();
+            }
+        };
+        mDeliveryThread.start();
+    }
+
+    void publishScanned(DetectionInfo dInfo, boolean usable, long[] stageNanos) {
+        synchronized (mSlots) {
+            ScanEvent event = claimSlot();
+            if (event == null) {
+                return;
+            }
+            event.type = ScanEvent.TYPE_FRAME_SCANNED;
+            event.dropReason = ScanEvent.DROP_NONE;
+            event.focusScore = dInfo.focusScore;
+            event.edgeFlags = dInfo.edgeFlags();
+            event.usable = usable;
+            event.complete = dInfo.predicted();
+            System.arraycopy(stageNanos, 0, event.stageNanos, 0, event.stageNanos.length);
+            mSlots.notify();
+        }
+    }
+
+    void publishDropped(int dropReason) {
+        synchronized (mSlots) {
+            ScanEvent event = claimSlot();
+            if (event == null) {
+                return;
+            }
+            event.type = ScanEvent.TYPE_FRAME_DROPPED;
+            event.dropReason = dropReason;
+            event.focusScore = 0;
+            event.edgeFlags = 0;
+            event.usable = false;
+            event.complete = false;
+            for (int i = 0; i < event.stageNanos.length; i++) {
+                event.stageNanos[i] = 0;
+            }
+            mSlots.notify();
+        }
+    }
+
+    // Called with mSlots held. Returns the slot for the next event, overwriting the oldest one if
+    // the listener hasn't caught up, or null once stopped. The overwritten event is counted on the
+    // one delivered in its place, which is the next oldest, along with whatever it had lost itself.
+    private ScanEvent claimSlot() {
+        if (mStopped) {
+            return null;
+        }
+        int lost = 0;
+        if (mSize == mSlots.length) {
+            lost = mSlots[mHead].lostEventCount + 1;
+            mHead = (mHead + 1) % mSlots.length;
+            mSize--;
+            if (mSize > 0) {
+                mSlots[mHead].lostEventCount += lost;
+                lost = 0;
+            }
+        }
+        ScanEvent event = mSlots[(mHead + mSize) % mSlots.length];
+        mSize++;
+        event.timestampNanos = System.nanoTime();
+        event.lostEventCount = lost;
+        return event;
+    }
+
+    private void deliverEvents() {
+        while (true) {
+            synchronized (mSlots) {
+                while (mSize == 0 && !mStopped) {
+                    try {
+                        mSlots.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mSize == 0) {
+                    return;
+                }
+                // copied out, so the listener runs without holding up publishers
+                mDelivered.copyFrom(mSlots[mHead]);
+                mHead = (mHead + 1) % mSlots.length;
+                mSize--;
+            }
+
+            try {
+                mListener.onScanEvent(mDelivered);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "scan event listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops taking events. Those already published are still delivered, then the delivery thread
+     * ends.
+     */
+    void stop() {
+        synchronized (mSlots) {
+            mStopped = true;
+            mSlots.notify();
+        }
+    }
+
+    /**
+     * Waits for every event published before {@link #stop()} to be delivered.
+     */
+    void join() throws InterruptedException {
+        mDeliveryThread.join();
+    }
+}
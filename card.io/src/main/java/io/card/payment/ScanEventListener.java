@@ -0,0 +1,21 @@
+package io.card.payment;
+
+/* ScanEventListener.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+/**
+ * Receives an event for every camera frame of a scan, see
+ * {@link CardIOActivity#setScanEventListener(ScanEventListener)}.
+ * <p/>
+ * Events are delivered in order on a background thread of their own, never on the main thread
+ * and never on the thread that scans. A listener that falls behind loses the oldest events
+ * rather than slowing down the camera; {@link ScanEvent#getLostEventCount()} says how many.
+ */
+public interface ScanEventListener {
+
+    /**
+     * @param event only valid until this returns.
+     */
+    void onScanEvent(ScanEvent event);
+}
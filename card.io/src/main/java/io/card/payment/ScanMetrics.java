@@ -0,0 +1,493 @@
+package io.card.payment;
+
+/* ScanMetrics.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of how a scan session went: frame counts, camera events, and how long each stage of
+ * the scanner took per frame, as latency histograms.
+ * <p/>
+ * Returned in {@link CardIOActivity#EXTRA_SCAN_METRICS} when
+ * {@link CardIOActivity#EXTRA_RETURN_SCAN_METRICS} is set.
+ */
+public class ScanMetrics implements Parcelable {
+
+    /** Judging whether the frame is sharp enough to scan. */
+    public static final int STAGE_FOCUS_SCORE = 0;
+    /** Splitting the frame's chroma into separate planes. */
+    public static final int STAGE_DEINTERLEAVE = 1;
+    /** Finding the card edges. */
+    public static final int STAGE_DETECT_EDGES = 2;
+    /** Straightening out the card found. */
+    public static final int STAGE_TRANSFORM = 3;
+    /** Reading the number and expiry off the card. */
+    public static final int STAGE_RECOGNIZE = 4;
+    /** Rendering the color card image. */
+    public static final int STAGE_RENDER = 5;
+
+    /** The number of stages. */
+    public static final int STAGE_COUNT = 6;
+
+    // Upper bounds of the latency histogram buckets, in microseconds. The last bucket takes
+    // everything slower. Keep in sync with kBucketBoundsMicros in nativeRecognizer.cpp.
+    static final long[] BUCKET_BOUNDS_MICROS = {
+            25, 50, 75, 100, 150, 200, 300, 400, 500, 750,
+            1000, 1500, 2000, 3000, 4000, 5000, 7500,
+            10000, 15000, 20000, 30000, 40000, 50000, 75000,
+            100000, 150000, 200000
+    };
+    static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length + 1;
+
+    int framesScanned;
+    int framesSkipped;
+    double elapsedSeconds;
+    int sessionsContinued;
+    long timeToFirstFrameMs;
+    int manualRefocusings;
+    int autoRefocusings;
+    int manualTorchChanges;
+    int previewBufferCount;
+    boolean scanOnBackgroundThread;
+    double averageFrameQueueLatencyMs;
+    long maxFrameQueueLatencyMs;
+    int cardImageRenderMode;
+    int cardImagesRendered;
+    boolean guideFrameRoi;
+    boolean coarseEdgeDetection;
+    int framesRejectedCoarse;
+    boolean cornerTracking;
+    int framesTracked;
+    int trackingLosses;
+    boolean pipelinedScan;
+    int cropsRecognized;
+    int cropsDropped;
+    boolean continuousScan;
+    int cardsScanned;
+    double averageCardLatencyMs;
+    long maxCardLatencyMs;
+    boolean adaptiveFrameRate;
+    double previewFpsMin;
+    double previewFpsMax;
+    double scannerFps;
+    int frameStride;
+    int framesStrided;
+    int fpsRangeChanges;
+    int frameStrideChanges;
+
+    // bucket counts per stage, stage after stage
+    final int[] stageBuckets = new int[STAGE_COUNT * BUCKET_COUNT];
+    final long[] stageTotalNanos = new long[STAGE_COUNT];
+    final long[] stageMaxNanos = new long[STAGE_COUNT];
+
+    ScanMetrics() {
+    }
+
+    /**
+     * @return the number of frames the scanner looked at.
+     */
+    public int getFramesScanned() {
+        return framesScanned;
+    }
+
+    /**
+     * @return the number of camera frames dropped because the scanner was still busy.
+     */
+    public int getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * @return the time since scanning started, in seconds, including any interruptions the scan
+     * carried on over, see {@link #getSessionsContinued()}.
+     */
+    public double getElapsedSeconds() {
+        return elapsedSeconds;
+    }
+
+    /**
+     * @return the number of times the scan was interrupted, by the activity pausing or being
+     * re-created, and then carried on with what it had already seen of the card rather than
+     * starting over. Interruptions longer than a few seconds still start the scan over.
+     */
+    public int getSessionsContinued() {
+        return sessionsContinued;
+    }
+
+    /**
+     * @return the time from {@link CardIOActivity} being created to the first camera frame
+     * arriving, 0 if none did.
+     */
+    public long getTimeToFirstFrameMs() {
+        return timeToFirstFrameMs;
+    }
+
+    public int getManualRefocusings() {
+        return manualRefocusings;
+    }
+
+    public int getAutoRefocusings() {
+        return autoRefocusings;
+    }
+
+    public int getManualTorchChanges() {
+        return manualTorchChanges;
+    }
+
+    public int getPreviewBufferCount() {
+        return previewBufferCount;
+    }
+
+    public boolean isScanOnBackgroundThread() {
+        return scanOnBackgroundThread;
+    }
+
+    /**
+     * @return the average time from the camera delivering a frame to the scanner picking it up.
+     */
+    public double getAverageFrameQueueLatencyMs() {
+        return averageFrameQueueLatencyMs;
+    }
+
+    public long getMaxFrameQueueLatencyMs() {
+        return maxFrameQueueLatencyMs;
+    }
+
+    /**
+     * @return the {@link CardIOActivity#EXTRA_CARD_IMAGE_RENDER_MODE} used.
+     */
+    public int getCardImageRenderMode() {
+        return cardImageRenderMode;
+    }
+
+    public int getCardImagesRendered() {
+        return cardImagesRendered;
+    }
+
+    /**
+     * @return whether {@link CardIOActivity#EXTRA_GUIDE_FRAME_ROI} was used.
+     */
+    public boolean isGuideFrameRoi() {
+        return guideFrameRoi;
+    }
+
+    /**
+     * @return whether {@link CardIOActivity#EXTRA_COARSE_EDGE_DETECTION} was used.
+     */
+    public boolean isCoarseEdgeDetection() {
+        return coarseEdgeDetection;
+    }
+
+    /**
+     * @return the number of frames the quarter resolution check found no card in, so they were
+     * never searched at full resolution.
+     */
+    public int getFramesRejectedCoarse() {
+        return framesRejectedCoarse;
+    }
+
+    /**
+     * @return whether {@link CardIOActivity#EXTRA_CORNER_TRACKING} was used.
+     */
+    public boolean isCornerTracking() {
+        return cornerTracking;
+    }
+
+    /**
+     * @return the number of frames the card was tracked in, rather than searched for.
+     */
+    public int getFramesTracked() {
+        return framesTracked;
+    }
+
+    /**
+     * @return the number of times a tracked card was lost, and had to be searched for again.
+     */
+    public int getTrackingLosses() {
+        return trackingLosses;
+    }
+
+    /**
+     * @return whether {@link CardIOActivity#EXTRA_PIPELINED_SCAN} was used.
+     */
+    public boolean isPipelinedScan() {
+        return pipelinedScan;
+    }
+
+    /**
+     * @return the number of cards found in frames that were then read, for a pipelined scan.
+     */
+    public int getCropsRecognized() {
+        return cropsRecognized;
+    }
+
+    /**
+     * @return the number of cards found in frames that were never read, because reading the
+     * previous ones took longer, for a pipelined scan.
+     */
+    public int getCropsDropped() {
+        return cropsDropped;
+    }
+
+    /**
+     * @return whether {@link CardIOActivity#EXTRA_CONTINUOUS_SCAN} was used.
+     */
+    public boolean isContinuousScan() {
+        return continuousScan;
+    }
+
+    /**
+     * @return the number of cards read by a continuous scan.
+     */
+    public int getCardsScanned() {
+        return cardsScanned;
+    }
+
+    /**
+     * @return the average time from a card first being found in a sharp frame to it being read,
+     * for a continuous scan.
+     */
+    public double getAverageCardLatencyMs() {
+        return averageCardLatencyMs;
+    }
+
+    public long getMaxCardLatencyMs() {
+        return maxCardLatencyMs;
+    }
+
+    /**
+     * @return whether the frame rate was matched to the scanner, see
+     * {@link CardIOActivity#EXTRA_ADAPTIVE_FRAME_RATE}. The frame rate getters are 0 if not.
+     */
+    public boolean isAdaptiveFrameRate() {
+        return adaptiveFrameRate;
+    }
+
+    /**
+     * @return the lower end of the preview fps range last picked.
+     */
+    public double getPreviewFpsMin() {
+        return previewFpsMin;
+    }
+
+    /**
+     * @return the upper end of the preview fps range last picked.
+     */
+    public double getPreviewFpsMax() {
+        return previewFpsMax;
+    }
+
+    /**
+     * @return the frames per second the scanner was measured to keep up with.
+     */
+    public double getScannerFps() {
+        return scannerFps;
+    }
+
+    /**
+     * @return 1 if every frame is handed to the scanner, N if only every Nth one is.
+     */
+    public int getFrameStride() {
+        return frameStride;
+    }
+
+    /**
+     * @return the number of frames passed over to keep to the stride.
+     */
+    public int getFramesStrided() {
+        return framesStrided;
+    }
+
+    public int getFpsRangeChanges() {
+        return fpsRangeChanges;
+    }
+
+    public int getFrameStrideChanges() {
+        return frameStrideChanges;
+    }
+
+    /**
+     * @param stage one of the <code>STAGE_</code> constants.
+     * @return the number of frames that went through the stage.
+     */
+    public int getStageSampleCount(int stage) {
+        int count = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            count += stageBuckets[stage * BUCKET_COUNT + bucket];
+        }
+        return count;
+    }
+
+    /**
+     * @param stage one of the <code>STAGE_</code> constants.
+     * @return the mean time the stage took, in microseconds.
+     */
+    public long getStageMeanMicros(int stage) {
+        int count = getStageSampleCount(stage);
+        return count == 0 ? 0 : stageTotalNanos[stage] / count / 1000;
+    }
+
+    /**
+     * @param stage one of the <code>STAGE_</code> constants.
+     * @return the longest time the stage took, in microseconds.
+     */
+    public long getStageMaxMicros(int stage) {
+        return stageMaxNanos[stage] / 1000;
+    }
+
+    /**
+     * @param stage one of the <code>STAGE_</code> constants.
+     * @param percentile between 0 and 100.
+     * @return the time within which the given percentage of frames got through the stage, in
+     * microseconds. This is the upper bound of the histogram bucket the percentile falls in, so
+     * it is rounded up to the bucket's width.
+     */
+    public long getStagePercentileMicros(int stage, double percentile) {
+        int count = getStageSampleCount(stage);
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long maxMicros = getStageMaxMicros(stage);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_BOUNDS_MICROS.length; bucket++) {
+            seen += stageBuckets[stage * BUCKET_COUNT + bucket];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MICROS[bucket], maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    public long getStageP50Micros(int stage) {
+        return getStagePercentileMicros(stage, 50);
+    }
+
+    public long getStageP95Micros(int stage) {
+        return getStagePercentileMicros(stage, 95);
+    }
+
+    public long getStageP99Micros(int stage) {
+        return getStagePercentileMicros(stage, 99);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%d frames scanned, %d skipped in %.2fs", framesScanned, framesSkipped,
+                elapsedSeconds));
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            sb.append(String.format(Locale.US, "; stage %d: p50 %dus, p95 %dus, p99 %dus", stage,
+                    getStageP50Micros(stage), getStageP95Micros(stage), getStageP99Micros(stage)));
+        }
+        return sb.toString();
+    }
+
+    // parcelable
+    private ScanMetrics(Parcel src) {
+        framesScanned = src.readInt();
+        framesSkipped = src.readInt();
+        elapsedSeconds = src.readDouble();
+        sessionsContinued = src.readInt();
+        timeToFirstFrameMs = src.readLong();
+        manualRefocusings = src.readInt();
+        autoRefocusings = src.readInt();
+        manualTorchChanges = src.readInt();
+        previewBufferCount = src.readInt();
+        scanOnBackgroundThread = src.readInt() != 0;
+        averageFrameQueueLatencyMs = src.readDouble();
+        maxFrameQueueLatencyMs = src.readLong();
+        cardImageRenderMode = src.readInt();
+        cardImagesRendered = src.readInt();
+        guideFrameRoi = src.readInt() != 0;
+        coarseEdgeDetection = src.readInt() != 0;
+        framesRejectedCoarse = src.readInt();
+        cornerTracking = src.readInt() != 0;
+        framesTracked = src.readInt();
+        trackingLosses = src.readInt();
+        pipelinedScan = src.readInt() != 0;
+        cropsRecognized = src.readInt();
+        cropsDropped = src.readInt();
+        continuousScan = src.readInt() != 0;
+        cardsScanned = src.readInt();
+        averageCardLatencyMs = src.readDouble();
+        maxCardLatencyMs = src.readLong();
+        adaptiveFrameRate = src.readInt() != 0;
+        previewFpsMin = src.readDouble();
+        previewFpsMax = src.readDouble();
+        scannerFps = src.readDouble();
+        frameStride = src.readInt();
+        framesStrided = src.readInt();
+        fpsRangeChanges = src.readInt();
+        frameStrideChanges = src.readInt();
+        src.readIntArray(stageBuckets);
+        src.readLongArray(stageTotalNanos);
+        src.readLongArray(stageMaxNanos);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(framesScanned);
+        dest.writeInt(framesSkipped);
+        dest.writeDouble(elapsedSeconds);
+        dest.writeInt(sessionsContinued);
+        dest.writeLong(timeToFirstFrameMs);
+        dest.writeInt(manualRefocusings);
+        dest.writeInt(autoRefocusings);
+        dest.writeInt(manualTorchChanges);
+        dest.writeInt(previewBufferCount);
+        dest.writeInt(scanOnBackgroundThread ? 1 : 0);
+        dest.writeDouble(averageFrameQueueLatencyMs);
+        dest.writeLong(maxFrameQueueLatencyMs);
+        dest.writeInt(cardImageRenderMode);
+        dest.writeInt(cardImagesRendered);
+        dest.writeInt(guideFrameRoi ? 1 : 0);
+        dest.writeInt(coarseEdgeDetection ? 1 : 0);
+        dest.writeInt(framesRejectedCoarse);
+        dest.writeInt(cornerTracking ? 1 : 0);
+        dest.writeInt(framesTracked);
+        dest.writeInt(trackingLosses);
+        dest.writeInt(pipelinedScan ? 1 : 0);
+        dest.writeInt(cropsRecognized);
+        dest.writeInt(cropsDropped);
+        dest.writeInt(continuousScan ? 1 : 0);
+        dest.writeInt(cardsScanned);
+        dest.writeDouble(averageCardLatencyMs);
+        dest.writeLong(maxCardLatencyMs);
+        dest.writeInt(adaptiveFrameRate ? 1 : 0);
+        dest.writeDouble(previewFpsMin);
+        dest.writeDouble(previewFpsMax);
+        dest.writeDouble(scannerFps);
+        dest.writeInt(frameStride);
+        dest.writeInt(framesStrided);
+        dest.writeInt(fpsRangeChanges);
+        dest.writeInt(frameStrideChanges);
+        dest.writeIntArray(stageBuckets);
+        dest.writeLongArray(stageTotalNanos);
+        dest.writeLongArray(stageMaxNanos);
+    }
+
+    public static final Parcelable.Creator<ScanMetrics> CREATOR = new Parcelable.Creator<ScanMetrics>() {
+
+        @Override
+        public ScanMetrics createFromParcel(Parcel source) {
+            return new ScanMetrics(source);
+        }
+
+        @Override
+        public ScanMetrics[] newArray(int size) {
+            return new ScanMetrics[size];
+        }
+    };
+}
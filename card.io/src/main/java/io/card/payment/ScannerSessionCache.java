@@ -0,0 +1,108 @@
+package io.card.payment;
+
+/* ScannerSessionCache.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the native scanner context of a {@link CardIOActivity} that is being re-created, so the
+ * new activity's {@link CardScanner} picks up the evidence the scanner has gathered so far over
+ * several frames, rather than starting over.
+ * <p/>
+ * Only one context is kept, for {@link #RESUME_WINDOW_MS} at most, after which it is cleaned up.
+ * Main thread only, like the activity lifecycle that drives it.
+ * <p/>
+ * This is the fast path. The activity also saves the scanner's state in its instance state, see
+ * {@link CardScanner#saveSessionState()}, which the new scanner restores if the process was
+ * killed in between and the kept context went with it.
+ */
+final class ScannerSessionCache {
+    private static final String TAG = ScannerSessionCache.class.getSimpleName();
+
+    /**
+     * How long an interrupted scan can be continued for. Longer than that, and the card in front
+     * of the camera has likely changed.
+     */
+    static final long RESUME_WINDOW_MS = 10000;
+
+    /**
+     * What is kept of a scan session between two scanners.
+     */
+    static final class Session {
+        final long id;
+        final long context;
+        // when the session first started scanning, in System.currentTimeMillis() time
+        final long captureStart;
+        final int timesContinued;
+
+        Session(long id, long context, long captureStart, int timesContinued) {
+            this.id = id;
+            this.context = context;
+            this.captureStart = captureStart;
+            this.timesContinued = timesContinued;
+        }
+    }
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static Session sParked;
+    private static long sParkedAt;
+
+    private static final Runnable sExpire = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    private ScannerSessionCache() {
+    }
+
+    /**
+     * Keeps the context of a scan session, replacing whichever was kept before.
+     */
+    static void park(Session session) {
+        release();
+        sParked = session;
+        sParkedAt = SystemClock.elapsedRealtime();
+        sHandler.postDelayed(sExpire, RESUME_WINDOW_MS);
+    }
+
+    /**
+     * @return whether the session is kept and hasn't expired, so {@link #adopt(long)} would return
+     * it now.
+     */
+    static boolean has(long sessionId) {
+        Session session = sParked;
+        return session != null && sessionId != 0 && session.id == sessionId
+                && SystemClock.elapsedRealtime() - sParkedAt <= RESUME_WINDOW_MS;
+    }
+
+    /**
+     * @return the session kept, whose context the caller then owns, or <code>null</code> if the
+     * session wasn't kept or has expired.
+     */
+    static Session adopt(long sessionId) {
+        if (!has(sessionId)) {
+            return null;
+        }
+        Session session = sParked;
+        sParked = null;
+        sHandler.removeCallbacks(sExpire);
+        Log.d(TAG, "continuing scan session " + sessionId);
+        return session;
+    }
+
+    private static void release() {
+        sHandler.removeCallbacks(sExpire);
+        if (sParked != null) {
+            CardScanner.nCleanup(sParked.context);
+            sParked = null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package io.card.payment;
+
+/* ScannerStartup.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.hardware.Camera;
+import android.util.Log;
+
+/**
+ * Gets the slow parts of starting a scan going at once, each on a background thread of its own,
+ * as soon as {@link CardIOActivity} knows it is going to use the camera:
+ * <ul>
+ * <li>opening the camera, which may have to wait for another app to let go of it,</li>
+ * <li>loading the native libraries, which happens when {@link CardScanner} is first touched,
+ * followed by setting up the scanner's native context, and</li>
+ * <li>decoding the overlay's logo.</li>
+ * </ul>
+ * Done one after the other on the main thread, these used to add up before the first preview
+ * frame. Whoever used to do each of them now takes its result from here instead, waiting for it
+ * if it isn't ready yet.
+ * <p/>
+ * The camera is opened on a thread without a looper, so its callbacks still arrive on the main
+ * thread, as they did when it was opened there.
+ */
+final class ScannerStartup {
+    private static final String TAG = ScannerStartup.class.getSimpleName();
+
+    /**
+     * Something being made on a background thread, owned by this until it is taken. Whatever is
+     * made after the startup was released is disposed of straight away.
+     */
+    private abstract static class Result<T> {
+        private T mValue;
+        private boolean mDone;
+        private boolean mReleased;
+
+        synchronized void set(T value) {
+            if (mReleased) {
+                if (value != null) {
+                    dispose(value);
+                }
+                return;
+            }
+            mValue = value;
+            mDone = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the result, without taking it.
+         */
+        synchronized T peek() {
+            boolean interrupted = false;
+            while (!mDone && !mReleased) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mValue;
+        }
+
+        /**
+         * Waits for the result, which the caller then owns.
+         */
+        synchronized T take() {
+            T value = peek();
+            mValue = null;
+            return value;
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            if (mValue != null) {
+                dispose(mValue);
+                mValue = null;
+            }
+            notifyAll();
+        }
+
+        abstract void dispose(T value);
+    }
+
+    private final boolean mDetectOnly;
+    private final int mUnblurDigits;
+    private final boolean mUseCardIOLogo;
+
+    private final Result<Camera> mCamera = new Result<Camera>() {
+        @Override
+        void dispose(Camera camera) {
+            camera.release();
+        }
+    };
+
+    private final Result<Long> mContext = new Result<Long>() {
+        @Override
+        void dispose(Long context) {
+            CardScanner.nCleanup(context);
+        }
+    };
+
+    private final Result<Bitmap> mLogo = new Result<Bitmap>() {
+        @Override
+        void dispose(Bitmap logo) {
+            // nothing native to it
+        }
+    };
+
+    private ScannerStartup(Intent scanIntent) {
+        // what CardScanner sets itself up with
+        mDetectOnly = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_SUPPRESS_SCAN, false);
+        mUnblurDigits = scanIntent.getIntExtra(CardIOActivity.EXTRA_UNBLUR_DIGITS,
+                CardScanner.DEFAULT_UNBLUR_DIGITS);
+        mUseCardIOLogo = scanIntent.getBooleanExtra(CardIOActivity.EXTRA_USE_CARDIO_LOGO, false);
+    }
+
+    /**
+     * Starts everything off. {@link #release()} must be called once the scanner has taken what it
+     * needs, or if it won't be needed after all.
+     *
+     * @param scanSessionId the activity's scan session. If {@link ScannerSessionCache} kept its
+     *                      native context, the scanner carries on with that one, so none is set
+     *                      up.
+     */
+    static ScannerStartup start(Context context, Intent scanIntent, long scanSessionId) {
+        final ScannerStartup startup = new ScannerStartup(scanIntent);
+        final Context appContext = context.getApplicationContext();
+
+        new Thread("card.io camera open") {
+            @Override
+            public void run() {
+                startup.mCamera.set(openCamera(CardScanner.CAMERA_CONNECT_RETRY_INTERVAL,
+                        CardScanner.CAMERA_CONNECT_TIMEOUT));
+            }
+        }.start();
+
+        if (ScannerSessionCache.has(scanSessionId)) {
+            // the native libraries are already loaded, by the scanner that kept it
+            startup.mContext.set(null);
+        } else {
+            new Thread("card.io native setup") {
+                @Override
+                public void run() {
+                    long context = 0;
+                    // loads the native libraries, unless another thread got to it first
+                    if (CardScanner.processorSupported()) {
+                        context = CardScanner.nSetup(startup.mDetectOnly,
+                                CardScanner.MIN_FOCUS_SCORE, startup.mUnblurDigits,
+                                CardScanner.PREVIEW_WIDTH, CardScanner.PREVIEW_HEIGHT);
+                    }
+                    startup.mContext.set(context != 0 ? context : null);
+                }
+            }.start();
+        }
+
+        new Thread("card.io overlay resources") {
+            @Override
+            public void run() {
+                startup.mLogo.set(Logo.decodeLogo(appContext, startup.mUseCardIOLogo));
+            }
+        }.start();
+
+        return startup;
+    }
+
+    /**
+     * Opens the back-facing camera, retrying every <code>checkInterval</code> ms for up to
+     * <code>maxTimeout</code> ms while another app still has it.
+     *
+     * @return the camera, or <code>null</code> if it couldn't be opened.
+     */
+    static Camera openCamera(int checkInterval, int maxTimeout) {
+        long start = System.currentTimeMillis();
+        do {
+            try {
+                // Camera.open() will open the back-facing camera. Front cameras are not
+                // attempted.
+                return Camera.open();
+            } catch (RuntimeException e) {
+                try {
+                    Log.w(Util.PUBLIC_LOG_TAG,
+                            "Wasn't able to connect to camera service. Waiting and trying again...");
+                    Thread.sleep(checkInterval);
+                } catch (InterruptedException e1) {
+                    Log.e(Util.PUBLIC_LOG_TAG, "Interrupted while waiting for camera", e1);
+                }
+            } catch (Exception e) {
+                Log.e(Util.PUBLIC_LOG_TAG, "Unexpected exception. Please report it as a GitHub issue", e);
+                maxTimeout = 0;
+            }
+
+        } while (System.currentTimeMillis() - start < maxTimeout);
+        Log.w(TAG, "camera connect timeout");
+        return null;
+    }
+
+    /**
+     * Waits for the camera to open, leaving it here.
+     *
+     * @return the camera, or <code>null</code> if it couldn't be opened.
+     */
+    Camera peekCamera() {
+        return mCamera.peek();
+    }
+
+    /**
+     * Waits for the camera to open.
+     *
+     * @return the camera, which the caller then owns, or <code>null</code> if it couldn't be
+     * opened.
+     */
+    Camera takeCamera() {
+        return mCamera.take();
+    }
+
+    /**
+     * Waits for the native context to be set up.
+     *
+     * @return the context, which the caller then owns, or 0 if the native libraries couldn't be
+     * loaded, or the context was set up for different settings.
+     */
+    long takeContext(boolean detectOnly, int unblurDigits) {
+        Long context = mContext.take();
+        if (context == null) {
+            return 0;
+        }
+        if (detectOnly != mDetectOnly || unblurDigits != mUnblurDigits) {
+            CardScanner.nCleanup(context);
+            return 0;
+        }
+        return context;
+    }
+
+    /**
+     * Waits for the logo to be decoded.
+     *
+     * @return the logo, or <code>null</code> if it was decoded for the other logo setting.
+     */
+    Bitmap takeLogo(boolean useCardIOLogo) {
+        Bitmap logo = mLogo.take();
+        return useCardIOLogo == mUseCardIOLogo ? logo : null;
+    }
+
+    /**
+     * Lets go of whatever wasn't taken, now or once it's ready.
+     */
+    void release() {
+        mCamera.release();
+        mContext.release();
+        mLogo.release();
+    }
+}
@@ -6,12 +6,25 @@ package io.card.payment;
 
 class StringHelper {
     public static String getDigitsOnlyString(String numString) {
-        StringBuilder sb = new StringBuilder();
-        for (char c : numString.toCharArray()) {
+        StringBuilder sb = new StringBuilder(numString.length());
+        getDigitsOnly(numString, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the digits of <code>source</code> into <code>out</code>, replacing what it held.
+     * Nothing is created once <code>out</code> has grown to fit them.
+     *
+     * @return the number of digits.
+     */
+    static int getDigitsOnly(CharSequence source, StringBuilder out) {
+        out.setLength(0);
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
             if (Character.isDigit(c)) {
-                sb.append(c);
+                out.append(c);
             }
         }
-        return sb.toString();
+        return out.length();
     }
 }
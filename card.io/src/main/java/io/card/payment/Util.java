@@ -65,52 +65,91 @@ class Util {
     /* --- HARDWARE SUPPORT --- */
 
     public static boolean hardwareSupported() {
-        if (sHardwareSupported == null) {
-            sHardwareSupported = hardwareSupportCheck();
+        return hardwareSupported(null, null);
+    }
+
+    /**
+     * @param context    to look the answer up in {@link HardwareCapabilityCache}, and keep it
+     *                   there, or <code>null</code> to check in every process.
+     * @param openCamera a camera that is already open, so it isn't opened a second time just for
+     *                   the check, or <code>null</code>.
+     */
+    static boolean hardwareSupported(Context context, Camera openCamera) {
+        if (knownHardwareSupport(context) == null) {
+            sHardwareSupported = hardwareSupportCheck(context, openCamera);
+        }
+        return sHardwareSupported;
+    }
+
+    /**
+     * @return what {@link #hardwareSupported(Context, Camera)} would return, if that is already
+     * known without opening the camera, or <code>null</code>.
+     */
+    static Boolean knownHardwareSupport(Context context) {
+        if (sHardwareSupported == null && context != null) {
+            HardwareCapabilityCache.Capabilities capabilities = HardwareCapabilityCache.load(context);
+            if (capabilities != null) {
+                sHardwareSupported = capabilities.supported;
+            }
         }
         return sHardwareSupported;
     }
 
-    private static boolean hardwareSupportCheck() {
+    static void forgetHardwareSupport() {
+        sHardwareSupported = null;
+    }
+
+    private static boolean hardwareSupportCheck(Context context, Camera openCamera) {
         if (!CardScanner.processorSupported()) {
             Log.w(PUBLIC_LOG_TAG, "- Processor type is not supported");
             return false;
         }
 
         // Camera needs to open
-        Camera c = null;
-        try {
-            c = Camera.open();
-        } catch (RuntimeException e) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                return true;
-            } else {
-                Log.w(PUBLIC_LOG_TAG, "- Error opening camera: " + e);
-                throw new CameraUnavailableException();
+        Camera c = openCamera;
+        if (c == null) {
+            try {
+                c = Camera.open();
+            } catch (RuntimeException e) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    // most likely no permission yet, so this isn't the final answer
+                    return true;
+                } else {
+                    Log.w(PUBLIC_LOG_TAG, "- Error opening camera: " + e);
+                    throw new CameraUnavailableException();
+                }
             }
         }
         if (c == null) {
             Log.w(PUBLIC_LOG_TAG, "- No camera found");
             return false;
-        } else {
-            List<Camera.Size> list = c.getParameters().getSupportedPreviewSizes();
+        }
+
+        Camera.Size previewSize = vgaPreviewSize(c);
+        if (c != openCamera) {
             c.release();
+        }
+        if (previewSize == null) {
+            Log.w(PUBLIC_LOG_TAG, "- Camera resolution is insufficient");
+        }
 
-            boolean supportsVGA = false;
+        boolean supported = previewSize != null;
+        if (context != null) {
+            HardwareCapabilityCache.store(context, supported,
+                    supported ? previewSize.width : 0, supported ? previewSize.height : 0);
+        }
+        return supported;
+    }
 
-            for (Camera.Size s : list) {
-                if (s.width == 640 && s.height == 480) {
-                    supportsVGA = true;
-                    break;
-                }
-            }
+    private static Camera.Size vgaPreviewSize(Camera c) {
+        List<Camera.Size> list = c.getParameters().getSupportedPreviewSizes();
 
-            if (!supportsVGA) {
-                Log.w(PUBLIC_LOG_TAG, "- Camera resolution is insufficient");
-                return false;
+        for (Camera.Size s : list) {
+            if (s.width == 640 && s.height == 480) {
+                return s;
             }
         }
-        return true;
+        return null;
     }
 
     public static String getNativeMemoryStats() {
@@ -122,6 +161,42 @@ class Util {
         Log.d("MEMORY", "Native memory stats: " + getNativeMemoryStats());
     }
 
+    /**
+     * Converts ARGB pixels to an NV21 frame, the format of camera previews and of what the scanner
+     * expects. nv21 must hold width * height * 3 / 2 bytes.
+     */
+    static void encodeNV21(int[] argb, int width, int height, byte[] nv21) {
+        int frameSize = width * height;
+        int yIndex = 0;
+        int uvIndex = frameSize;
+
+        int R, G, B, Y, U, V;
+        int index = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                R = (argb[index] & 0xff0000) >> 16;
+                G = (argb[index] & 0xff00) >> 8;
+                B = (argb[index] & 0xff);
+
+                // well known RGB to YUV algorithm
+                Y = ( (  66 * R + 129 * G +  25 * B + 128) >> 8) +  16;
+                U = ( ( -38 * R -  74 * G + 112 * B + 128) >> 8) + 128;
+                V = ( ( 112 * R -  94 * G -  18 * B + 128) >> 8) + 128;
+
+                // NV21 has a plane of Y and interleaved planes of VU each sampled by a factor of 2
+                // meaning for every 4 Y pixels there are 1 V and 1 U.  Note the sampling is every
+                // other pixel AND every other scanline.
+                nv21[yIndex++] = (byte) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
+                if (j % 2 == 0 && index % 2 == 0) {
+                    nv21[uvIndex++] = (byte)((V<0) ? 0 : ((V > 255) ? 255 : V));
+                    nv21[uvIndex++] = (byte)((U<0) ? 0 : ((U > 255) ? 255 : U));
+                }
+
+                index ++;
+            }
+        }
+    }
+
     static public Rect rectGivenCenter(Point center, int width, int height) {
         return new Rect(center.x - width / 2, center.y - height / 2, center.x + width / 2, center.y
                 + height / 2);
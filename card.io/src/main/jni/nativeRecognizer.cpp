@@ -3,8 +3,12 @@
  * See the file "LICENSE.md" for the full license governing this code.
  */
 
+#include <math.h>
+#include <stdint.h>
+#include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
+#include <time.h>
 #include <jni.h>
 #include <android/log.h>
 #include <android/bitmap.h>
@@ -21,14 +25,354 @@
 
 #define DEBUG_TAG "card.io native"
 
-static dmz_context* dmz = NULL;
-static int dmz_refcount = 0;
+/* Scratch images for scanning, sized once for the frame geometry and reused for every frame, so
+ * the per-frame path doesn't malloc/free. The y and cbcr headers point into the frame being
+ * scanned, cardResult into the locked pixels of the result bitmap. */
+typedef struct {
+  int frameWidth;
+  int frameHeight;
+  IplImage *y;
+  IplImage *cbcr;
+  IplImage *coarseY;
+  IplImage *cardResult;
+} ScratchArena;
+
+/* A card found in a frame, warped to the card's shape, along with everything recognizing it and
+ * rendering it needs. It owns its chroma planes, so once the card is found the frame isn't needed
+ * any more and can go back to the camera. The pipelined scan hands crops from the detecting thread
+ * to the recognizing one; the serial scan just uses the context's own. */
+typedef struct {
+  int frameWidth;
+  int frameHeight;
+  IplImage *cb;
+  IplImage *cr;
+  IplImage *cardY;
+  dmz_corner_points cornerPoints;
+  int orientation;
+  bool flipped;
+  float focusScore;
+} CardCrop;
+
+/* The stages of scanFrame that get timed. Keep in sync with ScanMetrics.STAGE_*. */
+enum {
+  STAGE_FOCUS_SCORE = 0,
+  STAGE_DEINTERLEAVE,
+  STAGE_DETECT_EDGES,
+  STAGE_TRANSFORM,
+  STAGE_RECOGNIZE,
+  STAGE_RENDER,
+  STAGE_COUNT
+};
+
+/* Upper bounds of the stage latency histogram buckets, in microseconds. The last bucket takes
+ * everything slower. Keep in sync with ScanMetrics.BUCKET_BOUNDS_MICROS. */
+static const jlong kBucketBoundsMicros[] = {
+  25, 50, 75, 100, 150, 200, 300, 400, 500, 750,
+  1000, 1500, 2000, 3000, 4000, 5000, 7500,
+  10000, 15000, 20000, 30000, 40000, 50000, 75000,
+  100000, 150000, 200000
+};
+#define BUCKET_COUNT ((int)(sizeof(kBucketBoundsMicros) / sizeof(kBucketBoundsMicros[0])) + 1)
+
+/* Pixels around the guide frame that the ROI keeps, for cards held slightly off the guide. */
+#define GUIDE_ROI_MARGIN 16
+
+/* The coarse pass of coarse-to-fine edge detection looks at the Y plane scaled down by
+ * 1 << COARSE_SHIFT, in bands across each guide frame edge, COARSE_BAND_FRACTION of the guide's
+ * size deep on either side. A row (or column) of a band holds a plausible card edge when at least
+ * COARSE_LINE_FRACTION of its pixels have a brightness step of COARSE_MIN_STEP or more across it,
+ * and a card is plausible when COARSE_MIN_EDGES of the four bands hold one. These are kept loose:
+ * a frame wrongly let through only costs the full resolution pass it would have had anyway. */
+#define COARSE_SHIFT 2
+#define COARSE_BAND_FRACTION 0.15f
+#define COARSE_LINE_FRACTION 0.4f
+#define COARSE_MIN_STEP 12
+#define COARSE_MIN_EDGES 3
+
+/* Corner tracking follows a found card from frame to frame instead of searching for it again.
+ * Each of the previous card edges is checked at TRACK_SAMPLES points away from its corners, for
+ * the strongest brightness step along the edge's normal within TRACK_WINDOW pixels either side. An
+ * edge is still there if TRACK_MIN_HITS of the points find a step of at least TRACK_MIN_STEP, and a
+ * line fitted through them is where it is now. The card is lost when an edge isn't there, or a
+ * corner moved more than TRACK_MAX_CORNER_SHIFT. Every TRACK_REDETECT_INTERVAL frames, the card is
+ * searched for again anyway, so the tracked corners can't drift off it. */
+#define TRACK_SAMPLES 16
+#define TRACK_WINDOW 8
+#define TRACK_MIN_STEP 24
+#define TRACK_MIN_HITS 10
+#define TRACK_MAX_CORNER_SHIFT 12.0f
+#define TRACK_REDETECT_INTERVAL 15
+
+/* Everything one CardScanner scans with. nSetup hands it to Java as an opaque handle, which every
+ * other call passes back, so independent scanners can run side by side on different threads. */
+typedef struct {
+  dmz_context *dmz;
+  ScannerState scannerState;
+  bool detectOnly;
+  // Written by whichever thread recognizes, read by whichever thread detects. A stale read only
+  // means one more frame scanned the wrong way up.
+  volatile bool flipped;
+  int unblurDigits;
+  float minFocusScore;
+  bool useGuideRoi;
+  bool coarseEdges;
+  jint coarseRejects; // frames the coarse pass found no card in, since the last reset
+
+  // corner tracking, touched only by whichever thread detects
+  bool trackCorners;
+  bool tracking; // whether trackedCorners are those of a card found in the last frame
+  dmz_corner_points trackedCorners;
+  int trackedOrientation;
+  int framesSinceDetection;
+  jint framesTracked; // since the last reset
+  jint trackingLosses;
+  ScratchArena arena;
+  jint scratchAllocations; // times the arena or a crop had to be (re)sized, since setup
+  CardCrop crop; // for scanning serially
+  jlong stageNanos[STAGE_COUNT]; // of the last frame, 0 for stages it didn't get to
+
+  // latency histograms of every frame since the last reset
+  jint stageBuckets[STAGE_COUNT][BUCKET_COUNT];
+  jlong stageTotalNanos[STAGE_COUNT];
+  jlong stageMaxNanos[STAGE_COUNT];
+} ScannerContext;
+
+static inline ScannerContext *contextFromHandle(jlong handle) {
+  return (ScannerContext *)(intptr_t)handle;
+}
+
+static inline jlong nowNanos() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (jlong)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static void resetStageHistograms(ScannerContext *ctx) {
+  memset(ctx->stageBuckets, 0, sizeof(ctx->stageBuckets));
+  memset(ctx->stageTotalNanos, 0, sizeof(ctx->stageTotalNanos));
+  memset(ctx->stageMaxNanos, 0, sizeof(ctx->stageMaxNanos));
+}
+
+/* Records the time since *stageStart for the stage, and restarts the clock for the next one. */
+static inline void endStage(ScannerContext *ctx, int stage, jlong *stageStart) {
+  jlong now = nowNanos();
+  jlong nanos = now - *stageStart;
+  *stageStart = now;
+
+  ctx->stageNanos[stage] = nanos;
+  ctx->stageTotalNanos[stage] += nanos;
+  if (nanos > ctx->stageMaxNanos[stage]) {
+    ctx->stageMaxNanos[stage] = nanos;
+  }
+  jlong micros = nanos / 1000;
+  int bucket = 0;
+  while (bucket < BUCKET_COUNT - 1 && micros > kBucketBoundsMicros[bucket]) {
+    bucket++;
+  }
+  ctx->stageBuckets[stage][bucket]++;
+}
+
+/* Points roi at the part of the Y plane under the guide frame, plus a margin. The header shares the
+ * frame's pixels and row stride, so nothing is copied or allocated. */
+static void guideRoi(IplImage *roi, char *frameData, int width, int height, int orientation) {
+  dmz_rect guide = dmz_guide_frame(orientation, width, height);
+  int left = MAX(0, (int)guide.x - GUIDE_ROI_MARGIN);
+  int top = MAX(0, (int)guide.y - GUIDE_ROI_MARGIN);
+  int right = MIN(width, (int)(guide.x + guide.w) + GUIDE_ROI_MARGIN);
+  int bottom = MIN(height, (int)(guide.y + guide.h) + GUIDE_ROI_MARGIN);
+
+  cvInitImageHeader(roi, cvSize(right - left, bottom - top), IPL_DEPTH_8U, 1);
+  cvSetData(roi, frameData + top * width + left, width);
+}
+
+/* Whether any row (horizontal) or column (!horizontal) from lineFrom to lineTo of the coarse image
+ * looks like a card edge between spanFrom and spanTo. */
+static bool coarseBandHasEdge(const IplImage *coarse, bool horizontal, int lineFrom, int lineTo,
+    int spanFrom, int spanTo) {
+  int lineLimit = (horizontal ? coarse->height : coarse->width) - 2;
+  int spanLimit = horizontal ? coarse->width : coarse->height;
+  lineFrom = MAX(1, lineFrom);
+  lineTo = MIN(lineLimit, lineTo);
+  spanFrom = MAX(0, spanFrom);
+  spanTo = MIN(spanLimit, spanTo);
+  int needed = MAX(1, (int)((spanTo - spanFrom) * COARSE_LINE_FRACTION));
+
+  const uint8_t *pixels = (const uint8_t *)coarse->imageData;
+  int stride = coarse->widthStep;
+  // from one pixel before the line to one after, so an edge straddling two lines still counts
+  int across = horizontal ? stride : 1;
+  int along = horizontal ? 1 : stride;
+
+  for (int line = lineFrom; line <= lineTo; line++) {
+    const uint8_t *p = pixels + (horizontal ? line * stride + spanFrom : spanFrom * stride + line);
+    int steps = 0;
+    for (int i = spanFrom; i < spanTo; i++, p += along) {
+      int step = (int)p[across] - (int)p[-across];
+      if (step >= COARSE_MIN_STEP || step <= -COARSE_MIN_STEP) {
+        if (++steps >= needed) {
+          return true;
+        }
+      }
+    }
+  }
+  return false;
+}
+
+/* The coarse half of coarse-to-fine edge detection: a look at a scaled down Y plane for whether a
+ * card could be under the guide frame at all. Only if so does dmz_detect_edges go over the full
+ * resolution planes. */
+static bool coarseCardPlausible(ScannerContext *ctx, IplImage *image, int width, int height,
+    int orientation) {
+  IplImage *coarse = ctx->arena.coarseY;
+  cvResize(image, coarse, CV_INTER_AREA);
+
+  dmz_rect guide = dmz_guide_frame(orientation, width, height);
+  int left = (int)guide.x >> COARSE_SHIFT;
+  int top = (int)guide.y >> COARSE_SHIFT;
+  int right = (int)(guide.x + guide.w) >> COARSE_SHIFT;
+  int bottom = (int)(guide.y + guide.h) >> COARSE_SHIFT;
+  int bandX = MAX(1, (int)((right - left) * COARSE_BAND_FRACTION));
+  int bandY = MAX(1, (int)((bottom - top) * COARSE_BAND_FRACTION));
+
+  // along each edge, the part clear of the corners, where the other edges' bands are
+  int edges = 0;
+  edges += coarseBandHasEdge(coarse, true, top - bandY, top + bandY, left + bandX, right - bandX);
+  edges += coarseBandHasEdge(coarse, true, bottom - bandY, bottom + bandY, left + bandX,
+                             right - bandX);
+  edges += coarseBandHasEdge(coarse, false, left - bandX, left + bandX, top + bandY,
+                             bottom - bandY);
+  edges += coarseBandHasEdge(coarse, false, right - bandX, right + bandX, top + bandY,
+                             bottom - bandY);
+  return edges >= COARSE_MIN_EDGES;
+}
+
+/* The brightness at p, or -1 outside the image. */
+static inline int pixelAt(const IplImage *image, float x, float y) {
+  int ix = (int)(x + 0.5f);
+  int iy = (int)(y + 0.5f);
+  if (ix < 0 || iy < 0 || ix >= image->width || iy >= image->height) {
+    return -1;
+  }
+  return ((const uint8_t *)image->imageData)[iy * image->widthStep + ix];
+}
+
+/* A line through point q in direction d. */
+typedef struct {
+  dmz_point q;
+  dmz_point d;
+} TrackedLine;
+
+/* Looks for the edge that ran from p0 to p1 in the last frame. Returns whether it is still there,
+ * and if so, where it is now. */
+static bool trackEdge(const IplImage *image, dmz_point p0, dmz_point p1, TrackedLine *line) {
+  float dx = p1.x - p0.x;
+  float dy = p1.y - p0.y;
+  float length = sqrtf(dx * dx + dy * dy);
+  if (length < 1) {
+    return false;
+  }
+  // unit normal
+  float nx = -dy / length;
+  float ny = dx / length;
+
+  // least squares fit of the edge's offset along the normal, o = a + b * t
+  int hits = 0;
+  float sumT = 0, sumO = 0, sumTT = 0, sumTO = 0;
+  for (int i = 0; i < TRACK_SAMPLES; i++) {
+    // clear of the corners, where the neighbouring edges would get in the way
+    float t = 0.15f + 0.7f * i / (TRACK_SAMPLES - 1);
+    float x = p0.x + t * dx;
+    float y = p0.y + t * dy;
+
+    int bestStep = 0;
+    int bestOffset = 0;
+    for (int o = -TRACK_WINDOW; o <= TRACK_WINDOW; o++) {
+      int before = pixelAt(image, x + (o - 1) * nx, y + (o - 1) * ny);
+      int after = pixelAt(image, x + (o + 1) * nx, y + (o + 1) * ny);
+      if (before < 0 || after < 0) {
+        continue;
+      }
+      int step = abs(after - before);
+      if (step > bestStep) {
+        bestStep = step;
+        bestOffset = o;
+      }
+    }
+    if (bestStep >= TRACK_MIN_STEP) {
+      hits++;
+      sumT += t;
+      sumO += bestOffset;
+      sumTT += t * t;
+      sumTO += t * bestOffset;
+    }
+  }
+  if (hits < TRACK_MIN_HITS) {
+    return false;
+  }
+
+  float denominator = hits * sumTT - sumT * sumT;
+  float b = denominator == 0 ? 0 : (hits * sumTO - sumT * sumO) / denominator;
+  float a = (sumO - b * sumT) / hits;
+  line->q.x = p0.x + a * nx;
+  line->q.y = p0.y + a * ny;
+  line->d.x = dx + b * nx;
+  line->d.y = dy + b * ny;
+  return true;
+}
+
+static bool intersect(const TrackedLine *l1, const TrackedLine *l2, dmz_point *corner) {
+  float cross = l1->d.x * l2->d.y - l1->d.y * l2->d.x;
+  if (fabsf(cross) < 1e-3f) {
+    return false;
+  }
+  float qx = l2->q.x - l1->q.x;
+  float qy = l2->q.y - l1->q.y;
+  float s = (qx * l2->d.y - qy * l2->d.x) / cross;
+  corner->x = l1->q.x + s * l1->d.x;
+  corner->y = l1->q.y + s * l1->d.y;
+  return true;
+}
+
+static inline bool cornerMoved(dmz_point from, dmz_point to) {
+  float dx = to.x - from.x;
+  float dy = to.y - from.y;
+  return dx * dx + dy * dy > TRACK_MAX_CORNER_SHIFT * TRACK_MAX_CORNER_SHIFT;
+}
+
+/* Finds the card whose corners were previous in the last frame, near where it was. Much cheaper
+ * than dmz_detect_edges, which searches the whole guide frame. Returns whether it is still there. */
+static bool trackCorners(const IplImage *image, const dmz_corner_points *previous,
+    dmz_corner_points *corners) {
+  TrackedLine top, right, bottom, left;
+  if (!trackEdge(image, previous->top_left, previous->top_right, &top)
+      || !trackEdge(image, previous->top_right, previous->bottom_right, &right)
+      || !trackEdge(image, previous->bottom_right, previous->bottom_left, &bottom)
+      || !trackEdge(image, previous->bottom_left, previous->top_left, &left)) {
+    return false;
+  }
+
+  if (!intersect(&left, &top, &corners->top_left)
+      || !intersect(&top, &right, &corners->top_right)
+      || !intersect(&right, &bottom, &corners->bottom_right)
+      || !intersect(&bottom, &left, &corners->bottom_left)) {
+    return false;
+  }
+
+  return !cornerMoved(previous->top_left, corners->top_left)
+      && !cornerMoved(previous->top_right, corners->top_right)
+      && !cornerMoved(previous->bottom_right, corners->bottom_right)
+      && !cornerMoved(previous->bottom_left, corners->bottom_left);
+}
 
-static ScannerState scannerState;
-static bool detectOnly;
-static bool flipped;
-static int unblurDigits;
-static float minFocusScore;
+/* When scanFrame renders the color card image. The same values as
+ * CardIOActivity.CARD_IMAGE_RENDER_*, keep in sync with CardScanner.RENDER_*. CardScanner only
+ * passes RENDER_THROTTLED once the next throttled render is due, so it renders whatever card this
+ * frame finds. */
+enum {
+  RENDER_NEVER = 0,
+  RENDER_ON_COMPLETION = 1,
+  RENDER_THROTTLED = 2,
+};
 
 static struct {
   jclass classRef;
@@ -49,20 +393,9 @@ static struct {
   jfieldID prediction;
   jfieldID expiry_month;
   jfieldID expiry_year;
-  jfieldID detectedCard;
-} detectionInfoId;
-
-static struct {
-  jclass classRef;
-  jfieldID flipped;
   jfieldID yoff;
   jfieldID xoff;
-} creditCardId;
-
-static struct {
-  jclass classRef;
-  jmethodID edgeUpdateCallback;
-} cardScannerId;
+} detectionInfoId;
 
 extern "C"
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -77,18 +410,6 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
    * see http://www.milk.com/kodebase/dalvik-docs-mirror/docs/jni-tips.html
    */
 
-  jclass myClass = env->FindClass("io/card/payment/CardScanner");
-  if (!myClass) {
-    dmz_error_log("Couldn't find CardScanner from JNI");
-    return -1;
-  }
-  cardScannerId.classRef = (jclass)env->NewGlobalRef(myClass);
-  cardScannerId.edgeUpdateCallback = env->GetMethodID(myClass, "onEdgeUpdate", "(Lio/card/payment/DetectionInfo;)V");
-  if (!cardScannerId.edgeUpdateCallback) {
-    dmz_error_log("Couldn't find edge update callback");
-    return -1;
-  }
-
   jclass rectClass = env->FindClass("android/graphics/Rect");
   if (!rectClass) {
     dmz_error_log("Couldn't find Rect class");
@@ -105,20 +426,6 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     return -1;
   }
 
-  jclass creditCardClass = (jclass)env->FindClass("io/card/payment/CreditCard");
-  if (creditCardClass == NULL) {
-    dmz_error_log("Couldn't find CreditCard class");
-    return -1;
-  }
-  creditCardId.classRef = (jclass)env->NewGlobalRef(creditCardClass);
-  creditCardId.flipped = env->GetFieldID(creditCardClass, "flipped", "Z");
-  creditCardId.yoff = env->GetFieldID(creditCardClass, "yoff", "I");
-  creditCardId.xoff = env->GetFieldID(creditCardClass, "xoff", "[I");
-  if (!( creditCardId.flipped && creditCardId.yoff && creditCardId.xoff )) {
-    dmz_error_log("at least one filed was not found for CreditCard");
-    return -1;
-  }
-
   jclass dInfoClass = env->FindClass("io/card/payment/DetectionInfo");
   if (dInfoClass == NULL) {
     dmz_error_log("Couldn't find DetectionInfo class");
@@ -134,13 +441,14 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
   detectionInfoId.prediction = env->GetFieldID(dInfoClass, "prediction", "[I");
   detectionInfoId.expiry_month = env->GetFieldID(dInfoClass, "expiry_month", "I");
   detectionInfoId.expiry_year = env->GetFieldID(dInfoClass, "expiry_year", "I");
-  detectionInfoId.detectedCard = env->GetFieldID(dInfoClass, "detectedCard", "Lio/card/payment/CreditCard;");
+  detectionInfoId.yoff = env->GetFieldID(dInfoClass, "yoff", "I");
+  detectionInfoId.xoff = env->GetFieldID(dInfoClass, "xoff", "[I");
 
   if (!(detectionInfoId.complete && detectionInfoId.topEdge && detectionInfoId.bottomEdge
         && detectionInfoId.leftEdge && detectionInfoId.rightEdge
         && detectionInfoId.focusScore && detectionInfoId.prediction
         && detectionInfoId.expiry_month && detectionInfoId.expiry_year
-        && detectionInfoId.detectedCard
+        && detectionInfoId.yoff && detectionInfoId.xoff
        )) {
     dmz_error_log("at least one field was not found for DetectionInfo");
     return -1;
@@ -149,51 +457,203 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
   return JNI_VERSION_1_6;
 }
 
+static void arena_release(ScratchArena *arena) {
+  if (arena->y != NULL) {
+    cvReleaseImageHeader(&arena->y);
+    cvReleaseImageHeader(&arena->cbcr);
+    cvReleaseImage(&arena->coarseY);
+  }
+  if (arena->cardResult != NULL) {
+    cvReleaseImageHeader(&arena->cardResult);
+  }
+  arena->frameWidth = 0;
+  arena->frameHeight = 0;
+}
+
+/* (Re)allocates the frame sized scratch images, unless they already match the geometry. Returns
+ * whether it did. */
+static bool arena_prepare(ScratchArena *arena, int width, int height) {
+  if (arena->y != NULL && arena->frameWidth == width && arena->frameHeight == height) {
+    return false;
+  }
+  dmz_debug_log("sizing scratch arena for %ix%i frames", width, height);
+
+  CvSize chromaSize = cvSize(width / 2, height / 2);
+  IplImage *cardResult = arena->cardResult;
+  arena->cardResult = NULL;
+  arena_release(arena);
+  arena->cardResult = cardResult;
+
+  arena->y = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, 1);
+  arena->cbcr = cvCreateImageHeader(chromaSize, IPL_DEPTH_8U, 2);
+  arena->coarseY = cvCreateImage(cvSize(width >> COARSE_SHIFT, height >> COARSE_SHIFT),
+                                 IPL_DEPTH_8U, 1);
+  arena->frameWidth = width;
+  arena->frameHeight = height;
+  return true;
+}
+
+static void crop_release(CardCrop *crop) {
+  if (crop->cb != NULL) {
+    cvReleaseImage(&crop->cb);
+    cvReleaseImage(&crop->cr);
+  }
+  if (crop->cardY != NULL) {
+    cvReleaseImage(&crop->cardY);
+  }
+  crop->frameWidth = 0;
+  crop->frameHeight = 0;
+}
+
+/* (Re)allocates the crop's chroma planes, unless they already match the frame geometry. Returns
+ * whether it did. */
+static bool crop_prepare(CardCrop *crop, int width, int height) {
+  if (crop->cb != NULL && crop->frameWidth == width && crop->frameHeight == height) {
+    return false;
+  }
+  crop_release(crop);
+
+  CvSize chromaSize = cvSize(width / 2, height / 2);
+  crop->cb = cvCreateImage(chromaSize, IPL_DEPTH_8U, 1);
+  crop->cr = cvCreateImage(chromaSize, IPL_DEPTH_8U, 1);
+  crop->frameWidth = width;
+  crop->frameHeight = height;
+  return true;
+}
+
+/* Returns the handle of a new scanner context, which must be freed with nCleanup. If the frame
+ * geometry isn't known yet (0), the scratch images get sized by the first frame instead. */
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetup__ZFI(JNIEnv *env,
-        jobject thiz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore, jint jUnblurDigits) {
+JNIEXPORT jlong JNICALL Java_io_card_payment_CardScanner_nSetup(JNIEnv *env,
+        jclass clazz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore, jint jUnblurDigits,
+        jint frameWidth, jint frameHeight) {
   dmz_debug_log("Java_io_card_payment_CardScanner_nSetup");
   dmz_trace_log("dmz trace enabled");
 
+  ScannerContext *ctx = new ScannerContext();
+  ctx->detectOnly = shouldOnlyDetectCard;
+  ctx->minFocusScore = jMinFocusScore;
+  ctx->unblurDigits = jUnblurDigits;
+  ctx->flipped = false;
 
-  detectOnly = shouldOnlyDetectCard;
-  minFocusScore = jMinFocusScore;
-  unblurDigits = jUnblurDigits;
-  flipped = false;
+  ctx->dmz = dmz_context_create();
+  scanner_initialize(&ctx->scannerState);
 
-  if (dmz == NULL) {
-    dmz = dmz_context_create();
-    scanner_initialize(&scannerState);
+  if (frameWidth > 0 && frameHeight > 0) {
+    arena_prepare(&ctx->arena, frameWidth, frameHeight);
+    crop_prepare(&ctx->crop, frameWidth, frameHeight);
+    ctx->scratchAllocations++;
   }
-  else {
-    scanner_reset(&scannerState);
-  }
-  dmz_refcount++;
 
   cvSetErrMode(CV_ErrModeParent);
+
+  return (jlong)(intptr_t)ctx;
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nResetAnalytics(JNIEnv *env, jclass clazz,
+    jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  scanner_reset(&ctx->scannerState);
+  resetStageHistograms(ctx);
+  ctx->coarseRejects = 0;
+  ctx->tracking = false;
+  ctx->framesTracked = 0;
+  ctx->trackingLosses = 0;
 }
 
+/* Forgets the card read so far, for the next one, but keeps the analytics of the whole scan. */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nResetCard(JNIEnv *env, jclass clazz,
+    jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  scanner_reset(&ctx->scannerState);
+}
+
+/* What nSaveState writes out of a scanner context, so a scan interrupted by the process going
+ * away can carry on in the next one: the digit evidence gathered over the frames so far, and which
+ * way up the card was. The expiry groups are lists the next few frames rebuild anyway, so they are
+ * left out. Bump SAVED_STATE_VERSION whenever this changes; a state of another version or size,
+ * say from a different build, is ignored. */
+#define SAVED_STATE_VERSION 1
+
+typedef struct {
+  jint version;
+  jint size;
+  uint16_t count15;
+  uint16_t count16;
+  NumberScores aggregated15;
+  NumberScores aggregated16;
+  bool flipped;
+} SavedState;
+
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetup__ZF(JNIEnv *env,
-        jobject thiz, jboolean shouldOnlyDetectCard, jfloat jMinFocusScore) {
-    return Java_io_card_payment_CardScanner_nSetup__ZFI(env, thiz, shouldOnlyDetectCard, jMinFocusScore, unblurDigits);
+JNIEXPORT jbyteArray JNICALL Java_io_card_payment_CardScanner_nSaveState(JNIEnv *env,
+    jclass clazz, jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL || ctx->detectOnly) {
+    return NULL;
+  }
+  SavedState saved;
+  memset(&saved, 0, sizeof(saved));
+  saved.version = SAVED_STATE_VERSION;
+  saved.size = sizeof(SavedState);
+  saved.count15 = ctx->scannerState.count15;
+  saved.count16 = ctx->scannerState.count16;
+  saved.aggregated15 = ctx->scannerState.aggregated15;
+  saved.aggregated16 = ctx->scannerState.aggregated16;
+  saved.flipped = ctx->flipped;
+
+  jbyteArray jState = env->NewByteArray(sizeof(SavedState));
+  if (jState != NULL) {
+    env->SetByteArrayRegion(jState, 0, sizeof(SavedState), (const jbyte *)&saved);
+  }
+  return jState;
 }
 
+/* Carries on with a state written by nSaveState, in a context that hasn't scanned anything yet.
+ * Returns false, leaving the context as it was, if the state can't be used. */
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nResetAnalytics(JNIEnv *env, jobject thiz) {
-  scanner_reset(&scannerState);
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nRestoreState(JNIEnv *env,
+    jclass clazz, jlong handle, jbyteArray jState) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL || ctx->detectOnly || jState == NULL
+      || env->GetArrayLength(jState) != (jsize)sizeof(SavedState)) {
+    return false;
+  }
+  SavedState saved;
+  env->GetByteArrayRegion(jState, 0, sizeof(SavedState), (jbyte *)&saved);
+  if (saved.version != SAVED_STATE_VERSION || saved.size != (jint)sizeof(SavedState)) {
+    return false;
+  }
+  ctx->scannerState.count15 = saved.count15;
+  ctx->scannerState.count16 = saved.count16;
+  ctx->scannerState.aggregated15 = saved.aggregated15;
+  ctx->scannerState.aggregated16 = saved.aggregated16;
+  ctx->flipped = saved.flipped;
+  return true;
 }
 
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nCleanup(JNIEnv *env, jobject thiz) {
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nCleanup(JNIEnv *env, jclass clazz,
+    jlong handle) {
   dmz_debug_log("Java_io_card_payment_CardScanner_nCleanup");
 
-  if (dmz_refcount == 1) {
-    scanner_destroy(&scannerState);
-    dmz_context_destroy(dmz);
-    dmz = NULL;
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
   }
-  dmz_refcount--;
+  scanner_destroy(&ctx->scannerState);
+  dmz_context_destroy(ctx->dmz);
+  arena_release(&ctx->arena);
+  crop_release(&ctx->crop);
+  delete ctx;
 }
 
 extern "C"
@@ -210,13 +670,13 @@ JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nGetGuideFrame(JNIEnv *e
   env->SetIntField(rect, rectId.right, dr.x + dr.w);
 }
 
-void updateEdgeDetectDisplay(JNIEnv* env, jobject thiz, jobject dinfo, dmz_edges found_edges) {
+/* The edges are only returned in dinfo. CardScanner diffs them against the previous frame and
+ * tells the UI about changes, so there's no call back into Java for every frame. */
+void setDetectedEdges(JNIEnv* env, jobject dinfo, dmz_edges found_edges) {
   env->SetBooleanField(dinfo, detectionInfoId.topEdge, found_edges.top.found);
   env->SetBooleanField(dinfo, detectionInfoId.bottomEdge, found_edges.bottom.found);
   env->SetBooleanField(dinfo, detectionInfoId.leftEdge, found_edges.left.found);
   env->SetBooleanField(dinfo, detectionInfoId.rightEdge, found_edges.right.found);
-
-  env->CallVoidMethod(thiz, cardScannerId.edgeUpdateCallback, dinfo);
 }
 
 void setScanCardNumberResult(JNIEnv* env, jobject dinfo, ScannerResult* scanResult) {
@@ -234,11 +694,9 @@ void setScanCardNumberResult(JNIEnv* env, jobject dinfo, ScannerResult* scanResu
   dmz_debug_log("setting prediction array region");
   env->SetIntArrayRegion((jintArray)digitArray, 0, scanResult->n_numbers, numbers);
 
-  jobject cardObj = env->GetObjectField(dinfo, detectionInfoId.detectedCard);
-  dmz_debug_log("got cardObj: %x", cardObj);
-  env->SetIntField(cardObj, creditCardId.yoff, scanResult->vseg.y_offset);
+  env->SetIntField(dinfo, detectionInfoId.yoff, scanResult->vseg.y_offset);
 
-  jobject xoffArray = env->GetObjectField(cardObj, creditCardId.xoff);
+  jobject xoffArray = env->GetObjectField(dinfo, detectionInfoId.xoff);
   dmz_debug_log("setting xoffset array region: %x", xoffArray);
   env->SetIntArrayRegion((jintArray)xoffArray, 0, scanResult->n_numbers, offsets);
 
@@ -263,7 +721,7 @@ void logDinfo(JNIEnv* env, jobject dinfo) {
                 env->GetIntArrayElements(digitArray, NULL)[3]);
 }
 
-void setDetectedCardImage(JNIEnv* env, jobject jCardResultBitmap,
+void setDetectedCardImage(JNIEnv* env, ScannerContext *ctx, jobject jCardResultBitmap,
         IplImage* cardY, IplImage* cb, IplImage* cr,
         dmz_corner_points corner_points, int orientation) {
 
@@ -292,102 +750,436 @@ void setDetectedCardImage(JNIEnv* env, jobject jCardResultBitmap,
     IplImage* bigCr = NULL;
     dmz_transform_card(NULL, cr, corner_points, orientation, true, &bigCr);
 
-    IplImage* cardResult = cvCreateImageHeader(cvSize(bmInfo.width, bmInfo.height), IPL_DEPTH_8U, 4);
+    // the bitmap is allocated once by CardScanner, so its header only needs creating once too
+    IplImage* cardResult = ctx->arena.cardResult;
+    if (cardResult == NULL || cardResult->width != (int)bmInfo.width
+        || cardResult->height != (int)bmInfo.height) {
+      if (cardResult != NULL) {
+        cvReleaseImageHeader(&cardResult);
+      }
+      cardResult = cvCreateImageHeader(cvSize(bmInfo.width, bmInfo.height), IPL_DEPTH_8U, 4);
+      ctx->arena.cardResult = cardResult;
+    }
     cvSetData(cardResult, pixels, bmInfo.stride);
     dmz_YCbCr_to_RGB(cardY, bigCb, bigCr, &cardResult);
 
-    dmz_blur_card(cardResult, &scannerState, unblurDigits);
+    dmz_blur_card(cardResult, &ctx->scannerState, ctx->unblurDigits);
 
     AndroidBitmap_unlockPixels(env, jCardResultBitmap);
 
-    cvReleaseImageHeader(&cardResult);
     cvReleaseImage(&bigCb);
     cvReleaseImage(&bigCr);
   }
 }
 
-/* This method forms the core of card.io scanning. All others (nCardDetected & nGetFocusScore) */
+/* The first half of scanning a frame: judges its focus, finds the card edges and, if there is a
+ * card, warps it out of the frame into crop. frameData is an NV21 frame, which is only ever read,
+ * and isn't needed any more once this returns. Returns whether a card was found. */
+static bool detectCard(JNIEnv *env, ScannerContext *ctx, char *frameData, jint width, jint height,
+    jint orientation, jobject dinfo, CardCrop *crop) {
+  crop->flipped = ctx->flipped;
+  if (crop->flipped) {
+    orientation = dmz_opposite_orientation(orientation);
+  }
+
+  // only this half's stages, the other half may be timing a different frame
+  memset(ctx->stageNanos, 0, STAGE_RECOGNIZE * sizeof(jlong));
+  jlong stageStart = nowNanos();
+
+  ScratchArena *arena = &ctx->arena;
+  // separately, so that both get sized
+  bool arenaSized = arena_prepare(arena, width, height);
+  bool cropSized = crop_prepare(crop, width, height);
+  if (arenaSized || cropSized) {
+    ctx->scratchAllocations++;
+  }
+
+  IplImage *image = arena->y;
+  cvSetData(image, frameData, width);
+
+  float focusScore;
+  if (ctx->useGuideRoi) {
+    // only the guide region can hold a card, so score just that, all of it
+    IplImage roi;
+    guideRoi(&roi, frameData, width, height, orientation);
+    focusScore = dmz_focus_score(&roi, true);
+  }
+  else {
+    focusScore = dmz_focus_score(image, false);
+  }
+  endStage(ctx, STAGE_FOCUS_SCORE, &stageStart);
+  env->SetFloatField(dinfo, detectionInfoId.focusScore, focusScore);
+  dmz_trace_log("focus score: %f", focusScore);
+  if (focusScore < ctx->minFocusScore) {
+    return false;
+  }
+
+  // The coarse pass counts towards edge detection, though it comes before deinterleaving, which
+  // it saves when there's no card.
+  jlong coarseNanos = 0;
+  // a card being tracked is known to be there
+  if (ctx->coarseEdges && !ctx->tracking) {
+    if (!coarseCardPlausible(ctx, image, width, height, orientation)) {
+      ctx->coarseRejects++;
+      // and no edges to show, which DetectionInfo.reset() already says
+      endStage(ctx, STAGE_DETECT_EDGES, &stageStart);
+      return false;
+    }
+    jlong now = nowNanos();
+    coarseNanos = now - stageStart;
+    stageStart = now;
+  }
+
+  IplImage *cbcr = arena->cbcr;
+  cvSetData(cbcr, frameData + width * height, width);
+
+  // Note: cr and cb are reversed here because Android uses android.graphics.ImageFormat.NV21. This is actually YCrCb rather than YCbCr!
+  cvSplit(cbcr, crop->cr, crop->cb, NULL, NULL);
+  endStage(ctx, STAGE_DEINTERLEAVE, &stageStart);
+  stageStart -= coarseNanos;
+
+  dmz_edges found_edges;
+  dmz_corner_points corner_points;
+  bool cardDetected = false;
+  bool tracked = false;
+  if (ctx->tracking && ctx->trackedOrientation == orientation
+      && ctx->framesSinceDetection < TRACK_REDETECT_INTERVAL) {
+    tracked = trackCorners(image, &ctx->trackedCorners, &corner_points);
+    if (tracked) {
+      memset(&found_edges, 0, sizeof(found_edges));
+      found_edges.top.found = found_edges.bottom.found = true;
+      found_edges.left.found = found_edges.right.found = true;
+      cardDetected = true;
+      ctx->framesSinceDetection++;
+      ctx->framesTracked++;
+    }
+    else {
+      ctx->trackingLosses++;
+    }
+  }
+  if (!tracked) {
+    cardDetected = dmz_detect_edges(image, crop->cb, crop->cr,
+                                    orientation,
+                                    &found_edges, &corner_points
+                                   );
+    ctx->framesSinceDetection = 0;
+  }
+  ctx->tracking = ctx->trackCorners && cardDetected;
+  if (ctx->tracking) {
+    ctx->trackedCorners = corner_points;
+    ctx->trackedOrientation = orientation;
+  }
+
+  endStage(ctx, STAGE_DETECT_EDGES, &stageStart);
+
+  setDetectedEdges(env, dinfo, found_edges);
+
+  if (!cardDetected) {
+    return false;
+  }
+
+  if (crop->cardY != NULL) {
+    cvReleaseImage(&crop->cardY);
+  }
+  dmz_transform_card(NULL, image, corner_points, orientation, false, &crop->cardY);
+  crop->cornerPoints = corner_points;
+  crop->orientation = orientation;
+  crop->focusScore = focusScore;
+  endStage(ctx, STAGE_TRANSFORM, &stageStart);
+  return true;
+}
+
+/* The second half: reads the number and expiry off a card found by detectCard, and renders the
+ * color card image into jCardResultBitmap when renderMode asks for it, since the chroma warps,
+ * color conversion and blur cost far more than the recognition itself. Returns whether it was
+ * rendered. */
+static bool recognizeCard(JNIEnv *env, ScannerContext *ctx, CardCrop *crop, jobject dinfo,
+    jobject jCardResultBitmap, jboolean jScanExpiry, jint renderMode) {
+  ctx->stageNanos[STAGE_RECOGNIZE] = 0;
+  ctx->stageNanos[STAGE_RENDER] = 0;
+  jlong stageStart = nowNanos();
+
+  // in detect-only mode, finding the card is all there is to it
+  bool complete = ctx->detectOnly;
+  if (!ctx->detectOnly) {
+    FrameScanResult result;
+    result.focus_score = crop->focusScore;
+    result.flipped = crop->flipped;
+    scanner_add_frame_with_expiry(&ctx->scannerState, crop->cardY, jScanExpiry, &result);
+    if (result.usable) {
+      ScannerResult scanResult;
+      scanner_result(&ctx->scannerState, &scanResult);
+
+      if (scanResult.complete) {
+        setScanCardNumberResult(env, dinfo, &scanResult);
+        logDinfo(env, dinfo);
+        complete = true;
+      }
+    }
+    else if (result.upside_down) {
+      // relative to the way this crop was scanned, in case later ones already flipped
+      ctx->flipped = !crop->flipped;
+    }
+    endStage(ctx, STAGE_RECOGNIZE, &stageStart);
+  }
+
+  if (jCardResultBitmap != NULL
+      && (renderMode == RENDER_THROTTLED || (renderMode == RENDER_ON_COMPLETION && complete))) {
+    setDetectedCardImage(env, ctx, jCardResultBitmap, crop->cardY, crop->cb, crop->cr,
+                         crop->cornerPoints, crop->orientation);
+    endStage(ctx, STAGE_RENDER, &stageStart);
+    return true;
+  }
+  return false;
+}
+
+/* This method forms the core of card.io scanning: both halves, one after the other, on the
+ * calling thread. Returns whether the card image was rendered. */
+static bool scanFrame(JNIEnv *env, ScannerContext *ctx, char *frameData, jint width, jint height,
+    jint orientation, jobject dinfo, jobject jCardResultBitmap, jboolean jScanExpiry,
+    jint renderMode) {
+  memset(ctx->stageNanos, 0, sizeof(ctx->stageNanos));
+  if (!detectCard(env, ctx, frameData, width, height, orientation, dinfo, &ctx->crop)) {
+    return false;
+  }
+  return recognizeCard(env, ctx, &ctx->crop, dinfo, jCardResultBitmap, jScanExpiry, renderMode);
+}
+
 extern "C"
-JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nScanFrame(JNIEnv *env, jobject thiz,
-    jbyteArray jb, jint width, jint height, jint orientation, jobject dinfo,
-    jobject jCardResultBitmap, jboolean jScanExpiry) {
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nScanFrame(JNIEnv *env, jclass clazz,
+    jlong handle, jbyteArray jb, jint width, jint height, jint orientation, jobject dinfo,
+    jobject jCardResultBitmap, jboolean jScanExpiry, jint renderMode) {
   dmz_trace_log("Java_io_card_payment_CardScanner_nScanFrame ... width:%i height:%i orientation:%i", width, height, orientation);
 
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    dmz_error_log("scanner has been cleaned up");
+    return false;
+  }
   if (orientation == 0) {
     dmz_error_log("orientation is 0. Nothing good can come from this.");
-    return;
+    return false;
   }
 
-  if (flipped) {
-    orientation = dmz_opposite_orientation(orientation);
+  jbyte *jBytes = env->GetByteArrayElements(jb, 0);
+  bool rendered = scanFrame(env, ctx, (char *)jBytes, width, height, orientation, dinfo,
+                            jCardResultBitmap, jScanExpiry, renderMode);
+  // The frame is never written to, so if the VM handed us a copy, don't copy it back.
+  env->ReleaseByteArrayElements(jb, jBytes, JNI_ABORT);
+  return rendered;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nScanFrameDirect(JNIEnv *env, jclass clazz,
+    jlong handle, jobject jFrameBuffer, jint width, jint height, jint orientation, jobject dinfo,
+    jobject jCardResultBitmap, jboolean jScanExpiry, jint renderMode) {
+  dmz_trace_log("Java_io_card_payment_CardScanner_nScanFrameDirect ... width:%i height:%i orientation:%i", width, height, orientation);
+
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    dmz_error_log("scanner has been cleaned up");
+    return false;
+  }
+  if (orientation == 0) {
+    dmz_error_log("orientation is 0. Nothing good can come from this.");
+    return false;
+  }
+
+  char *frameData = (char *)env->GetDirectBufferAddress(jFrameBuffer);
+  if (frameData == NULL) {
+    dmz_error_log("frame buffer is not a direct buffer");
+    return false;
+  }
+  if (env->GetDirectBufferCapacity(jFrameBuffer) < (jlong)width * height * 3 / 2) {
+    dmz_error_log("frame buffer is too small for a %ix%i frame", width, height);
+    return false;
+  }
+
+  return scanFrame(env, ctx, frameData, width, height, orientation, dinfo, jCardResultBitmap,
+                   jScanExpiry, renderMode);
+}
+
+/* Returns the handle of a new, empty crop for the pipelined scan, which must be freed with
+ * nReleaseCrop. A crop can go back and forth between nDetectFrame and nRecognizeCrop any number of
+ * times. */
+extern "C"
+JNIEXPORT jlong JNICALL Java_io_card_payment_CardScanner_nCreateCrop(JNIEnv *env, jclass clazz) {
+  return (jlong)(intptr_t)new CardCrop();
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nReleaseCrop(JNIEnv *env, jclass clazz,
+    jlong cropHandle) {
+  CardCrop *crop = (CardCrop *)(intptr_t)cropHandle;
+  if (crop == NULL) {
+    return;
   }
+  crop_release(crop);
+  delete crop;
+}
 
-  FrameScanResult result;
+/* The detecting half of the pipelined scan. Returns whether a card was found, in which case the
+ * crop is ready for nRecognizeCrop, on any thread. */
+extern "C"
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nDetectFrame(JNIEnv *env, jclass clazz,
+    jlong handle, jbyteArray jb, jint width, jint height, jint orientation, jobject dinfo,
+    jlong cropHandle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  CardCrop *crop = (CardCrop *)(intptr_t)cropHandle;
+  if (ctx == NULL || crop == NULL) {
+    dmz_error_log("scanner has been cleaned up");
+    return false;
+  }
+  if (orientation == 0) {
+    dmz_error_log("orientation is 0. Nothing good can come from this.");
+    return false;
+  }
 
-  IplImage *image = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, 1);
   jbyte *jBytes = env->GetByteArrayElements(jb, 0);
-  image->imageData = (char *)jBytes;
+  bool detected = detectCard(env, ctx, (char *)jBytes, width, height, orientation, dinfo, crop);
+  env->ReleaseByteArrayElements(jb, jBytes, JNI_ABORT);
+  return detected;
+}
 
-  float focusScore = dmz_focus_score(image, false);
-  env->SetFloatField(dinfo, detectionInfoId.focusScore, focusScore);
-  dmz_trace_log("focus score: %f", focusScore);
-  if (focusScore >= minFocusScore) {
-
-    IplImage *cbcr = cvCreateImageHeader(cvSize(width / 2, height / 2), IPL_DEPTH_8U, 2);
-    cbcr->imageData = ((char *)jBytes) + width * height;
-    IplImage *cb, *cr;
-
-    // Note: cr and cb are reversed here because Android uses android.graphics.ImageFormat.NV21. This is actually YCrCb rather than YCbCr!
-    dmz_deinterleave_uint8_c2(cbcr, &cr, &cb);
-
-    cvReleaseImageHeader(&cbcr);
-
-    dmz_edges found_edges;
-    dmz_corner_points corner_points;
-    bool cardDetected = dmz_detect_edges(image, cb, cr,
-                                         orientation,
-                                         &found_edges, &corner_points
-                                        );
-
-    updateEdgeDetectDisplay(env, thiz, dinfo, found_edges);
-
-    if (cardDetected) {
-      IplImage *cardY = NULL;
-      dmz_transform_card(NULL, image, corner_points, orientation, false, &cardY);
-
-      if (!detectOnly) {
-        result.focus_score = focusScore;
-        result.flipped = flipped;
-        scanner_add_frame_with_expiry(&scannerState, cardY, jScanExpiry, &result);
-        if (result.usable) {
-          ScannerResult scanResult;
-          scanner_result(&scannerState, &scanResult);
-
-          if (scanResult.complete) {
-            setScanCardNumberResult(env, dinfo, &scanResult);
-            logDinfo(env, dinfo);
-          }
-        }
-        else if (result.upside_down) {
-          flipped = !flipped;
-        }
-      }
+extern "C"
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nDetectFrameDirect(JNIEnv *env,
+    jclass clazz, jlong handle, jobject jFrameBuffer, jint width, jint height, jint orientation,
+    jobject dinfo, jlong cropHandle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  CardCrop *crop = (CardCrop *)(intptr_t)cropHandle;
+  if (ctx == NULL || crop == NULL) {
+    dmz_error_log("scanner has been cleaned up");
+    return false;
+  }
+  if (orientation == 0) {
+    dmz_error_log("orientation is 0. Nothing good can come from this.");
+    return false;
+  }
 
-      setDetectedCardImage(env, jCardResultBitmap, cardY, cb, cr, corner_points, orientation);
-      cvReleaseImage(&cardY);
-    }
+  char *frameData = (char *)env->GetDirectBufferAddress(jFrameBuffer);
+  if (frameData == NULL) {
+    dmz_error_log("frame buffer is not a direct buffer");
+    return false;
+  }
+  if (env->GetDirectBufferCapacity(jFrameBuffer) < (jlong)width * height * 3 / 2) {
+    dmz_error_log("frame buffer is too small for a %ix%i frame", width, height);
+    return false;
+  }
 
-    cvReleaseImage(&cb);
-    cvReleaseImage(&cr);
+  return detectCard(env, ctx, frameData, width, height, orientation, dinfo, crop);
+}
+
+/* The recognizing half of the pipelined scan, for a crop nDetectFrame found a card in. Only one
+ * thread may recognize at a time, but it may do so while another one detects. Returns whether the
+ * card image was rendered. */
+extern "C"
+JNIEXPORT jboolean JNICALL Java_io_card_payment_CardScanner_nRecognizeCrop(JNIEnv *env,
+    jclass clazz, jlong handle, jlong cropHandle, jobject dinfo, jobject jCardResultBitmap,
+    jboolean jScanExpiry, jint renderMode) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  CardCrop *crop = (CardCrop *)(intptr_t)cropHandle;
+  if (ctx == NULL || crop == NULL || crop->cardY == NULL) {
+    dmz_error_log("nothing to recognize");
+    return false;
+  }
+  return recognizeCard(env, ctx, crop, dinfo, jCardResultBitmap, jScanExpiry, renderMode);
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetGuideRoi(JNIEnv *env, jclass clazz,
+    jlong handle, jboolean enabled) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
   }
+  ctx->useGuideRoi = enabled;
+}
 
-  cvReleaseImageHeader(&image);
-  env->ReleaseByteArrayElements(jb, jBytes, 0);
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetCoarseEdges(JNIEnv *env, jclass clazz,
+    jlong handle, jboolean enabled) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  ctx->coarseEdges = enabled;
 }
 
 extern "C"
-JNIEXPORT jint JNICALL Java_io_card_payment_CardScanner_nGetNumFramesScanned(JNIEnv *env, jobject thiz) {
-  return scannerState.session_analytics.num_frames_scanned;
+JNIEXPORT jint JNICALL Java_io_card_payment_CardScanner_nGetCoarseRejectCount(JNIEnv *env,
+    jclass clazz, jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return 0;
+  }
+  return ctx->coarseRejects;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_io_card_payment_CardScanner_nGetScratchAllocations(JNIEnv *env,
+    jclass clazz, jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return 0;
+  }
+  return ctx->scratchAllocations;
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nSetCornerTracking(JNIEnv *env,
+    jclass clazz, jlong handle, jboolean enabled) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  ctx->trackCorners = enabled;
+  ctx->tracking = false;
+}
+
+/* Copies out the frames the card was tracked in rather than searched for, and the times it was
+ * lost, since the last reset. */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nGetTrackingCounts(JNIEnv *env,
+    jclass clazz, jlong handle, jintArray jCounts) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  jint counts[2] = { ctx->framesTracked, ctx->trackingLosses };
+  env->SetIntArrayRegion(jCounts, 0, 2, counts);
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nGetStageTimes(JNIEnv *env, jclass clazz,
+    jlong handle, jlongArray jStageNanos) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  env->SetLongArrayRegion(jStageNanos, 0, STAGE_COUNT, ctx->stageNanos);
+}
+
+/* Copies the stage histograms out: bucket counts stage after stage, then total and max times. */
+extern "C"
+JNIEXPORT void JNICALL Java_io_card_payment_CardScanner_nGetStageHistograms(JNIEnv *env,
+    jclass clazz, jlong handle, jintArray jBuckets, jlongArray jTotalNanos, jlongArray jMaxNanos) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return;
+  }
+  env->SetIntArrayRegion(jBuckets, 0, STAGE_COUNT * BUCKET_COUNT, &ctx->stageBuckets[0][0]);
+  env->SetLongArrayRegion(jTotalNanos, 0, STAGE_COUNT, ctx->stageTotalNanos);
+  env->SetLongArrayRegion(jMaxNanos, 0, STAGE_COUNT, ctx->stageMaxNanos);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_io_card_payment_CardScanner_nGetNumFramesScanned(JNIEnv *env, jclass clazz,
+    jlong handle) {
+  ScannerContext *ctx = contextFromHandle(handle);
+  if (ctx == NULL) {
+    return 0;
+  }
+  return ctx->scannerState.session_analytics.num_frames_scanned;
 }
 
 
@@ -0,0 +1,35 @@
+package io.card.payment;
+
+import java.lang.management.ManagementFactory;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * For tests that check a hot path allocates nothing once warmed up: run it
+ * {@link #WARMUP_RUNS} times, then measure {@link #MEASURED_RUNS} more with
+ * {@link #allocatedBytes()}.
+ */
+final class Allocations {
+
+    static final int WARMUP_RUNS = 10000;
+    static final int MEASURED_RUNS = 100000;
+
+    // generous enough for the bookkeeping of the measurement itself, far below one byte per run
+    private static final long MAX_ALLOCATED_BYTES = 4096;
+
+    private Allocations() {
+    }
+
+    /**
+     * @return the bytes allocated by the calling thread so far.
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void assertNoneAllocated(String what, long allocatedBytes) {
+        assertTrue(what + " allocated " + allocatedBytes + " bytes",
+                allocatedBytes < MAX_ALLOCATED_BYTES);
+    }
+}
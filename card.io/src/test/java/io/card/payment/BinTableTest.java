@@ -0,0 +1,145 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BinTableTest {
+
+    private static final String CSV = "start,end,type,product,country,issuer,min_length,max_length\n"
+            + "# networks\n"
+            + "4,,Visa,,,,13,19\n"
+            + "51,55,MasterCard,credit,,,16,16\n"
+            + "\n"
+            + "# issuers within them\n"
+            + "411111,,Visa,debit,us,\"Test Bank, N.A.\",16,16\n"
+            + "41111199,,Visa,prepaid,GB,Gift Cards,16,16\n"
+            + "520000,520099,MasterCard,debit,DE,Test Bank,16,16\n"
+            + "62212600,62292599,UnionPay,credit,CN,,16,19\n";
+
+    private static BinTable table(String csv) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinTableWriter.write(new StringReader(csv), bytes);
+
+        File file = File.createTempFile("bins", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes.toByteArray());
+        } finally {
+            out.close();
+        }
+        return BinTable.open(file);
+    }
+
+    @Test
+    public void lookup_findsTheNarrowestRange() throws IOException {
+        BinTable table = table(CSV);
+        BinInfo info = new BinInfo();
+
+        assertTrue(table.lookup("4111111111111111", info));
+        assertEquals(CardType.VISA, info.getCardType());
+        assertEquals(BinInfo.PRODUCT_DEBIT, info.getProduct());
+        assertEquals("US", info.getCountry());
+        assertEquals("Test Bank, N.A.", info.getIssuer());
+
+        assertTrue(table.lookup("4111119912345678", info));
+        assertEquals(BinInfo.PRODUCT_PREPAID, info.getProduct());
+        assertEquals("Gift Cards", info.getIssuer());
+
+        assertTrue(table.lookup("4012888888881881", info));
+        assertEquals(CardType.VISA, info.getCardType());
+        assertEquals(BinInfo.PRODUCT_UNKNOWN, info.getProduct());
+        assertNull(info.getCountry());
+        assertNull(info.getIssuer());
+        assertEquals(13, info.getMinLength());
+        assertEquals(19, info.getMaxLength());
+
+        assertTrue(table.lookup("5200501234567890", info));
+        assertEquals(CardType.MASTERCARD, info.getCardType());
+        assertEquals("Test Bank", info.getIssuer());
+        assertTrue(table.lookup("5201001234567890", info));
+        assertEquals(BinInfo.PRODUCT_CREDIT, info.getProduct());
+
+        assertTrue(table.lookup("6225881234567890", info));
+        assertEquals(CardType.UNKNOWN, info.getCardType());
+        assertEquals("CN", info.getCountry());
+    }
+
+    @Test
+    public void lookup_needsEnoughDigitsToSettleOnARange() throws IOException {
+        BinTable table = table(CSV);
+        BinInfo info = new BinInfo();
+
+        assertTrue(table.lookup("40", info));
+        assertTrue(table.lookup("53", info));
+        assertFalse(table.lookup("4111", info));
+        assertFalse(table.lookup("5", info));
+        assertTrue(table.lookup("411112", info));
+        assertNull(info.getIssuer());
+    }
+
+    @Test
+    public void lookup_failsOutsideEveryRange() throws IOException {
+        BinTable table = table(CSV);
+        BinInfo info = new BinInfo();
+
+        assertFalse(table.lookup("3782822463", info));
+        assertFalse(table.lookup("6221259912345678", info));
+        assertFalse(table.lookup("", info));
+        assertFalse(table.lookup("4x", info));
+        assertNull(table.lookup("9"));
+    }
+
+    @Test
+    public void lookup_acceptsDigitValues() throws IOException {
+        BinTable table = table(CSV);
+        BinInfo info = new BinInfo();
+
+        int[] digits = { 4, 1, 1, 1, 1, 1, 9, 9, 1, 1, 1, 1, 1, 1, 1, 1 };
+        assertTrue(table.lookup(digits, digits.length, info));
+        assertEquals("Gift Cards", info.getIssuer());
+    }
+
+    @Test
+    public void write_splitsRangesAroundTheOnesWithinThem() throws IOException {
+        // 4 is split around 411111, which ends in 41111199, and 51-55 around 520000-520099
+        assertEquals(8, table(CSV).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void write_rejectsRangesThatPartlyOverlap() throws IOException {
+        table("51,55,MasterCard\n54,56,Maestro\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void write_rejectsRangesLongerThanEightDigits() throws IOException {
+        table("411111111,,Visa\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("bins", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("start,end\n4,4\n".getBytes("UTF-8"));
+            out.write(new byte[16]);
+        } finally {
+            out.close();
+        }
+        BinTable.open(file);
+    }
+}
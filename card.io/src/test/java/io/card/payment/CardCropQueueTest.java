@@ -0,0 +1,73 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class CardCropQueueTest {
+
+    private static CardCropQueue newQueue(int capacity) {
+        CardCropQueue.Crop[] crops = new CardCropQueue.Crop[capacity + 2];
+        for (int i = 0; i < crops.length; i++) {
+            crops[i] = new CardCropQueue.Crop(i + 1);
+        }
+        return new CardCropQueue(crops, capacity);
+    }
+
+    @Test
+    public void crops_comeOutInOrder() throws InterruptedException {
+        CardCropQueue queue = newQueue(2);
+        CardCropQueue.Crop first = queue.obtain();
+        queue.publish(first);
+        CardCropQueue.Crop second = queue.obtain();
+        queue.publish(second);
+
+        assertSame(first, queue.take());
+        assertSame(second, queue.take());
+        assertEquals(0, queue.getCropsDropped());
+    }
+
+    @Test
+    public void fullQueue_dropsOldest() throws InterruptedException {
+        CardCropQueue queue = newQueue(2);
+        // one being recognized, so the detector runs ahead
+        CardCropQueue.Crop recognizing = queue.obtain();
+        queue.publish(recognizing);
+        assertSame(recognizing, queue.take());
+
+        CardCropQueue.Crop newest = null;
+        for (int i = 0; i < 10; i++) {
+            newest = queue.obtain();
+            assertNotNull("the detector always has a crop to fill", newest);
+            queue.publish(newest);
+        }
+
+        assertEquals(8, queue.getCropsDropped());
+        queue.take();
+        assertSame(newest, queue.take());
+    }
+
+    @Test
+    public void clear_returnsQueuedCrops() {
+        CardCropQueue queue = newQueue(2);
+        queue.publish(queue.obtain());
+        queue.publish(queue.obtain());
+        queue.clear();
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(queue.obtain());
+        }
+        assertNull(queue.obtain());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongNumberOfCrops_isRejected() {
+        new CardCropQueue(new CardCropQueue.Crop[2], 2);
+    }
+}
@@ -0,0 +1,97 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CardNumberDigitsTest {
+
+    @Test
+    public void typingAndDeleting_keepsTypeAndChecksum() {
+        CardNumberDigits digits = new CardNumberDigits();
+        assertEquals(CardType.UNKNOWN, digits.getCardType());
+
+        String number = "378282246310005";
+        for (int i = 0; i < number.length(); i++) {
+            digits.replace(i, 0, number, i, i + 1);
+        }
+        assertEquals(number, digits.toString());
+        assertEquals(CardType.AMEX, digits.getCardType());
+        assertTrue(digits.passesLuhnChecksum());
+
+        digits.replace(14, 1, "", 0, 0);
+        assertFalse(digits.passesLuhnChecksum());
+        digits.replace(1, 13, "", 0, 0);
+        assertEquals(CardType.INSUFFICIENT_DIGITS, digits.getCardType());
+        digits.replace(0, 1, "", 0, 0);
+        assertEquals(0, digits.length());
+        assertEquals(CardType.UNKNOWN, digits.getCardType());
+    }
+
+    @Test
+    public void editsAnywhere_matchWorkingItOutFromScratch() {
+        Random random = new Random(42);
+        CardNumberDigits digits = new CardNumberDigits();
+        StringBuilder expected = new StringBuilder();
+        String[] pastes = { "4", "37", "5555 5555", "6011-", "3530111333300000", "x", "" };
+
+        for (int edit = 0; edit < 5000; edit++) {
+            int index = random.nextInt(expected.length() + 1);
+            int removed = random.nextInt(Math.min(3, expected.length() - index) + 1);
+            String paste = pastes[random.nextInt(pastes.length)];
+            if (expected.length() - removed + paste.length() > 40) {
+                removed = expected.length() - index;
+            }
+
+            CardType previewed = digits.cardTypeAfterReplacing(index, removed, paste, 0,
+                    paste.length());
+            digits.replace(index, removed, paste, 0, paste.length());
+            expected.replace(index, index + removed, StringHelper.getDigitsOnlyString(paste));
+
+            String number = expected.toString();
+            assertEquals(number, digits.toString());
+            assertEquals(number, CardType.fromCardNumber(number), digits.getCardType());
+            assertEquals(number, CardType.fromCardNumber(number), previewed);
+            assertEquals(number, CreditCardNumber.passesLuhnChecksum(number),
+                    digits.passesLuhnChecksum());
+        }
+    }
+
+    @Test
+    public void typingAtTheEnd_allocatesNothingInSteadyState() {
+        CardNumberDigits digits = new CardNumberDigits();
+        String number = "4111111111111111";
+
+        typeAndClear(digits, number, Allocations.WARMUP_RUNS);
+
+        long before = Allocations.allocatedBytes();
+        int valid = typeAndClear(digits, number, Allocations.MEASURED_RUNS);
+        long allocated = Allocations.allocatedBytes() - before;
+
+        assertEquals(Allocations.MEASURED_RUNS, valid);
+        Allocations.assertNoneAllocated("typing", allocated);
+    }
+
+    private static int typeAndClear(CardNumberDigits digits, String number, int runs) {
+        int valid = 0;
+        for (int run = 0; run < runs; run++) {
+            for (int i = 0; i < number.length(); i++) {
+                digits.cardTypeAfterReplacing(i, 0, number, i, i + 1);
+                digits.replace(i, 0, number, i, i + 1);
+            }
+            if (digits.length() == digits.getCardType().numberLength()
+                    && digits.passesLuhnChecksum()) {
+                valid++;
+            }
+            digits.replace(0, digits.length(), number, 0, 0);
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,78 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class CardScannerTest {
+
+    // the frame path runs through far more code than the other hot paths, and can still be
+    // compiling after the usual warmup
+    private static final int WARMUP_FRAMES = 5 * Allocations.WARMUP_RUNS;
+
+    /**
+     * Scans frames with a stand-in for the native scanner, which finds the card's edges in every
+     * frame, in focus every other one, and the number in none unless told to.
+     */
+    private static class FakeNativeScanner extends CardScanner {
+        int framesScanned;
+        boolean completeNext;
+
+        FakeNativeScanner() {
+            super(ORIENTATION_PORTRAIT);
+        }
+
+        @Override
+        void scanFrame(byte[] data, DetectionInfo dInfo) {
+            dInfo.focusScore = (framesScanned++ & 1) == 0 ? MIN_FOCUS_SCORE : 0;
+            dInfo.topEdge = true;
+            dInfo.bottomEdge = true;
+            dInfo.leftEdge = true;
+            dInfo.rightEdge = true;
+            if (completeNext) {
+                for (int i = 0; i < 16; i++) {
+                    dInfo.prediction[i] = 4;
+                }
+                dInfo.complete = true;
+            }
+        }
+    }
+
+    @Test
+    public void frameLoop_allocatesNothingInSteadyState() {
+        FakeNativeScanner scanner = new FakeNativeScanner();
+        byte[] frame = new byte[640 * 480 * 3 / 2];
+
+        runFrames(scanner, frame, WARMUP_FRAMES);
+
+        long before = Allocations.allocatedBytes();
+        runFrames(scanner, frame, Allocations.MEASURED_RUNS);
+        long allocated = Allocations.allocatedBytes() - before;
+
+        assertEquals(WARMUP_FRAMES + Allocations.MEASURED_RUNS, scanner.framesScanned);
+        Allocations.assertNoneAllocated("frame loop", allocated);
+    }
+
+    @Test
+    public void frameLoop_stopsScanningOnceACardIsFound() {
+        FakeNativeScanner scanner = new FakeNativeScanner();
+        byte[] frame = new byte[640 * 480 * 3 / 2];
+
+        runFrames(scanner, frame, 4);
+        // the next frame is in focus, so the card it completes is the last thing scanned
+        scanner.completeNext = true;
+        runFrames(scanner, frame, 3);
+
+        assertEquals(5, scanner.framesScanned);
+    }
+
+    private static void runFrames(CardScanner scanner, byte[] frame, int numFrames) {
+        for (int i = 0; i < numFrames; i++) {
+            scanner.onPreviewFrame(frame, null);
+        }
+    }
+}
@@ -19,4 +19,84 @@ public class CardTypeTest {
     public void fromCardNumber_returnsUnknown() {
         assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("999999"));
     }
+
+    @Test
+    public void fromCardNumber_needsMoreDigitsWhileRangesOfDifferentTypesOverlap() {
+        assertEquals(CardType.INSUFFICIENT_DIGITS, CardType.fromCardNumber("3"));
+        assertEquals(CardType.INSUFFICIENT_DIGITS, CardType.fromCardNumber("5"));
+        assertEquals(CardType.JCB, CardType.fromCardNumber("35"));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("351"));
+        assertEquals(CardType.AMEX, CardType.fromCardNumber("34"));
+        assertEquals(CardType.AMEX, CardType.fromCardNumber("378282246310005"));
+        assertEquals(CardType.MASTERCARD, CardType.fromCardNumber("2"));
+        assertEquals(CardType.MASTERCARD, CardType.fromCardNumber("5555555555554444"));
+    }
+
+    @Test
+    public void fromCardNumber_returnsUnknownInGapsBetweenRanges() {
+        assertEquals(CardType.DINERSCLUB, CardType.fromCardNumber("30"));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("306"));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("3500"));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("2220"));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber(""));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber((String) null));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber("4x"));
+    }
+
+    @Test
+    public void fromCardNumber_acceptsDigitValues() {
+        int[] digits = { 6, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 7 };
+        assertEquals(CardType.DISCOVER, CardType.fromCardNumber(digits, digits.length));
+        assertEquals(CardType.INSUFFICIENT_DIGITS, CardType.fromCardNumber(digits, 1));
+        assertEquals(CardType.UNKNOWN, CardType.fromCardNumber(digits, 0));
+    }
+
+    @Test
+    public void trie_resolvesRangesOfUpToEightDigits() {
+        CardTypeTrie trie = new CardTypeTrie.Builder()
+                .add("4", null, CardType.VISA)
+                .add("40001234", "40001299", CardType.MAESTRO)
+                .add("62212600", "62292599", CardType.DISCOVER)
+                .build();
+
+        assertEquals(8, trie.maxPrefixLength());
+        assertEquals(CardType.INSUFFICIENT_DIGITS, trie.lookup("4000"));
+        assertEquals(CardType.VISA, trie.lookup("4001"));
+        assertEquals(CardType.VISA, trie.lookup("40001233"));
+        assertEquals(CardType.INSUFFICIENT_DIGITS, trie.lookup("4000123"));
+        assertEquals(CardType.INSUFFICIENT_DIGITS, trie.lookup("40001234"));
+        assertEquals(CardType.INSUFFICIENT_DIGITS, trie.lookup("4000123456781234"));
+        assertEquals(CardType.VISA, trie.lookup("40001300"));
+
+        assertEquals(CardType.DISCOVER, trie.lookup("6221"));
+        assertEquals(CardType.UNKNOWN, trie.lookup("62212599"));
+        assertEquals(CardType.DISCOVER, trie.lookup("62212600"));
+        assertEquals(CardType.DISCOVER, trie.lookup("6225"));
+        assertEquals(CardType.DISCOVER, trie.lookup("62292599"));
+        assertEquals(CardType.UNKNOWN, trie.lookup("62292600"));
+        assertEquals(CardType.UNKNOWN, trie.lookup("623"));
+    }
+
+    @Test
+    public void trie_stepsOneDigitAtATime() {
+        CardTypeTrie trie = new CardTypeTrie.Builder()
+                .add("34", null, CardType.AMEX)
+                .add("37", null, CardType.AMEX)
+                .add("3528", "3589", CardType.JCB)
+                .build();
+
+        int node = trie.next(CardTypeTrie.ROOT, 3);
+        assertEquals(CardType.INSUFFICIENT_DIGITS, trie.typeOf(node));
+        node = trie.next(node, 7);
+        assertEquals(CardType.AMEX, trie.typeOf(node));
+        // past the end of the range, every digit keeps the type
+        assertEquals(node, trie.next(node, 0));
+        assertEquals(CardTypeTrie.NONE, trie.next(trie.next(CardTypeTrie.ROOT, 3), 0));
+        assertEquals(CardType.UNKNOWN, trie.typeOf(CardTypeTrie.NONE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trie_rejectsRangesLongerThanEightDigits() {
+        new CardTypeTrie.Builder().add("400012345", null, CardType.VISA);
+    }
 }
@@ -0,0 +1,203 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Calendar;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CreditCardNumberTest {
+
+    @Test
+    public void passesLuhnChecksum_forEveryForm() {
+        assertTrue(CreditCardNumber.passesLuhnChecksum("4111111111111111"));
+        assertTrue(CreditCardNumber.passesLuhnChecksum("378282246310005"));
+        assertFalse(CreditCardNumber.passesLuhnChecksum("4111111111111112"));
+        assertFalse(CreditCardNumber.passesLuhnChecksum("4111 1111 1111 1111"));
+
+        StringBuilder digits = new StringBuilder("5555555555554444");
+        assertTrue(CreditCardNumber.passesLuhnChecksum(digits));
+        digits.setCharAt(3, '6');
+        assertFalse(CreditCardNumber.passesLuhnChecksum(digits));
+
+        int[] prediction = { 3, 7, 8, 2, 8, 2, 2, 4, 6, 3, 1, 0, 0, 0, 5, -1 };
+        assertTrue(CreditCardNumber.passesLuhnChecksum(prediction, 15));
+        assertFalse(CreditCardNumber.passesLuhnChecksum(prediction, 16));
+        assertFalse(CreditCardNumber.passesLuhnChecksum(prediction, 14));
+    }
+
+    @Test
+    public void formatString_groupsByType() {
+        assertEquals("4111 1111 1111 1111", CreditCardNumber.formatString("4111111111111111"));
+        assertEquals("3782 822463 10005", CreditCardNumber.formatString("3782-822463-10005"));
+        // Diners Club numbers aren't grouped
+        assertEquals("30569309025904", CreditCardNumber.formatString("30569309025904"));
+        assertEquals("41111", CreditCardNumber.formatString("41111"));
+        CreditCard card = new CreditCard("4111111111111111", 1, 2030, null, null, null);
+        // bullets aren't digits, so the redacted number is grouped as it is
+        assertEquals("\u2022\u2022\u2022\u2022 \u2022\u2022\u2022\u2022 "
+                + "\u2022\u2022\u2022\u2022 1111", card.getRedactedCardNumber());
+    }
+
+    @Test
+    public void formatString_fromDigitValues() {
+        StringBuilder out = new StringBuilder("left over");
+        int[] prediction = { 3, 7, 8, 2, 8, 2, 2, 4, 6, 3, 1, 0, 0, 0, 5, -1 };
+        CreditCardNumber.formatString(prediction, 15, null, out);
+        assertEquals("3782 822463 10005", out.toString());
+
+        CreditCardNumber.formatString(prediction, 6, null, out);
+        assertEquals("378282", out.toString());
+    }
+
+    @Test
+    public void getDigitsOnly_replacesWhatTheBufferHeld() {
+        StringBuilder out = new StringBuilder("left over");
+        assertEquals(16, StringHelper.getDigitsOnly("4111 1111-1111 1111", out));
+        assertEquals("4111111111111111", out.toString());
+        assertEquals("4111111111111111", StringHelper.getDigitsOnlyString("4111 1111 1111 1111"));
+    }
+
+    @Test
+    public void keystrokePath_allocatesNothingInSteadyState() {
+        String[] typed = { "4", "41", "4111 1", "4111 1111 1111 111", "4111 1111 1111 1111",
+                "3782 822463 1000", "3782 822463 10005", };
+        StringBuilder digits = new StringBuilder();
+        StringBuilder formatted = new StringBuilder();
+
+        runKeystrokes(typed, digits, formatted, Allocations.WARMUP_RUNS);
+
+        long before = Allocations.allocatedBytes();
+        int valid = runKeystrokes(typed, digits, formatted, Allocations.MEASURED_RUNS);
+        long allocated = Allocations.allocatedBytes() - before;
+
+        assertEquals(2 * Allocations.MEASURED_RUNS, valid);
+        Allocations.assertNoneAllocated("keystrokes", allocated);
+    }
+
+    @Test
+    public void scanPath_allocatesNothingInSteadyState() {
+        DetectionInfo dInfo = new DetectionInfo();
+        int[] number = { 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 5, 4, 4, 4, 4 };
+        System.arraycopy(number, 0, dInfo.prediction, 0, number.length);
+        StringBuilder formatted = new StringBuilder();
+
+        runScans(dInfo, formatted, Allocations.WARMUP_RUNS);
+
+        long before = Allocations.allocatedBytes();
+        int valid = runScans(dInfo, formatted, Allocations.MEASURED_RUNS);
+        long allocated = Allocations.allocatedBytes() - before;
+
+        assertEquals(Allocations.MEASURED_RUNS, valid);
+        assertEquals("5555 5555 5555 4444", formatted.toString());
+        Allocations.assertNoneAllocated("scan results", allocated);
+    }
+
+    @Test
+    public void parseExpiry_readsBothYearLengths() {
+        long now = millis(2026, Calendar.OCTOBER, 18);
+        assertEquals(203012, CreditCardNumber.parseExpiry("12/30", now));
+        assertEquals(203012, CreditCardNumber.parseExpiry("12/2030", now));
+        assertEquals(202601, CreditCardNumber.parseExpiry("0126", now));
+        // two digit years are within 80 years before and 20 years after now
+        assertEquals(204512, CreditCardNumber.parseExpiry("12/45", now));
+        assertEquals(194612, CreditCardNumber.parseExpiry("12/46", now));
+
+        assertEquals(CreditCardNumber.INVALID_EXPIRY, CreditCardNumber.parseExpiry("13/30", now));
+        assertEquals(CreditCardNumber.INVALID_EXPIRY, CreditCardNumber.parseExpiry("00/30", now));
+        assertEquals(CreditCardNumber.INVALID_EXPIRY, CreditCardNumber.parseExpiry("1/30", now));
+        assertEquals(CreditCardNumber.INVALID_EXPIRY, CreditCardNumber.parseExpiry("12/203", now));
+        assertEquals(CreditCardNumber.INVALID_EXPIRY,
+                CreditCardNumber.parseExpiry("12/20300", now));
+        assertEquals(CreditCardNumber.INVALID_EXPIRY, CreditCardNumber.parseExpiry("", now));
+    }
+
+    @Test
+    public void isDateValid_changesWhenTheMonthRollsOver() {
+        long endOfOctober = millis(2026, Calendar.NOVEMBER, 1) - 1;
+        long startOfNovember = endOfOctober + 1;
+
+        assertTrue(CreditCardNumber.isDateValid(10, 2026, endOfOctober));
+        assertFalse(CreditCardNumber.isDateValid(10, 2026, startOfNovember));
+        assertTrue(CreditCardNumber.isDateValid(11, 2026, startOfNovember));
+        // and back, if the clock is set back
+        assertTrue(CreditCardNumber.isDateValid(10, 2026, endOfOctober));
+
+        assertTrue(CreditCardNumber.isDateValid(12, 2041, startOfNovember));
+        assertFalse(CreditCardNumber.isDateValid(1, 2042, startOfNovember));
+        assertFalse(CreditCardNumber.isDateValid(13, 2030, startOfNovember));
+        assertFalse(CreditCardNumber.isDateValid("12/99"));
+        assertFalse(CreditCardNumber.isDateValid("12/"));
+    }
+
+    @Test
+    public void expiryPath_allocatesNothingInSteadyState() {
+        int year = Calendar.getInstance().get(Calendar.YEAR) + 2;
+        String[] typed = { "1", "12", "12/", "12/" + year % 100 / 10, "12/" + year % 100,
+                "01/" + year, "13/" + year % 100, };
+
+        runExpiries(typed, Allocations.WARMUP_RUNS);
+
+        long before = Allocations.allocatedBytes();
+        int valid = runExpiries(typed, Allocations.MEASURED_RUNS);
+        long allocated = Allocations.allocatedBytes() - before;
+
+        assertEquals(2 * Allocations.MEASURED_RUNS, valid);
+        Allocations.assertNoneAllocated("expiry dates", allocated);
+    }
+
+    private static int runExpiries(String[] typed, int runs) {
+        int valid = 0;
+        for (int run = 0; run < runs; run++) {
+            for (String text : typed) {
+                if (CreditCardNumber.isDateValid(text)) {
+                    valid++;
+                }
+            }
+        }
+        return valid;
+    }
+
+    private static long millis(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTimeInMillis();
+    }
+
+    private static int runKeystrokes(String[] typed, StringBuilder digits, StringBuilder formatted,
+                                     int runs) {
+        int valid = 0;
+        for (int run = 0; run < runs; run++) {
+            for (String text : typed) {
+                int numDigits = StringHelper.getDigitsOnly(text, digits);
+                CardType type = CardType.fromCardNumber(digits);
+                CreditCardNumber.formatString(digits, false, type, formatted);
+                if (numDigits == type.numberLength()
+                        && CreditCardNumber.passesLuhnChecksum(digits)) {
+                    valid++;
+                }
+            }
+        }
+        return valid;
+    }
+
+    private static int runScans(DetectionInfo dInfo, StringBuilder formatted, int runs) {
+        int valid = 0;
+        for (int run = 0; run < runs; run++) {
+            int numDigits = dInfo.numDigits();
+            CardType type = CardType.fromCardNumber(dInfo.prediction, numDigits);
+            if (numDigits == type.numberLength()
+                    && CreditCardNumber.passesLuhnChecksum(dInfo.prediction, numDigits)) {
+                CreditCardNumber.formatString(dInfo.prediction, numDigits, type, formatted);
+                valid++;
+            }
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,73 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DetectionInfoTest {
+
+    @Test
+    public void reset_clearsPreviousFrame() {
+        DetectionInfo dInfo = new DetectionInfo();
+        fillAsNative(dInfo, 7);
+        dInfo.reset();
+
+        assertFalse(dInfo.predicted());
+        assertFalse(dInfo.detected());
+        assertEquals(0, dInfo.edgeFlags());
+        assertEquals(-1, dInfo.prediction[0]);
+        assertEquals(0, dInfo.expiry_month);
+        assertEquals(0, dInfo.xoff[3]);
+    }
+
+    @Test
+    public void creditCard_isIndependentOfReusedInfo() {
+        DetectionInfo dInfo = new DetectionInfo();
+        fillAsNative(dInfo, 15);
+
+        CreditCard card = dInfo.creditCard();
+        dInfo.reset();
+        fillAsNative(dInfo, 16);
+
+        assertEquals("424242424242424", card.cardNumber);
+        assertEquals(12, card.expiryMonth);
+        assertEquals(2030, card.expiryYear);
+        assertEquals(22, card.yoff);
+        assertEquals(15, card.xoff[1]);
+        assertEquals(0, card.xoff[15]);
+    }
+
+    @Test
+    public void edgeFlags_roundTrip() {
+        DetectionInfo source = new DetectionInfo();
+        source.topEdge = true;
+        source.rightEdge = true;
+
+        DetectionInfo target = new DetectionInfo();
+        target.setEdgeFlags(source.edgeFlags());
+
+        assertTrue(target.sameEdgesAs(source));
+        assertEquals(2, target.numVisibleEdges());
+    }
+
+    private static void fillAsNative(DetectionInfo dInfo, int numDigits) {
+        dInfo.focusScore = 10;
+        dInfo.topEdge = true;
+        dInfo.bottomEdge = true;
+        dInfo.leftEdge = true;
+        dInfo.rightEdge = true;
+        for (int i = 0; i < numDigits; i++) {
+            dInfo.prediction[i] = (i % 2 == 0) ? 4 : 2;
+            dInfo.xoff[i] = 15 * i;
+        }
+        dInfo.yoff = 22;
+        dInfo.expiry_month = 12;
+        dInfo.expiry_year = 2030;
+        dInfo.complete = true;
+    }
+}
@@ -0,0 +1,115 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FrameRateGovernorTest {
+
+    private static final long MS = 1000000;
+
+    private static final List<int[]> RANGES = Arrays.asList(
+            new int[]{7000, 30000}, new int[]{15000, 15000}, new int[]{30000, 30000},
+            new int[]{10000, 20000}, new int[]{15000, 20000});
+
+    private long mNow = 1;
+
+    @Test
+    public void slowScanner_getsSlowestSufficientRange() {
+        FrameRateGovernor governor = new FrameRateGovernor(RANGES, new int[]{30000, 30000});
+
+        // 80 ms a frame, 12.5 fps: 15 fps is the slowest range that keeps up
+        assertTrue(run(governor, 33 * MS, 80 * MS));
+        assertRange(15000, 15000, governor.getFpsRange());
+        assertEquals(1, governor.getFpsRangeChanges());
+        // arrivals at 30 fps say nothing about 15 fps, so nothing is strided until measured
+        assertEquals(1, governor.getStride());
+
+        // at 15 fps the scanner keeps up with every frame
+        assertFalse(run(governor, 66 * MS, 80 * MS));
+        assertEquals(1, governor.getStride());
+    }
+
+    @Test
+    public void tiedMaxes_preferTheWidestRange() {
+        FrameRateGovernor governor = new FrameRateGovernor(RANGES, new int[]{30000, 30000});
+
+        // 60 ms a frame, ~17 fps
+        run(governor, 33 * MS, 60 * MS);
+        assertRange(10000, 20000, governor.getFpsRange());
+    }
+
+    @Test
+    public void fastScanner_speedsUpStraightAway() {
+        FrameRateGovernor governor = new FrameRateGovernor(RANGES, new int[]{15000, 15000});
+
+        // 40 ms a frame, 25 fps
+        assertTrue(run(governor, 66 * MS, 40 * MS));
+        assertRange(7000, 30000, governor.getFpsRange());
+    }
+
+    @Test
+    public void slowingDown_needsHeadroom() {
+        FrameRateGovernor governor = new FrameRateGovernor(RANGES, new int[]{10000, 20000});
+
+        // ~14.3 fps: 15 fps keeps up, but not by enough to be worth switching
+        assertFalse(run(governor, 50 * MS, 70 * MS));
+        assertRange(10000, 20000, governor.getFpsRange());
+    }
+
+    @Test
+    public void stride_skipsWhatTheScannerCantTake() {
+        FrameRateGovernor governor = new FrameRateGovernor(RANGES, new int[]{7000, 30000});
+
+        // 250 ms a frame, while the slowest range still delivers every 66 ms
+        assertTrue(run(governor, 66 * MS, 250 * MS));
+        assertRange(15000, 15000, governor.getFpsRange());
+        assertEquals(1, governor.getStride());
+        assertFalse(run(governor, 66 * MS, 250 * MS));
+        assertEquals(3, governor.getStride());
+
+        int scanned = 0;
+        for (int i = 0; i < 30; i++) {
+            mNow += 66 * MS;
+            if (governor.onFrameArrived(mNow)) {
+                scanned++;
+            }
+        }
+        assertEquals(10, scanned);
+        assertEquals(20, governor.getFramesStrided());
+    }
+
+    @Test
+    public void noSupportedRanges_onlyStrides() {
+        FrameRateGovernor governor = new FrameRateGovernor(
+                Arrays.<int[]>asList(), new int[]{30000, 30000});
+
+        assertFalse(run(governor, 33 * MS, 100 * MS));
+        assertEquals(null, governor.getFpsRange());
+        assertEquals(3, governor.getStride());
+    }
+
+    // delivers frames at one interval and scans them at another, for one decision's worth
+    private boolean run(FrameRateGovernor governor, long arrivalNanos, long scanNanos) {
+        boolean changed = false;
+        for (int i = 0; i < FrameRateGovernor.DECISION_INTERVAL; i++) {
+            mNow += arrivalNanos;
+            governor.onFrameArrived(mNow);
+            changed |= governor.onFrameScanned(scanNanos);
+        }
+        return changed;
+    }
+
+    private static void assertRange(int min, int max, int[] range) {
+        assertEquals(min, range[FrameRateGovernor.FPS_MIN_INDEX]);
+        assertEquals(max, range[FrameRateGovernor.FPS_MAX_INDEX]);
+    }
+}
@@ -0,0 +1,122 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanEventBufferTest {
+
+    @Test
+    public void events_areDeliveredInOrder() throws InterruptedException {
+        RecordingListener listener = new RecordingListener(null);
+        ScanEventBuffer buffer = new ScanEventBuffer(listener, 4);
+
+        DetectionInfo dInfo = new DetectionInfo();
+        dInfo.focusScore = 12;
+        dInfo.topEdge = true;
+        dInfo.leftEdge = true;
+        long[] stageNanos = new long[ScanMetrics.STAGE_COUNT];
+        stageNanos[ScanMetrics.STAGE_DETECT_EDGES] = 1500;
+
+        buffer.publishScanned(dInfo, false, stageNanos);
+        buffer.publishDropped(ScanEvent.DROP_SUPERSEDED);
+        buffer.stop();
+        buffer.join();
+
+        assertEquals(2, listener.types.size());
+        assertEquals(ScanEvent.TYPE_FRAME_SCANNED, (int) listener.types.get(0));
+        assertEquals(12f, listener.firstFocusScore);
+        assertTrue(listener.firstHadTopEdge);
+        assertFalse(listener.firstUsable);
+        assertEquals(1500, listener.firstDetectEdgesNanos);
+        assertEquals(ScanEvent.TYPE_FRAME_DROPPED, (int) listener.types.get(1));
+        assertEquals(ScanEvent.DROP_SUPERSEDED, (int) listener.dropReasons.get(1));
+        assertEquals(0, listener.lost);
+    }
+
+    @Test
+    public void slowListener_losesOldestEvents() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(release);
+        ScanEventBuffer buffer = new ScanEventBuffer(listener, 4);
+
+        // the first event is taken straight away and holds the listener up
+        buffer.publishDropped(ScanEvent.DROP_NOT_SCANNING);
+        listener.started.await();
+        for (int i = 0; i < 10; i++) {
+            buffer.publishDropped(ScanEvent.DROP_SUPERSEDED);
+        }
+        release.countDown();
+        buffer.stop();
+        buffer.join();
+
+        // the one in the listener, the 4 newest, and the 6 lost ones accounted for
+        assertEquals(5, listener.types.size());
+        assertEquals(6, listener.lost);
+        // all on the first event delivered after them, not on the newest
+        assertEquals(6, (int) listener.lostCounts.get(1));
+        assertEquals(0, (int) listener.lostCounts.get(4));
+    }
+
+    @Test
+    public void publishing_afterStopIsIgnored() throws InterruptedException {
+        RecordingListener listener = new RecordingListener(null);
+        ScanEventBuffer buffer = new ScanEventBuffer(listener, 4);
+
+        buffer.stop();
+        buffer.publishDropped(ScanEvent.DROP_SUPERSEDED);
+        buffer.join();
+
+        assertEquals(0, listener.types.size());
+    }
+
+    private static class RecordingListener implements ScanEventListener {
+        final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch mRelease;
+
+        final List<Integer> types = new ArrayList<>();
+        final List<Integer> dropReasons = new ArrayList<>();
+        final List<Integer> lostCounts = new ArrayList<>();
+        int lost;
+        float firstFocusScore;
+        boolean firstHadTopEdge;
+        boolean firstUsable;
+        long firstDetectEdgesNanos;
+
+        RecordingListener(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override
+        public void onScanEvent(ScanEvent event) {
+            if (types.isEmpty()) {
+                firstFocusScore = event.getFocusScore();
+                firstHadTopEdge = event.hasTopEdge();
+                firstUsable = event.isUsable();
+                firstDetectEdgesNanos = event.getStageNanos(ScanMetrics.STAGE_DETECT_EDGES);
+            }
+            types.add(event.getType());
+            dropReasons.add(event.getDropReason());
+            lostCounts.add(event.getLostEventCount());
+            lost += event.getLostEventCount();
+
+            started.countDown();
+            if (mRelease != null) {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+}
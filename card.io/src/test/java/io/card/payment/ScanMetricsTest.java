@@ -0,0 +1,67 @@
+package io.card.payment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanMetricsTest {
+
+    @Test
+    public void percentiles_comeFromBucketBounds() {
+        ScanMetrics metrics = new ScanMetrics();
+        int stage = ScanMetrics.STAGE_DETECT_EDGES;
+        // 90 frames in (400, 500] us, 9 in (1500, 2000] us, 1 at 9 ms
+        record(metrics, stage, 450, 90);
+        record(metrics, stage, 1800, 9);
+        record(metrics, stage, 9000, 1);
+
+        assertEquals(100, metrics.getStageSampleCount(stage));
+        assertEquals(500, metrics.getStageP50Micros(stage));
+        assertEquals(2000, metrics.getStageP95Micros(stage));
+        assertEquals(2000, metrics.getStageP99Micros(stage));
+        assertEquals(9000, metrics.getStagePercentileMicros(stage, 100));
+        assertEquals(9000, metrics.getStageMaxMicros(stage));
+    }
+
+    @Test
+    public void percentiles_areCappedByMax() {
+        ScanMetrics metrics = new ScanMetrics();
+        int stage = ScanMetrics.STAGE_FOCUS_SCORE;
+        record(metrics, stage, 420, 10);
+
+        assertEquals(420, metrics.getStageP50Micros(stage));
+    }
+
+    @Test
+    public void percentiles_ofSlowestBucketAreMax() {
+        ScanMetrics metrics = new ScanMetrics();
+        int stage = ScanMetrics.STAGE_RENDER;
+        record(metrics, stage, 350000, 3);
+
+        assertEquals(350000, metrics.getStageP50Micros(stage));
+    }
+
+    @Test
+    public void emptyStage_reportsZero() {
+        ScanMetrics metrics = new ScanMetrics();
+
+        assertEquals(0, metrics.getStageSampleCount(ScanMetrics.STAGE_RECOGNIZE));
+        assertEquals(0, metrics.getStageP99Micros(ScanMetrics.STAGE_RECOGNIZE));
+        assertEquals(0, metrics.getStageMeanMicros(ScanMetrics.STAGE_RECOGNIZE));
+    }
+
+    // what nativeRecognizer.cpp does for each timed stage
+    private static void record(ScanMetrics metrics, int stage, long micros, int times) {
+        int bucket = 0;
+        while (bucket < ScanMetrics.BUCKET_BOUNDS_MICROS.length
+                && micros > ScanMetrics.BUCKET_BOUNDS_MICROS[bucket]) {
+            bucket++;
+        }
+        metrics.stageBuckets[stage * ScanMetrics.BUCKET_COUNT + bucket] += times;
+        metrics.stageTotalNanos[stage] += micros * 1000 * times;
+        metrics.stageMaxNanos[stage] = Math.max(metrics.stageMaxNanos[stage], micros * 1000);
+    }
+}
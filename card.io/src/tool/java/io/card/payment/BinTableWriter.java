@@ -0,0 +1,341 @@
+package io.card.payment;
+
+/* BinTableWriter.java
+ * See the file "LICENSE.md" for the full license governing this code.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Generates a {@link BinTable} from CSV, at build time rather than on the device. This is a build
+ * tool and isn't part of the library, run it with:
+ * <pre>
+ * ./gradlew :card.io:binTable -Pcsv=ranges.csv -Pbin=ranges.bin
+ * </pre>
+ * Each line of the CSV is a range:
+ * <pre>
+ * start,end,type,product,country,issuer,min_length,max_length
+ * 222100,272099,MasterCard,credit,US,"Some Bank, N.A.",16,16
+ * </pre>
+ * <ul>
+ * <li><code>start</code> and <code>end</code> are prefixes of up to 8 digits. <code>end</code> may
+ * be left empty for a range of a single prefix.</li>
+ * <li><code>type</code> is a {@link CardType} name, as {@link CardType#fromString(String)} takes
+ * it. Any other network is kept as {@link CardType#UNKNOWN}.</li>
+ * <li><code>product</code> is <code>credit</code>, <code>debit</code> or <code>prepaid</code>.</li>
+ * <li><code>country</code> is a two letter ISO 3166-1 code.</li>
+ * </ul>
+ * All but the range may be left empty. A first line that doesn't start with a digit is taken as
+ * a header, and lines starting with <code>#</code> are skipped.
+ * <p/>
+ * A range may lie within another, for an issuer's BIN inside a network's range, say. The narrower
+ * range wins where they overlap. Ranges that overlap without one lying within the other are an
+ * error.
+ */
+final class BinTableWriter {
+
+    private static final class Range {
+        int start;
+        int end;
+        int line;
+        CardType type;
+        int product;
+        String country;
+        String issuer;
+        int minLength;
+        int maxLength;
+
+        Range copy(int start, int end) {
+            Range range = new Range();
+            range.start = start;
+            range.end = end;
+            range.line = line;
+            range.type = type;
+            range.product = product;
+            range.country = country;
+            range.issuer = issuer;
+            range.minLength = minLength;
+            range.maxLength = maxLength;
+            return range;
+        }
+    }
+
+    private BinTableWriter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BinTableWriter <ranges.csv> <table.bin>");
+            System.exit(1);
+        }
+        Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+            try {
+                int count = write(in, out);
+                System.out.println("wrote " + count + " ranges to " + args[1]);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of ranges written, once nested ones are split up.
+     */
+    static int write(Reader csv, OutputStream out) throws IOException {
+        List<Range> ranges = flatten(read(csv));
+
+        // issuer names, each stored once
+        Map<String, Integer> issuerOffsets = new LinkedHashMap<String, Integer>();
+        int issuersLength = 0;
+        for (Range range : ranges) {
+            if (range.issuer != null && !issuerOffsets.containsKey(range.issuer)) {
+                issuerOffsets.put(range.issuer, issuersLength);
+                issuersLength += 2 + range.issuer.getBytes("UTF-8").length;
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(BinTable.MAGIC);
+        data.writeInt(BinTable.VERSION);
+        data.writeInt(ranges.size());
+        data.writeInt(BinTable.HEADER_SIZE + ranges.size() * BinTable.RECORD_SIZE);
+
+        for (Range range : ranges) {
+            data.writeInt(range.start);
+            data.writeInt(range.end);
+            data.writeInt(range.issuer != null ? issuerOffsets.get(range.issuer)
+                    : BinTable.NO_ISSUER);
+            data.writeByte(BinTable.typeCode(range.type));
+            data.writeByte(range.product);
+            data.writeByte(range.minLength);
+            data.writeByte(range.maxLength);
+            if (range.country != null) {
+                data.writeByte(range.country.charAt(0));
+                data.writeByte(range.country.charAt(1));
+            } else {
+                data.writeShort(0);
+            }
+            data.writeShort(0);
+        }
+
+        for (String issuer : issuerOffsets.keySet()) {
+            byte[] bytes = issuer.getBytes("UTF-8");
+            data.writeShort(bytes.length);
+            data.write(bytes);
+        }
+        data.flush();
+        return ranges.size();
+    }
+
+    private static List<Range> read(Reader csv) throws IOException {
+        List<Range> ranges = new ArrayList<Range>();
+        BufferedReader reader = new BufferedReader(csv);
+        boolean first = true;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            if (first && !Character.isDigit(line.charAt(0))) {
+                // header
+                first = false;
+                continue;
+            }
+            first = false;
+            try {
+                ranges.add(parse(splitLine(line), lineNumber));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return ranges;
+    }
+
+    private static Range parse(List<String> fields, int line) {
+        if (fields.size() < 2) {
+            throw new IllegalArgumentException("expected at least a start and an end");
+        }
+        while (fields.size() < 8) {
+            fields.add("");
+        }
+
+        Range range = new Range();
+        range.line = line;
+        String start = fields.get(0);
+        String end = fields.get(1).length() > 0 ? fields.get(1) : start;
+        range.start = key(start, '0');
+        range.end = key(end, '9');
+        if (range.start > range.end) {
+            throw new IllegalArgumentException("range ends before it starts");
+        }
+
+        range.type = CardType.fromString(fields.get(2));
+        range.product = product(fields.get(3));
+
+        String country = fields.get(4);
+        if (country.length() > 0) {
+            if (country.length() != 2) {
+                throw new IllegalArgumentException("country must be a two letter code: " + country);
+            }
+            range.country = country.toUpperCase(Locale.US);
+        }
+
+        String issuer = fields.get(5);
+        if (issuer.length() > 0) {
+            range.issuer = issuer;
+        }
+
+        range.minLength = length(fields.get(6));
+        range.maxLength = length(fields.get(7));
+        return range;
+    }
+
+    private static int key(String boundary, char padding) {
+        if (boundary.length() == 0 || boundary.length() > BinTable.KEY_DIGITS) {
+            throw new IllegalArgumentException("range boundaries must have 1 to "
+                    + BinTable.KEY_DIGITS + " digits: " + boundary);
+        }
+        int key = 0;
+        for (int i = 0; i < BinTable.KEY_DIGITS; i++) {
+            char c = i < boundary.length() ? boundary.charAt(i) : padding;
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("not a number: " + boundary);
+            }
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+
+    private static int product(String product) {
+        if (product.length() == 0) {
+            return BinInfo.PRODUCT_UNKNOWN;
+        } else if (product.equalsIgnoreCase("credit")) {
+            return BinInfo.PRODUCT_CREDIT;
+        } else if (product.equalsIgnoreCase("debit")) {
+            return BinInfo.PRODUCT_DEBIT;
+        } else if (product.equalsIgnoreCase("prepaid")) {
+            return BinInfo.PRODUCT_PREPAID;
+        }
+        throw new IllegalArgumentException("unknown product: " + product);
+    }
+
+    private static int length(String length) {
+        if (length.length() == 0) {
+            return 0;
+        }
+        int value = Integer.parseInt(length);
+        if (value < 1 || value > 19) {
+            throw new IllegalArgumentException("card numbers can't be " + value + " digits long");
+        }
+        return value;
+    }
+
+    /**
+     * Splits a line on commas, except within double quotes, where <code>""</code> is a quote.
+     */
+    private static List<String> splitLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Splits ranges that have others within them around those, so that no two overlap and a
+     * binary search can find the narrowest range a number is in.
+     */
+    private static List<Range> flatten(List<Range> ranges) throws IOException {
+        // outer ranges before the ones within them; of identical ranges, the later line wins
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                if (a.start != b.start) {
+                    return a.start < b.start ? -1 : 1;
+                }
+                if (a.end != b.end) {
+                    return a.end > b.end ? -1 : 1;
+                }
+                return a.line - b.line;
+            }
+        });
+
+        List<Range> flat = new ArrayList<Range>();
+        // the ranges the current one lies within, innermost first
+        Deque<Range> enclosing = new ArrayDeque<Range>();
+        // the first key not yet written out
+        int next = 0;
+        for (Range range : ranges) {
+            while (!enclosing.isEmpty() && enclosing.peek().end < range.start) {
+                Range outer = enclosing.pop();
+                emit(flat, outer, next, outer.end);
+                next = outer.end + 1;
+            }
+            if (!enclosing.isEmpty()) {
+                Range outer = enclosing.peek();
+                if (range.end > outer.end) {
+                    throw new IOException("line " + range.line + ": range overlaps the one on line "
+                            + outer.line + " without lying within it");
+                }
+                emit(flat, outer, next, range.start - 1);
+            }
+            next = range.start;
+            enclosing.push(range);
+        }
+        while (!enclosing.isEmpty()) {
+            Range outer = enclosing.pop();
+            emit(flat, outer, next, outer.end);
+            next = outer.end + 1;
+        }
+        return flat;
+    }
+
+    private static void emit(List<Range> flat, Range range, int start, int end) {
+        if (start <= end) {
+            flat.add(range.copy(start, end));
+        }
+    }
+}